@@ -18,6 +18,7 @@ package com.google.fhir.gateway;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.servlet.ServletComponentScan;
+import org.springframework.context.annotation.Import;
 
 /**
  * This class shows the minimum that is required to create a FHIR Gateway with all AccessChecker
@@ -25,6 +26,7 @@ import org.springframework.boot.web.servlet.ServletComponentScan;
  */
 @SpringBootApplication(scanBasePackages = {"com.google.fhir.gateway.plugin"})
 @ServletComponentScan(basePackages = "com.google.fhir.gateway")
+@Import(VirtualThreadConfig.class)
 public class MainApp {
 
   public static void main(String[] args) {
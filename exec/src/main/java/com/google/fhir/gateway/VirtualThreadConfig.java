@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021-2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * If the virtual-thread mode is enabled (see {@link VirtualThreadUtil}), this replaces the thread
+ * pool of the embedded Tomcat with a virtual-thread-per-request executor. With that, the number of
+ * concurrent requests is no longer capped by the Tomcat thread count (`server.tomcat.threads.max`)
+ * but by `server.tomcat.max-connections` and the FHIR store connection pool.
+ */
+@Configuration
+public class VirtualThreadConfig {
+
+  @Bean
+  public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadCustomizer() {
+    return factory ->
+        VirtualThreadUtil.newVirtualThreadPerTaskExecutor()
+            .ifPresent(
+                executor ->
+                    factory.addProtocolHandlerCustomizers(
+                        protocolHandler -> protocolHandler.setExecutor(executor)));
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2021-2023 Google LLC
+ * Copyright 2021-2024 Google LLC
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,26 +15,23 @@
  */
 package com.google.fhir.gateway.plugin;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
-import com.google.common.escape.Escaper;
-import com.google.common.io.CharStreams;
-import com.google.common.net.UrlEscapers;
+import com.google.common.io.ByteStreams;
 import com.google.fhir.gateway.FhirUtil;
-import com.google.fhir.gateway.HttpFhirClient;
 import com.google.fhir.gateway.HttpUtil;
+import com.google.fhir.gateway.ObservingInputStream;
+import com.google.fhir.gateway.StreamingJsonScanner;
 import com.google.fhir.gateway.interfaces.AccessDecision;
 import com.google.fhir.gateway.interfaces.RequestDetailsReader;
 import com.google.fhir.gateway.interfaces.RequestMutation;
+import com.google.fhir.gateway.interfaces.ResponseStreamProcessor;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Set;
+import javax.annotation.Nullable;
 import org.apache.http.HttpResponse;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.slf4j.Logger;
@@ -44,22 +41,26 @@ class AccessGrantedAndUpdateList implements AccessDecision {
 
   private static final Logger logger = LoggerFactory.getLogger(AccessDecision.class);
 
-  private final FhirContext fhirContext;
-  private final HttpFhirClient httpFhirClient;
+  private static final String RESOURCE_TYPE_PATH = "resourceType";
+  private static final String ID_PATH = "id";
+  private static final String LOCATION_PATH = "entry[].response.location";
+  private static final Set<String> SCANNED_FIELDS = Set.of("resourceType", "id", "location");
+
   private final String patientListId;
+  private final PatientExistenceCache existenceCache;
+  private final AccessListUpdater listUpdater;
   private final Set<String> existPutPatients;
   private final ResourceType resourceTypeExpected;
-  private final Escaper PARAM_ESCAPER = UrlEscapers.urlFormParameterEscaper();
 
   private AccessGrantedAndUpdateList(
       String patientListId,
-      HttpFhirClient httpFhirClient,
-      FhirContext fhirContext,
+      PatientExistenceCache existenceCache,
+      AccessListUpdater listUpdater,
       Set<String> existPutPatient,
       ResourceType resourceTypeExpected) {
     this.patientListId = patientListId;
-    this.fhirContext = fhirContext;
-    this.httpFhirClient = httpFhirClient;
+    this.existenceCache = existenceCache;
+    this.listUpdater = listUpdater;
     this.existPutPatients = existPutPatient;
     this.resourceTypeExpected = resourceTypeExpected;
   }
@@ -75,85 +76,105 @@ class AccessGrantedAndUpdateList implements AccessDecision {
   }
 
   @Override
-  public String postProcess(RequestDetailsReader requestDetailsReader, HttpResponse response)
-      throws IOException {
+  public String postProcess(RequestDetailsReader requestDetailsReader, HttpResponse response) {
     Preconditions.checkState(HttpUtil.isResponseValid(response));
-    String content = CharStreams.toString(HttpUtil.readerFromEntity(response.getEntity()));
-    IParser parser = fhirContext.newJsonParser();
-    IBaseResource resource = parser.parseResource(content);
+    return null;
+  }
 
-    if (!FhirUtil.isSameResourceType(resource.fhirType(), resourceTypeExpected)) {
-      String errorMessage =
-          String.format(
-              "Expected to get a %s resource; got: %s ", resourceTypeExpected, resource.fhirType());
-      logger.error(errorMessage);
-      return content;
-    }
+  /**
+   * Extracts the resource type and the Patient IDs while the response is forwarded to the client;
+   * the list is updated once the whole response is read. This avoids loading large transaction
+   * responses into memory; see: https://github.com/google/fhir-access-proxy/issues/64
+   */
+  @Override
+  public ResponseStreamProcessor getResponseStreamProcessor(
+      RequestDetailsReader requestDetailsReader, HttpResponse response) {
+    return (content, output) -> {
+      ResponseFields fields = new ResponseFields();
+      StreamingJsonScanner scanner = new StreamingJsonScanner(SCANNED_FIELDS, fields);
+      try (InputStream observed =
+          new ObservingInputStream(content, scanner, () -> updateList(fields))) {
+        ByteStreams.copy(observed, output);
+      }
+    };
+  }
 
-    if (FhirUtil.isSameResourceType(resource.fhirType(), ResourceType.Patient)) {
-      IIdType id = resource.getIdElement();
-      String patientFromResource = id.getIdPart();
-      addPatientToList(patientFromResource);
+  private void updateList(ResponseFields fields) {
+    if (!FhirUtil.isSameResourceType(fields.resourceType, resourceTypeExpected)) {
+      logger.error(
+          "Expected to get a {} resource; got: {} ", resourceTypeExpected, fields.resourceType);
+      return;
     }
-
-    if (FhirUtil.isSameResourceType(resource.fhirType(), ResourceType.Bundle)) {
-      // TODO Response potentially too large to be loaded into memory; see:
-      //   https://github.com/google/fhir-access-proxy/issues/64
-      Bundle bundle = (Bundle) parser.parseResource(content);
-
-      Set<String> patientIdsInResponse = Sets.newHashSet();
-      for (BundleEntryComponent entryComponent : bundle.getEntry()) {
-        IIdType resourceId =
-            new Reference(entryComponent.getResponse().getLocation()).getReferenceElement();
-
-        if (FhirUtil.isSameResourceType(resourceId.getResourceType(), ResourceType.Patient)) {
-          patientIdsInResponse.add(resourceId.getIdPart());
-        }
-      }
-      patientIdsInResponse.removeAll(existPutPatients);
-      for (String patientId : patientIdsInResponse) {
-        addPatientToList(patientId);
+    Set<String> patientIdsInResponse = Sets.newHashSet();
+    if (resourceTypeExpected == ResourceType.Patient) {
+      if (fields.id == null) {
+        logger.error("No id in the Patient resource of the response");
+        return;
       }
+      patientIdsInResponse.add(fields.id);
+    } else {
+      patientIdsInResponse.addAll(fields.locationPatientIds);
+    }
+    // All these patients exist now, whether they are created or updated.
+    existenceCache.putAll(patientIdsInResponse, true);
+    patientIdsInResponse.removeAll(existPutPatients);
+    try {
+      // All the new patients are added to the list with a single patch.
+      listUpdater.addPatients(patientListId, patientIdsInResponse);
+    } catch (IOException e) {
+      logger.error("Failed to queue list update for patients {}", patientIdsInResponse, e);
     }
-    return content;
   }
 
-  private void addPatientToList(String newPatient) throws IOException {
-    Preconditions.checkNotNull(newPatient);
-    // TODO create this with HAPI client instead of handcrafting; see:
-    //   https://github.com/google/fhir-access-proxy/issues/65
-    String jsonPatch =
-        String.format(
-            "[{"
-                + "  \"op\": \"add\","
-                + "  \"path\": \"/entry/-\","
-                + "  \"value\":"
-                + "  {"
-                + "    \"item\": {"
-                + "      \"reference\": \"Patient/%s\""
-                + "    }"
-                + "  }"
-                + "}]",
-            newPatient);
-    logger.info("Updating access list {} with patch {}", patientListId, jsonPatch);
-    // TODO decide how to handle failures in access list updates; see:
-    //   https://github.com/google/fhir-access-proxy/issues/66
-    httpFhirClient.patchResource(
-        String.format("List/%s", PARAM_ESCAPER.escape(patientListId)), jsonPatch);
+  /** Collects the fields of the response that are needed for updating the list. */
+  private static class ResponseFields implements StreamingJsonScanner.Listener {
+    @Nullable private String resourceType = null;
+    @Nullable private String id = null;
+    private final Set<String> locationPatientIds = Sets.newHashSet();
+
+    @Override
+    public void onStringValue(String path, String value) {
+      switch (path) {
+        case RESOURCE_TYPE_PATH:
+          resourceType = value;
+          break;
+        case ID_PATH:
+          id = value;
+          break;
+        case LOCATION_PATH:
+          IIdType resourceId = new Reference(value).getReferenceElement();
+          if (FhirUtil.isSameResourceType(resourceId.getResourceType(), ResourceType.Patient)) {
+            locationPatientIds.add(resourceId.getIdPart());
+          }
+          break;
+        default:
+          // A field with the same name in another place.
+      }
+    }
   }
 
   public static AccessGrantedAndUpdateList forPatientResource(
-      String patientListId, HttpFhirClient httpFhirClient, FhirContext fhirContext) {
+      String patientListId,
+      PatientExistenceCache existenceCache,
+      AccessListUpdater listUpdater) {
     return new AccessGrantedAndUpdateList(
-        patientListId, httpFhirClient, fhirContext, Sets.newHashSet(), ResourceType.Patient);
+        patientListId,
+        existenceCache,
+        listUpdater,
+        Sets.newHashSet(),
+        ResourceType.Patient);
   }
 
   public static AccessGrantedAndUpdateList forBundle(
       String patientListId,
-      HttpFhirClient httpFhirClient,
-      FhirContext fhirContext,
+      PatientExistenceCache existenceCache,
+      AccessListUpdater listUpdater,
       Set<String> existPutPatients) {
     return new AccessGrantedAndUpdateList(
-        patientListId, httpFhirClient, fhirContext, existPutPatients, ResourceType.Bundle);
+        patientListId,
+        existenceCache,
+        listUpdater,
+        existPutPatients,
+        ResourceType.Bundle);
   }
 }
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.escape.Escaper;
+import com.google.common.net.UrlEscapers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.fhir.gateway.EnvUtil;
+import com.google.fhir.gateway.ExceptionUtil;
+import com.google.fhir.gateway.HttpFhirClient;
+import com.google.fhir.gateway.HttpUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds new patients to access lists in the background. Additions are queued per list and each flush
+ * sends a single JSON Patch with one `add` operation per patient to the `List` resource; hence the
+ * response to the client does not wait for the list update. Failed updates of a list are retried
+ * with exponential backoff. If the FHIR store rejects a patch as invalid, the batch is split until
+ * only the rejected patients are left, which are dropped.
+ *
+ * <p>If an outbox file is configured, each queued addition is appended to it, and synced to disk,
+ * before it is acknowledged; concurrent additions share a single sync. On startup, the additions
+ * that were not flushed are queued again. Note if the proxy crashes right after a flush, the same
+ * patients may be added twice to a list. This class is thread-safe and is meant to be shared
+ * between all access-checkers of the same factory.
+ */
+class AccessListUpdater {
+
+  private static final Logger logger = LoggerFactory.getLogger(AccessListUpdater.class);
+
+  private static final String FLUSH_INTERVAL_ENV = "ACCESS_LIST_UPDATE_FLUSH_INTERVAL_MS";
+  private static final String MAX_BATCH_SIZE_ENV = "ACCESS_LIST_UPDATE_MAX_BATCH_SIZE";
+  private static final String OUTBOX_FILE_ENV = "ACCESS_LIST_OUTBOX_FILE";
+
+  private static final Duration FLUSH_INTERVAL_DEFAULT = Duration.ofMillis(200);
+  private static final int MAX_BATCH_SIZE_DEFAULT = 100;
+  @VisibleForTesting static final Duration MIN_RETRY_BACKOFF = Duration.ofSeconds(1);
+  private static final Duration MAX_RETRY_BACKOFF = Duration.ofMinutes(5);
+
+  // Each outbox record is a line of `OP<tab>LIST_ID<tab>PATIENT_ID`.
+  @VisibleForTesting static final String ADDED_OP = "+";
+  @VisibleForTesting static final String DONE_OP = "-";
+  private static final char FIELD_SEPARATOR = '\t';
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private final HttpFhirClient httpFhirClient;
+  private final ListMembershipCache membershipCache;
+  @Nullable private final ListMembershipIndex membershipIndex;
+  private final int maxBatchSize;
+  @Nullable private final Path outboxPath;
+  private final Clock clock;
+  private final Escaper PARAM_ESCAPER = UrlEscapers.urlFormParameterEscaper();
+
+  // Guards `pending`, `retries`, `inFlightBatches` and the writes to `outbox`; it is never held
+  // during I/O other than the (non-synced) writes, hence additions do not wait for a disk sync or a
+  // patch.
+  private final Lock lock = new ReentrantLock();
+  // List ID -> the patients to be added to that list, in the order they were queued.
+  private final Map<String, Set<String>> pending = new LinkedHashMap<>();
+  // List ID -> when to retry the update of that list, for the lists whose last patch failed.
+  private final Map<String, RetryBackoff> retries = new HashMap<>();
+  // The number of batches taken from `pending` by flushes whose patch is not done yet.
+  private int inFlightBatches = 0;
+  @Nullable private FileChannel outbox;
+  // The number of appends to the outbox so far; only written while holding `lock`.
+  private volatile long outboxAppendCount = 0;
+  // Serializes the outbox syncs; guards `outboxSyncedCount`, i.e., the appends known to be synced.
+  private final Lock outboxSyncLock = new ReentrantLock();
+  private long outboxSyncedCount = 0;
+  @Nullable private volatile ScheduledExecutorService executor;
+
+  @VisibleForTesting
+  AccessListUpdater(
+      HttpFhirClient httpFhirClient,
+      ListMembershipCache membershipCache,
+      @Nullable ListMembershipIndex membershipIndex,
+      int maxBatchSize,
+      @Nullable Path outboxPath,
+      Clock clock)
+      throws IOException {
+    Preconditions.checkArgument(maxBatchSize > 0, "The max batch size should be positive.");
+    this.httpFhirClient = httpFhirClient;
+    this.membershipCache = membershipCache;
+    this.membershipIndex = membershipIndex;
+    this.maxBatchSize = maxBatchSize;
+    this.outboxPath = outboxPath;
+    this.clock = clock;
+    if (outboxPath != null) {
+      recoverOutbox(outboxPath);
+    }
+  }
+
+  /** Creates the updater based on the `ACCESS_LIST_*` env vars and starts its background flush. */
+  static AccessListUpdater createFromEnvVars(
+      HttpFhirClient httpFhirClient,
+      ListMembershipCache membershipCache,
+      @Nullable ListMembershipIndex membershipIndex) {
+    Duration flushInterval =
+        Duration.ofMillis(
+            EnvUtil.getLongOrDefault(FLUSH_INTERVAL_ENV, FLUSH_INTERVAL_DEFAULT.toMillis()));
+    int maxBatchSize = EnvUtil.getIntOrDefault(MAX_BATCH_SIZE_ENV, MAX_BATCH_SIZE_DEFAULT);
+    String outboxFile = System.getenv(OUTBOX_FILE_ENV);
+    Path outboxPath = (outboxFile == null || outboxFile.isEmpty()) ? null : Paths.get(outboxFile);
+    if (outboxPath == null) {
+      logger.warn("No {} is set; queued access list updates are lost on crash.", OUTBOX_FILE_ENV);
+    }
+    AccessListUpdater updater = null;
+    try {
+      updater =
+          new AccessListUpdater(
+              httpFhirClient,
+              membershipCache,
+              membershipIndex,
+              maxBatchSize,
+              outboxPath,
+              Clock.systemUTC());
+    } catch (IOException e) {
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger, "Cannot open the access list outbox " + outboxPath, e);
+    }
+    logger.info(
+        "Access lists are updated every {} with at most {} patients per patch.",
+        flushInterval,
+        maxBatchSize);
+    updater.start(flushInterval);
+    return updater;
+  }
+
+  private void start(Duration flushInterval) {
+    ScheduledExecutorService newExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("access-list-updater-%d")
+                .setDaemon(true)
+                .build());
+    newExecutor.scheduleWithFixedDelay(
+        this::flushOrLog,
+        flushInterval.toMillis(),
+        flushInterval.toMillis(),
+        TimeUnit.MILLISECONDS);
+    executor = newExecutor;
+    // A best effort for a graceful shutdown; the outbox covers the other cases.
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flushOrLog, "access-list-updater-exit"));
+  }
+
+  /**
+   * Queues the given patients to be added to the list. The patients are treated as members of the
+   * list by the membership cache and index from now on, since the list update is already decided;
+   * this is undone if the FHIR store rejects the update.
+   *
+   * @throws IOException if the additions cannot be written to the outbox.
+   */
+  void addPatients(String listId, Collection<String> patientIds) throws IOException {
+    if (patientIds.isEmpty()) {
+      return;
+    }
+    long appendCount;
+    boolean batchFull;
+    lock.lock();
+    try {
+      appendCount = appendToOutbox(ADDED_OP, listId, patientIds);
+      // This is done before the additions can be flushed, such that a rejection is undone after.
+      membershipCache.putAll(listId, patientIds, true);
+      if (membershipIndex != null) {
+        patientIds.forEach(patientId -> membershipIndex.addPatient(listId, patientId));
+      }
+      Set<String> listPending = pending.computeIfAbsent(listId, id -> new LinkedHashSet<>());
+      listPending.addAll(patientIds);
+      batchFull = listPending.size() >= maxBatchSize;
+    } finally {
+      lock.unlock();
+    }
+    // Note a flush may send these additions before they are synced; the outbox is only truncated
+    // once they are done, hence they are either recovered or already applied.
+    syncOutbox(appendCount);
+    ScheduledExecutorService currentExecutor = executor;
+    if (batchFull && currentExecutor != null) {
+      currentExecutor.execute(this::flushOrLog);
+    }
+  }
+
+  @VisibleForTesting
+  int getPendingCount() {
+    lock.lock();
+    try {
+      return pending.values().stream().mapToInt(Set::size).sum();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void flushOrLog() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      // Note an exception should not escape, otherwise the scheduled flush is cancelled.
+      logger.error("Failed to flush access list updates; will retry.", e);
+    }
+  }
+
+  /**
+   * Sends one patch per list with up to the max batch size of the queued patients; the lists whose
+   * last patch failed are skipped until their retry time. This is usually only called from the
+   * single background thread; concurrent calls, e.g., from the shutdown hook, take disjoint
+   * batches.
+   */
+  @VisibleForTesting
+  void flush() {
+    Map<String, List<String>> batches = new LinkedHashMap<>();
+    Instant now = clock.instant();
+    lock.lock();
+    try {
+      for (Map.Entry<String, Set<String>> listPending : pending.entrySet()) {
+        RetryBackoff retry = retries.get(listPending.getKey());
+        if (retry != null && now.isBefore(retry.retryAt)) {
+          continue;
+        }
+        batches.put(
+            listPending.getKey(),
+            ImmutableList.copyOf(Iterables.limit(listPending.getValue(), maxBatchSize)));
+      }
+      for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+        Set<String> listPending = pending.get(batch.getKey());
+        listPending.removeAll(batch.getValue());
+        if (listPending.isEmpty()) {
+          pending.remove(batch.getKey());
+        }
+      }
+      inFlightBatches += batches.size();
+    } finally {
+      lock.unlock();
+    }
+    for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+      String listId = batch.getKey();
+      List<String> rejected = new ArrayList<>();
+      List<String> failed = new ArrayList<>();
+      patchListOrSplit(listId, batch.getValue(), rejected, failed);
+      if (!rejected.isEmpty()) {
+        forgetMembers(listId, rejected);
+      }
+      lock.lock();
+      try {
+        inFlightBatches--;
+        List<String> done = new ArrayList<>(batch.getValue());
+        done.removeAll(failed);
+        if (!done.isEmpty()) {
+          appendToOutboxOrLog(DONE_OP, listId, done);
+        }
+        if (failed.isEmpty()) {
+          retries.remove(listId);
+        } else {
+          pending.computeIfAbsent(listId, id -> new LinkedHashSet<>()).addAll(failed);
+          RetryBackoff retry = RetryBackoff.after(retries.get(listId), clock.instant());
+          retries.put(listId, retry);
+          logger.warn("Retrying the update of access list {} at {}.", listId, retry.retryAt);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    lock.lock();
+    try {
+      if (pending.isEmpty() && inFlightBatches == 0) {
+        truncateOutboxOrLog();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Patches the list to add the patients; if the FHIR store rejects the patch, the patients are
+   * split in halves and each half is patched separately, such that only the patients that are
+   * rejected on their own are added to `rejected`. Once a patch fails, the patients of that patch
+   * and the remaining ones are added to `failed` without sending them.
+   */
+  private void patchListOrSplit(
+      String listId, List<String> patientIds, List<String> rejected, List<String> failed) {
+    if (!failed.isEmpty()) {
+      failed.addAll(patientIds);
+      return;
+    }
+    switch (patchList(listId, patientIds)) {
+      case APPLIED:
+        return;
+      case FAILED:
+        failed.addAll(patientIds);
+        return;
+      case REJECTED:
+        if (patientIds.size() == 1) {
+          logger.error(
+              "Access list {} rejected adding patient {}; dropping it.", listId, patientIds.get(0));
+          rejected.addAll(patientIds);
+          return;
+        }
+        int half = patientIds.size() / 2;
+        patchListOrSplit(listId, patientIds.subList(0, half), rejected, failed);
+        patchListOrSplit(listId, patientIds.subList(half, patientIds.size()), rejected, failed);
+    }
+  }
+
+  private enum PatchResult {
+    APPLIED,
+    // The FHIR store rejected the patch as invalid; it is not retried as is.
+    REJECTED,
+    // The patch should be retried.
+    FAILED
+  }
+
+  /**
+   * Undoes treating the patients as members of the list, once adding them is rejected. The list is
+   * evicted from the index, hence reloaded from the FHIR store on next use, since some of these
+   * patients may have been members already.
+   */
+  private void forgetMembers(String listId, List<String> patientIds) {
+    for (String patientId : patientIds) {
+      membershipCache.invalidate(listId, patientId);
+    }
+    if (membershipIndex != null) {
+      membershipIndex.invalidate(listId);
+    }
+  }
+
+  /** Sends a patch to add the patients to the list. */
+  private PatchResult patchList(String listId, List<String> patientIds) {
+    // TODO create this with HAPI client instead of handcrafting; see:
+    //   https://github.com/google/fhir-access-proxy/issues/65
+    JsonArray jsonPatch = new JsonArray();
+    for (String patientId : patientIds) {
+      JsonObject item = new JsonObject();
+      item.addProperty("reference", "Patient/" + patientId);
+      JsonObject entry = new JsonObject();
+      entry.add("item", item);
+      JsonObject operation = new JsonObject();
+      operation.addProperty("op", "add");
+      operation.addProperty("path", "/entry/-");
+      operation.add("value", entry);
+      jsonPatch.add(operation);
+    }
+    String resourcePath = String.format("List/%s", PARAM_ESCAPER.escape(listId));
+    logger.info("Adding {} patients to access list {}", patientIds.size(), listId);
+    try {
+      HttpResponse response = httpFhirClient.patchResource(resourcePath, jsonPatch.toString());
+      if (HttpUtil.isResponseValid(response)) {
+        return PatchResult.APPLIED;
+      }
+      int status = response.getStatusLine().getStatusCode();
+      if (isRejection(status)) {
+        logger.warn(
+            "Access list {} rejected adding {} patients with status {}.",
+            listId,
+            patientIds.size(),
+            status);
+        return PatchResult.REJECTED;
+      }
+      logger.error("Failed to update access list {} with status {}; will retry.", listId, status);
+    } catch (IOException | RuntimeException e) {
+      logger.error("Failed to update access list " + listId + "; will retry.", e);
+    }
+    return PatchResult.FAILED;
+  }
+
+  /**
+   * Returns whether the status means the patch itself is invalid. Note conflicts and failed
+   * preconditions are transient, e.g., when concurrent writers race to update the same list.
+   */
+  private static boolean isRejection(int status) {
+    return status >= 400
+        && status < 500
+        && status != HttpStatus.SC_REQUEST_TIMEOUT
+        && status != HttpStatus.SC_CONFLICT
+        && status != HttpStatus.SC_PRECONDITION_FAILED
+        && status != SC_TOO_MANY_REQUESTS;
+  }
+
+  /** The retry time of a list after consecutive failed patches; it is immutable. */
+  private static class RetryBackoff {
+    private final int failures;
+    private final Instant retryAt;
+
+    private RetryBackoff(int failures, Instant retryAt) {
+      this.failures = failures;
+      this.retryAt = retryAt;
+    }
+
+    /** Returns the backoff after another failure, doubling the delay up to the max. */
+    private static RetryBackoff after(@Nullable RetryBackoff previous, Instant now) {
+      int failures = previous == null ? 1 : previous.failures + 1;
+      // The shift is capped to not overflow; the delay is capped by the max anyway.
+      Duration delay = MIN_RETRY_BACKOFF.multipliedBy(1L << Math.min(failures - 1, 20));
+      if (delay.compareTo(MAX_RETRY_BACKOFF) > 0) {
+        delay = MAX_RETRY_BACKOFF;
+      }
+      return new RetryBackoff(failures, now.plus(delay));
+    }
+  }
+
+  private void recoverOutbox(Path path) throws IOException {
+    if (Files.exists(path)) {
+      String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+      // A record without its line end was not acknowledged, i.e., it was cut by a crash.
+      String complete = content.substring(0, content.lastIndexOf('\n') + 1);
+      for (String line : Splitter.on('\n').omitEmptyStrings().split(complete)) {
+        List<String> fields = Splitter.on(FIELD_SEPARATOR).splitToList(line);
+        if (fields.size() != 3) {
+          logger.warn("Ignoring the invalid access list outbox record {}", line);
+          continue;
+        }
+        String listId = fields.get(1);
+        String patientId = fields.get(2);
+        if (ADDED_OP.equals(fields.get(0))) {
+          pending.computeIfAbsent(listId, id -> new LinkedHashSet<>()).add(patientId);
+        } else if (pending.containsKey(listId)) {
+          pending.get(listId).remove(patientId);
+          if (pending.get(listId).isEmpty()) {
+            pending.remove(listId);
+          }
+        }
+      }
+    }
+    // The outbox is compacted to the pending additions, and replaced atomically.
+    Path compactedPath = path.resolveSibling(path.getFileName() + ".tmp");
+    StringBuilder compacted = new StringBuilder();
+    for (Map.Entry<String, Set<String>> listPending : pending.entrySet()) {
+      for (String patientId : listPending.getValue()) {
+        compacted.append(record(ADDED_OP, listPending.getKey(), patientId));
+      }
+    }
+    Files.write(compactedPath, compacted.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(
+        compactedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    outbox =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    if (!pending.isEmpty()) {
+      logger.info("Recovered {} pending access list additions from {}", getPendingCount(), path);
+    }
+  }
+
+  private static String record(String op, String listId, String patientId) {
+    return op + FIELD_SEPARATOR + listId + FIELD_SEPARATOR + patientId + '\n';
+  }
+
+  /**
+   * Appends the records to the outbox without syncing it to disk; returns the append count to pass
+   * to `syncOutbox`. Must be called while holding `lock`.
+   */
+  private long appendToOutbox(String op, String listId, Collection<String> patientIds)
+      throws IOException {
+    if (outbox == null) {
+      return 0;
+    }
+    StringBuilder records = new StringBuilder();
+    for (String patientId : patientIds) {
+      Preconditions.checkArgument(
+          patientId.indexOf(FIELD_SEPARATOR) < 0 && patientId.indexOf('\n') < 0,
+          "Invalid patient ID %s",
+          patientId);
+      records.append(record(op, listId, patientId));
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      outbox.write(buffer);
+    }
+    return ++outboxAppendCount;
+  }
+
+  /**
+   * Syncs the outbox to disk up to the given append count (group commit): the caller that gets
+   * `outboxSyncLock` syncs all appends so far, hence the callers that waited for it usually find
+   * their appends synced already. Must not be called while holding `lock`.
+   */
+  private void syncOutbox(long appendCount) throws IOException {
+    if (outbox == null) {
+      return;
+    }
+    outboxSyncLock.lock();
+    try {
+      if (outboxSyncedCount >= appendCount) {
+        return;
+      }
+      long syncedCount = outboxAppendCount;
+      outbox.force(false);
+      outboxSyncedCount = syncedCount;
+    } finally {
+      outboxSyncLock.unlock();
+    }
+  }
+
+  // Must be called while holding `lock`. The done records are not synced; at worst, the patients
+  // are added again after a crash.
+  private void appendToOutboxOrLog(String op, String listId, Collection<String> patientIds) {
+    try {
+      appendToOutbox(op, listId, patientIds);
+    } catch (IOException e) {
+      // At worst these patients are added again after a restart.
+      logger.error("Failed to record access list updates in " + outboxPath, e);
+    }
+  }
+
+  // Must be called while holding `lock`; only when nothing is pending or in flight. This is not
+  // synced either since, if the truncation is lost, the done records cancel the added ones.
+  private void truncateOutboxOrLog() {
+    if (outbox == null) {
+      return;
+    }
+    try {
+      if (outbox.size() > 0) {
+        outbox.truncate(0);
+      }
+    } catch (IOException e) {
+      logger.error("Failed to truncate the access list outbox " + outboxPath, e);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of patient IDs stored as a sorted array of the ordinals of the IDs in a shared
+ * {@link PatientIdDictionary}; each member takes four bytes. This is meant for large sets that live
+ * long, e.g., the patients of cached access lists, not for short-lived per-request sets.
+ */
+class CompactPatientIdSet {
+
+  private static final int[] NO_ORDINALS = new int[0];
+
+  private final PatientIdDictionary dictionary;
+  private final int[] sortedOrdinals;
+
+  private CompactPatientIdSet(PatientIdDictionary dictionary, int[] sortedOrdinals) {
+    this.dictionary = dictionary;
+    this.sortedOrdinals = sortedOrdinals;
+  }
+
+  static CompactPatientIdSet empty(PatientIdDictionary dictionary) {
+    return new CompactPatientIdSet(dictionary, NO_ORDINALS);
+  }
+
+  static CompactPatientIdSet copyOf(PatientIdDictionary dictionary, Collection<String> patientIds) {
+    int[] ordinals = new int[patientIds.size()];
+    int i = 0;
+    for (String patientId : patientIds) {
+      ordinals[i++] = dictionary.intern(patientId);
+    }
+    Arrays.sort(ordinals);
+    return new CompactPatientIdSet(dictionary, dedupSorted(ordinals));
+  }
+
+  private static int[] dedupSorted(int[] sorted) {
+    int size = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (size == 0 || sorted[size - 1] != sorted[i]) {
+        sorted[size++] = sorted[i];
+      }
+    }
+    return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+  }
+
+  int size() {
+    return sortedOrdinals.length;
+  }
+
+  boolean isEmpty() {
+    return sortedOrdinals.length == 0;
+  }
+
+  boolean contains(String patientId) {
+    int ordinal = dictionary.ordinalOf(patientId);
+    return ordinal != PatientIdDictionary.NOT_FOUND
+        && Arrays.binarySearch(sortedOrdinals, ordinal) >= 0;
+  }
+
+  /** Returns true iff at least one of the given patients is in this set; false if none is given. */
+  boolean containsAny(Collection<String> patientIds) {
+    for (String patientId : patientIds) {
+      if (contains(patientId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns true iff all the given patients are in this set; false if none is given. */
+  boolean containsAll(Collection<String> patientIds) {
+    if (patientIds.isEmpty()) {
+      return false;
+    }
+    for (String patientId : patientIds) {
+      if (!contains(patientId)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns a set with the given patient added; this set itself is not changed. */
+  CompactPatientIdSet with(String patientId) {
+    int ordinal = dictionary.intern(patientId);
+    int index = Arrays.binarySearch(sortedOrdinals, ordinal);
+    if (index >= 0) {
+      return this;
+    }
+    int insertionPoint = -index - 1;
+    int[] newOrdinals = new int[sortedOrdinals.length + 1];
+    System.arraycopy(sortedOrdinals, 0, newOrdinals, 0, insertionPoint);
+    newOrdinals[insertionPoint] = ordinal;
+    System.arraycopy(
+        sortedOrdinals,
+        insertionPoint,
+        newOrdinals,
+        insertionPoint + 1,
+        sortedOrdinals.length - insertionPoint);
+    return new CompactPatientIdSet(dictionary, newOrdinals);
+  }
+
+  /**
+   * Returns this set encoded with the given dictionary, e.g., when a dictionary with many IDs that
+   * are not in any set anymore is replaced; this set itself is not changed.
+   */
+  CompactPatientIdSet withDictionary(PatientIdDictionary newDictionary) {
+    if (newDictionary == dictionary) {
+      return this;
+    }
+    int[] ordinals = new int[sortedOrdinals.length];
+    for (int i = 0; i < sortedOrdinals.length; i++) {
+      ordinals[i] = newDictionary.intern(dictionary.idOf(sortedOrdinals[i]));
+    }
+    Arrays.sort(ordinals);
+    return new CompactPatientIdSet(newDictionary, ordinals);
+  }
+}
@@ -20,15 +20,21 @@ import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Sets;
 import com.google.common.escape.Escaper;
 import com.google.common.net.UrlEscapers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.fhir.gateway.BundlePatients;
 import com.google.fhir.gateway.BundlePatients.BundlePatientsBuilder;
+import com.google.fhir.gateway.EnvUtil;
 import com.google.fhir.gateway.FhirUtil;
 import com.google.fhir.gateway.HttpFhirClient;
 import com.google.fhir.gateway.HttpUtil;
 import com.google.fhir.gateway.JwtUtil;
+import com.google.fhir.gateway.LookupCoalescer;
+import com.google.fhir.gateway.VirtualThreadUtil;
 import com.google.fhir.gateway.interfaces.AccessChecker;
 import com.google.fhir.gateway.interfaces.AccessCheckerFactory;
 import com.google.fhir.gateway.interfaces.AccessDecision;
@@ -36,15 +42,30 @@ import com.google.fhir.gateway.interfaces.NoOpAccessDecision;
 import com.google.fhir.gateway.interfaces.PatientFinder;
 import com.google.fhir.gateway.interfaces.RequestDetailsReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import javax.inject.Named;
 import org.apache.http.HttpResponse;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,21 +77,43 @@ import org.slf4j.LoggerFactory;
 public class ListAccessChecker implements AccessChecker {
 
   private static final Logger logger = LoggerFactory.getLogger(ListAccessChecker.class);
+  private static final String PATIENT_REFERENCE_PREFIX = "Patient/";
+  // Limits for each `Patient?_id=...` search, to stay under the URL length limits of servers.
+  @VisibleForTesting static final int MAX_IDS_PER_SEARCH = 100;
+  @VisibleForTesting static final int MAX_IDS_PARAM_LENGTH = 2000;
   private final FhirContext fhirContext;
   private final HttpFhirClient httpFhirClient;
   private final String patientListId;
   private final PatientFinder patientFinder;
+  private final ListMembershipCache membershipCache;
+  @Nullable private final ListMembershipIndex membershipIndex;
+  private final PatientExistenceCache existenceCache;
+  private final LookupCoalescer<String, Boolean> listSearchCoalescer;
+  private final AccessListUpdater listUpdater;
+  private final Executor lookupExecutor;
   private final Escaper PARAM_ESCAPER = UrlEscapers.urlFormParameterEscaper();
 
   private ListAccessChecker(
       HttpFhirClient httpFhirClient,
       String patientListId,
       FhirContext fhirContext,
-      PatientFinder patientFinder) {
+      PatientFinder patientFinder,
+      ListMembershipCache membershipCache,
+      @Nullable ListMembershipIndex membershipIndex,
+      PatientExistenceCache existenceCache,
+      LookupCoalescer<String, Boolean> listSearchCoalescer,
+      AccessListUpdater listUpdater,
+      Executor lookupExecutor) {
     this.fhirContext = fhirContext;
     this.httpFhirClient = httpFhirClient;
     this.patientListId = patientListId;
     this.patientFinder = patientFinder;
+    this.membershipCache = membershipCache;
+    this.membershipIndex = membershipIndex;
+    this.existenceCache = existenceCache;
+    this.listSearchCoalescer = listSearchCoalescer;
+    this.listUpdater = listUpdater;
+    this.lookupExecutor = lookupExecutor;
   }
 
   /**
@@ -78,10 +121,11 @@ public class ListAccessChecker implements AccessChecker {
    *
    * @param itemsParam resources to search for in the list. Must start with "item=". It is assumed
    *     that this is properly escaped to be added to the URL string.
+   * @param patientClauses the patient IDs in each `item` parameter; used for caching the outcome.
    * @return the outcome of access checking. Returns false if no parameter is provided, or if the
    *     parameter does not start with "item=", or if the query does not return exactly one match.
    */
-  private boolean listIncludesItems(String itemsParam) {
+  private boolean listIncludesItems(String itemsParam, List<Set<String>> patientClauses) {
     Preconditions.checkArgument(itemsParam.startsWith("item="));
     if (itemsParam.equals("item=")) {
       return false;
@@ -93,11 +137,18 @@ public class ListAccessChecker implements AccessChecker {
             "/List?_id=%s&_elements=id&%s", PARAM_ESCAPER.escape(this.patientListId), itemsParam);
     logger.debug("Search query for patient access authorization check is: {}", searchQuery);
     try {
-      HttpResponse httpResponse = httpFhirClient.getResource(searchQuery);
-      HttpUtil.validateResponseEntityOrFail(httpResponse, searchQuery);
-      Bundle bundle = FhirUtil.parseResponseToBundle(fhirContext, httpResponse);
-      // We expect exactly one result which is `patientListId`.
-      return bundle.getTotal() == 1;
+      // Parallel requests of the same user usually check the same patients at the same time.
+      return listSearchCoalescer.lookup(
+          searchQuery,
+          () -> {
+            HttpResponse httpResponse = httpFhirClient.getResource(searchQuery);
+            HttpUtil.validateResponseEntityOrFail(httpResponse, searchQuery);
+            Bundle bundle = FhirUtil.parseResponseToBundle(fhirContext, httpResponse);
+            // We expect exactly one result which is `patientListId`.
+            boolean includesItems = bundle.getTotal() == 1;
+            cacheMembership(patientClauses, includesItems);
+            return includesItems;
+          });
     } catch (IOException e) {
       logger.error("Exception while accessing " + searchQuery, e);
     }
@@ -112,11 +163,20 @@ public class ListAccessChecker implements AccessChecker {
     if (patientIds == null || patientIds.isEmpty()) {
       return false;
     }
+    Set<String> patientClause = nonEmptyIds(patientIds);
+    Boolean indexedResult = indexedListIncludesAll(List.of(patientClause));
+    if (indexedResult != null) {
+      return indexedResult;
+    }
+    Boolean cachedResult = cachedListIncludesAny(patientClause);
+    if (cachedResult != null) {
+      return cachedResult;
+    }
     // TODO consider using the HAPI FHIR client instead; see:
     //   https://github.com/google/fhir-access-proxy/issues/65.
     String patientParam =
         queryBuilder(patientIds, PARAM_ESCAPER.escape("Patient/"), PARAM_ESCAPER.escape(","));
-    return listIncludesItems("item=" + patientParam);
+    return listIncludesItems("item=" + patientParam, List.of(patientClause));
   }
 
   // Returns true iff all the patient IDs are found in the associated list.
@@ -126,24 +186,229 @@ public class ListAccessChecker implements AccessChecker {
     if (patientIds == null || patientIds.isEmpty()) {
       return false;
     }
-    String patientParam = queryBuilder(patientIds, "item=", "&");
-    return listIncludesItems(patientParam);
+    Boolean indexedResult =
+        indexedListIncludesAll(
+            patientIds.stream()
+                .map(ListAccessChecker::patientIdsInQuery)
+                .collect(Collectors.toList()));
+    if (indexedResult != null) {
+      return indexedResult;
+    }
+    // Each query is an OR of patients and the list should satisfy all of them; the queries that are
+    // satisfied according to the membership cache are not sent to the FHIR store.
+    Set<String> uncachedQueries = Sets.newLinkedHashSet();
+    List<Set<String>> uncachedClauses = new ArrayList<>();
+    for (String patientQuery : patientIds) {
+      Set<String> patientClause = patientIdsInQuery(patientQuery);
+      Boolean cachedResult = cachedListIncludesAny(patientClause);
+      if (Boolean.FALSE.equals(cachedResult)) {
+        return false;
+      }
+      if (cachedResult == null) {
+        uncachedQueries.add(patientQuery);
+        uncachedClauses.add(patientClause);
+      }
+    }
+    if (uncachedQueries.isEmpty()) {
+      return true;
+    }
+    String patientParam = queryBuilder(uncachedQueries, "item=", "&");
+    return listIncludesItems(patientParam, uncachedClauses);
+  }
+
+  private static Set<String> nonEmptyIds(Set<String> patientIds) {
+    return patientIds.stream()
+        .filter(Objects::nonNull)
+        .filter(Predicate.not(String::isEmpty))
+        .collect(Collectors.toSet());
+  }
+
+  // Returns the patient IDs in a query like "Patient/a,Patient/b"; if a part of the query is not a
+  // patient reference, an empty set is returned, i.e., the query cannot be answered from the cache.
+  private static Set<String> patientIdsInQuery(String patientQuery) {
+    Set<String> patientIds = Sets.newHashSet();
+    for (String reference : Splitter.on(',').omitEmptyStrings().split(patientQuery)) {
+      if (!reference.startsWith(PATIENT_REFERENCE_PREFIX)
+          || reference.length() == PATIENT_REFERENCE_PREFIX.length()) {
+        return Collections.emptySet();
+      }
+      patientIds.add(reference.substring(PATIENT_REFERENCE_PREFIX.length()));
+    }
+    return patientIds;
+  }
+
+  /**
+   * Returns whether the list includes at least one patient of each clause according to the local
+   * List index; null if the index is not enabled or cannot answer.
+   */
+  @Nullable
+  private Boolean indexedListIncludesAll(List<Set<String>> patientClauses) {
+    if (membershipIndex == null || patientClauses.stream().anyMatch(Set::isEmpty)) {
+      return null;
+    }
+    CompactPatientIdSet listPatients = membershipIndex.getPatients(patientListId);
+    if (listPatients == null) {
+      return null;
+    }
+    return patientClauses.stream().allMatch(listPatients::containsAny);
+  }
+
+  /**
+   * Returns true if the membership cache has at least one of the patients as a member of the list,
+   * false if it has all of them as non-members, and null otherwise.
+   */
+  @Nullable
+  private Boolean cachedListIncludesAny(Set<String> patientClause) {
+    if (patientClause.isEmpty()) {
+      return null;
+    }
+    boolean allNonMembers = true;
+    for (String patientId : patientClause) {
+      Boolean isMember = membershipCache.isMember(patientListId, patientId);
+      if (Boolean.TRUE.equals(isMember)) {
+        return true;
+      }
+      if (isMember == null) {
+        allNonMembers = false;
+      }
+    }
+    return allNonMembers ? false : null;
+  }
+
+  // Caches what can be inferred from the outcome of a list search for all `patientClauses`: if the
+  // list includes all of them, the patient of each single-patient clause is a member; otherwise, if
+  // there is only one clause, none of its patients are members.
+  private void cacheMembership(List<Set<String>> patientClauses, boolean includesAll) {
+    if (includesAll) {
+      for (Set<String> patientClause : patientClauses) {
+        if (patientClause.size() == 1) {
+          membershipCache.putAll(patientListId, patientClause, true);
+        }
+      }
+    } else if (patientClauses.size() == 1) {
+      membershipCache.putAll(patientListId, patientClauses.get(0), false);
+    }
   }
 
   private boolean patientsExist(String patientId) throws IOException {
+    return existingPatients(Set.of(patientId)).contains(patientId);
+  }
+
+  /**
+   * Returns the subset of the given patients that exist in the FHIR store; only the patients that
+   * are not in the existence cache are searched and the outcome is cached.
+   */
+  private Set<String> existingPatients(Set<String> patientIds) throws IOException {
+    Set<String> existingIds = Sets.newHashSet();
+    Set<String> uncachedIds = Sets.newHashSet();
+    for (String patientId : patientIds) {
+      Boolean exists = existenceCache.exists(patientId);
+      if (exists == null) {
+        uncachedIds.add(patientId);
+      } else if (exists) {
+        existingIds.add(patientId);
+      }
+    }
+    if (!uncachedIds.isEmpty()) {
+      Set<String> foundIds = searchExistingPatients(uncachedIds);
+      existenceCache.putAll(foundIds, true);
+      existenceCache.putAll(Sets.difference(uncachedIds, foundIds), false);
+      existingIds.addAll(foundIds);
+    }
+    return existingIds;
+  }
+
+  /**
+   * Searches the given patients in the FHIR store and returns the ones that exist. The IDs are
+   * searched in chunks, i.e., `Patient?_id=a,b,c`, such that the search URLs stay under common
+   * length limits.
+   */
+  private Set<String> searchExistingPatients(Set<String> patientIds) throws IOException {
     // TODO consider using the HAPI FHIR client instead; see:
     //   https://github.com/google/fhir-access-proxy/issues/65
-    String searchQuery =
-        String.format("/Patient?_id=%s&_elements=id", PARAM_ESCAPER.escape(patientId));
-    HttpResponse response = httpFhirClient.getResource(searchQuery);
-    Bundle bundle = FhirUtil.parseResponseToBundle(fhirContext, response);
-    if (bundle.getTotal() > 1) {
-      logger.error(
+    Set<String> existingIds = Sets.newHashSet();
+    for (List<String> chunk : chunkPatientIds(patientIds)) {
+      String searchQuery =
           String.format(
-              "%s patients with the same ID of one of ths %s returned from the FHIR store.",
-              bundle.getTotal(), patientId));
+              "/Patient?_id=%s&_elements=id&_count=%d",
+              chunk.stream().map(PARAM_ESCAPER::escape).collect(Collectors.joining(",")),
+              chunk.size());
+      // The `_count` should prevent paging but a server may use a smaller max page size.
+      while (searchQuery != null) {
+        HttpResponse response = httpFhirClient.getResource(searchQuery);
+        Bundle bundle = FhirUtil.parseResponseToBundle(fhirContext, response);
+        for (BundleEntryComponent entry : bundle.getEntry()) {
+          if (entry.getResource() != null
+              && FhirUtil.isSameResourceType(entry.getResource().fhirType(), ResourceType.Patient)
+              && chunk.contains(entry.getResource().getIdElement().getIdPart())) {
+            existingIds.add(entry.getResource().getIdElement().getIdPart());
+          }
+        }
+        searchQuery = nextPageOrNull(bundle);
+      }
+    }
+    return existingIds;
+  }
+
+  @Nullable
+  private String nextPageOrNull(Bundle bundle) throws IOException {
+    Bundle.BundleLinkComponent next = bundle.getLink(Bundle.LINK_NEXT);
+    if (next == null || next.getUrl() == null) {
+      return null;
+    }
+    String path = httpFhirClient.getResourcePathForUrl(next.getUrl());
+    if (path == null) {
+      // Missing an existing patient would make an update look like a create; so fail instead.
+      throw new IOException(
+          String.format("The next page %s of the search is not on the FHIR store.", next.getUrl()));
+    }
+    return path;
+  }
+
+  /** Splits the sorted IDs into chunks with bounded number of IDs and search param length. */
+  private List<List<String>> chunkPatientIds(Set<String> patientIds) {
+    List<List<String>> chunks = new ArrayList<>();
+    List<String> chunk = new ArrayList<>();
+    int paramLength = 0;
+    for (String patientId : Sets.newTreeSet(patientIds)) {
+      int idLength = PARAM_ESCAPER.escape(patientId).length() + 1;
+      boolean chunkFull =
+          chunk.size() >= MAX_IDS_PER_SEARCH || paramLength + idLength > MAX_IDS_PARAM_LENGTH;
+      if (!chunk.isEmpty() && chunkFull) {
+        chunks.add(chunk);
+        chunk = new ArrayList<>();
+        paramLength = 0;
+      }
+      chunk.add(patientId);
+      paramLength += idLength;
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  private Set<String> existingPatientsUnchecked(Set<String> patientIds) {
+    try {
+      return existingPatients(patientIds);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static <T> T getOrRethrow(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the FHIR store", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
     }
-    return (bundle.getTotal() > 0);
   }
 
   /**
@@ -200,7 +465,7 @@ public class ListAccessChecker implements AccessChecker {
     // We have decided to let clients add new patients while understanding its security risks.
     if (FhirUtil.isSameResourceType(requestDetails.getResourceName(), ResourceType.Patient)) {
       return AccessGrantedAndUpdateList.forPatientResource(
-          patientListId, httpFhirClient, fhirContext);
+          patientListId, existenceCache, listUpdater);
     }
     Set<String> patientIds = patientFinder.findPatientsInResource(requestDetails);
     return new NoOpAccessDecision(serverListIncludesAnyPatient(patientIds));
@@ -211,7 +476,7 @@ public class ListAccessChecker implements AccessChecker {
       AccessDecision accessDecision = checkPatientAccessInUpdate(requestDetails);
       if (accessDecision == null) {
         return AccessGrantedAndUpdateList.forPatientResource(
-            patientListId, httpFhirClient, fhirContext);
+            patientListId, existenceCache, listUpdater);
       }
       return accessDecision;
     }
@@ -309,18 +574,18 @@ public class ListAccessChecker implements AccessChecker {
 
     if (putPatientIds.isEmpty()) {
       return AccessGrantedAndUpdateList.forBundle(
-          patientListId, httpFhirClient, fhirContext, Sets.newHashSet());
+          patientListId, existenceCache, listUpdater, Sets.newHashSet());
     } else {
       return AccessGrantedAndUpdateList.forBundle(
-          patientListId, httpFhirClient, fhirContext, putPatientIds);
+          patientListId, existenceCache, listUpdater, putPatientIds);
     }
   }
 
   @Nullable
   private BundlePatients createBundlePatients(RequestDetailsReader requestDetails)
       throws IOException {
-    Bundle requestBundle = FhirUtil.parseRequestToBundle(fhirContext, requestDetails);
-    BundlePatients patientsInBundleUnfiltered = patientFinder.findPatientsInBundle(requestBundle);
+    BundlePatients patientsInBundleUnfiltered =
+        patientFinder.findPatientsInBundle(requestDetails, entryComponent -> {});
 
     if (patientsInBundleUnfiltered == null) {
       return null;
@@ -329,24 +594,45 @@ public class ListAccessChecker implements AccessChecker {
     BundlePatientsBuilder builder = new BundlePatientsBuilder();
     builder.setPatientCreationFlag(patientsInBundleUnfiltered.areTherePatientToCreate());
 
-    Set<String> patientsToCreate = Sets.newHashSet();
-    Set<String> patientsToUpdate = Sets.newHashSet();
-    Set<String> patientsToDelete = patientsInBundleUnfiltered.getDeletedPatients();
+    Set<String> updatedPatients = patientsInBundleUnfiltered.getUpdatedPatients();
+    // The existence of updated patients is searched concurrently with checking the list, assuming
+    // they all exist, which is the common case. If some are new, fewer patients need to be in the
+    // list; so only a negative outcome needs a second check.
+    Future<Set<String>> existingPatientsFuture =
+        updatedPatients.isEmpty()
+            ? CompletableFuture.completedFuture(Set.of())
+            : CompletableFuture.supplyAsync(
+                () -> existingPatientsUnchecked(updatedPatients), lookupExecutor);
+    Set<String> assumedQueries =
+        patientQueries(patientsInBundleUnfiltered, Set.of(), updatedPatients);
+    boolean assumedIncluded =
+        assumedQueries.isEmpty() || serverListIncludesAllPatients(assumedQueries);
+
+    Set<String> patientsToUpdate = getOrRethrow(existingPatientsFuture);
+    Set<String> patientsToCreate = Sets.difference(updatedPatients, patientsToUpdate);
+    if (!patientsToCreate.isEmpty()) {
+      builder.setPatientCreationFlag(true);
+    }
 
-    for (String patientId : patientsInBundleUnfiltered.getUpdatedPatients()) {
-      if (!patientsExist(patientId)) {
-        patientsToCreate.add(patientId);
-      } else {
-        patientsToUpdate.add(patientId);
+    if (!assumedIncluded) {
+      Set<String> patientQueries =
+          patientQueries(patientsInBundleUnfiltered, patientsToCreate, patientsToUpdate);
+      if (patientsToCreate.isEmpty()
+          || (!patientQueries.isEmpty() && !serverListIncludesAllPatients(patientQueries))) {
+        logger.error("Reference Patients not in List!");
+        return null;
       }
     }
 
-    if (!patientsToCreate.isEmpty()) {
-      builder.setPatientCreationFlag(true);
-    }
+    return builder.addUpdatePatients(patientsToUpdate).build();
+  }
 
+  /** Returns the `item` queries for the patients that should be in the list for the Bundle. */
+  private Set<String> patientQueries(
+      BundlePatients bundlePatients, Set<String> patientsToCreate, Set<String> patientsToUpdate) {
+    Set<String> patientsToDelete = bundlePatients.getDeletedPatients();
     Set<String> patientQueries = Sets.newHashSet();
-    for (Set<String> patientRefSet : patientsInBundleUnfiltered.getReferencedPatients()) {
+    for (Set<String> patientRefSet : bundlePatients.getReferencedPatients()) {
       if (Collections.disjoint(patientRefSet, patientsToCreate)
           && Collections.disjoint(patientRefSet, patientsToDelete)) {
         String orQuery = queryBuilder(patientRefSet, "Patient/", ",");
@@ -354,26 +640,16 @@ public class ListAccessChecker implements AccessChecker {
       }
     }
 
-    if (!patientsToUpdate.isEmpty()) {
-      for (String eachPatient : patientsToUpdate) {
-        String andQuery = String.format("Patient/%s", eachPatient);
-        patientQueries.add(andQuery);
-      }
-    }
-
-    if (!patientsToDelete.isEmpty()) {
-      for (String eachPatient : patientsToDelete) {
-        String andQuery = String.format("Patient/%s", eachPatient);
-        patientQueries.add(andQuery);
-      }
+    for (String eachPatient : patientsToUpdate) {
+      String andQuery = String.format("Patient/%s", eachPatient);
+      patientQueries.add(andQuery);
     }
 
-    if (!patientQueries.isEmpty() && !serverListIncludesAllPatients(patientQueries)) {
-      logger.error("Reference Patients not in List!");
-      return null;
+    for (String eachPatient : patientsToDelete) {
+      String andQuery = String.format("Patient/%s", eachPatient);
+      patientQueries.add(andQuery);
     }
-
-    return builder.addUpdatePatients(patientsToUpdate).build();
+    return patientQueries;
   }
 
   private String queryBuilder(Set<String> patientSet, String prefix, String delimiter) {
@@ -385,14 +661,80 @@ public class ListAccessChecker implements AccessChecker {
   }
 
   @Named(value = "list")
-  public static class Factory implements AccessCheckerFactory {
+  public static class Factory implements AccessCheckerFactory, AutoCloseable {
 
     @VisibleForTesting static final String PATIENT_LIST_CLAIM = "patient_list";
+    private static final String LOOKUP_THREADS_ENV = "LIST_ACCESS_LOOKUP_THREADS";
+    private static final int LOOKUP_THREADS_DEFAULT = 32;
+
+    // Note a single factory instance is used for all requests, hence these are shared among them.
+    private final ListMembershipCache membershipCache = ListMembershipCache.createFromEnvVars();
+    private final PatientExistenceCache existenceCache = PatientExistenceCache.createFromEnvVars();
+    private final LookupCoalescer<String, Boolean> listSearchCoalescer = new LookupCoalescer<>();
+    // Runs the FHIR store lookups that are done concurrently with other lookups of a request.
+    private final ExecutorService lookupExecutor = createLookupExecutor();
+    // These need the FHIR client, hence they are created on the first `create` call.
+    private final Lock fhirClientUsersLock = new ReentrantLock();
+    private volatile boolean fhirClientUsersInitialized = false;
+    @Nullable private volatile ListMembershipIndex membershipIndex;
+    private volatile AccessListUpdater listUpdater;
+
+    /**
+     * In the virtual-thread mode, each lookup runs on its own virtual thread. Otherwise, at most
+     * `LIST_ACCESS_LOOKUP_THREADS` lookups run in the background; beyond that, a lookup runs on the
+     * request thread, i.e., sequentially, rather than being queued.
+     */
+    private static ExecutorService createLookupExecutor() {
+      Optional<ExecutorService> virtualThreadExecutor =
+          VirtualThreadUtil.newVirtualThreadPerTaskExecutor();
+      if (virtualThreadExecutor.isPresent()) {
+        return virtualThreadExecutor.get();
+      }
+      int maxThreads = EnvUtil.getIntOrDefault(LOOKUP_THREADS_ENV, LOOKUP_THREADS_DEFAULT);
+      Preconditions.checkArgument(maxThreads > 0, "%s should be positive.", LOOKUP_THREADS_ENV);
+      return new ThreadPoolExecutor(
+          0,
+          maxThreads,
+          60,
+          TimeUnit.SECONDS,
+          new SynchronousQueue<>(),
+          new ThreadFactoryBuilder().setNameFormat("list-access-lookup-%d").setDaemon(true).build(),
+          // Unlike `CallerRunsPolicy`, this runs the task after shutdown too, hence a request never
+          // waits for a lookup that is dropped.
+          (task, executor) -> task.run());
+    }
+
+    /** Returns the number of List searches that were actually sent to the FHIR store. */
+    public long getListSearchCount() {
+      return listSearchCoalescer.getLookupCount();
+    }
+
+    /** Returns the number of List searches saved by sharing an identical in-flight search. */
+    public long getCoalescedListSearchCount() {
+      return listSearchCoalescer.getCoalescedCount();
+    }
 
     private String getListId(DecodedJWT jwt) {
       return FhirUtil.checkIdOrFail(JwtUtil.getClaimOrDie(jwt, PATIENT_LIST_CLAIM));
     }
 
+    private void initFhirClientUsers(HttpFhirClient httpFhirClient, FhirContext fhirContext) {
+      if (!fhirClientUsersInitialized) {
+        fhirClientUsersLock.lock();
+        try {
+          if (!fhirClientUsersInitialized) {
+            membershipIndex = ListMembershipIndex.createFromEnvVars(httpFhirClient, fhirContext);
+            listUpdater =
+                AccessListUpdater.createFromEnvVars(
+                    httpFhirClient, membershipCache, membershipIndex);
+            fhirClientUsersInitialized = true;
+          }
+        } finally {
+          fhirClientUsersLock.unlock();
+        }
+      }
+    }
+
     @Override
     public AccessChecker create(
         DecodedJWT jwt,
@@ -400,7 +742,31 @@ public class ListAccessChecker implements AccessChecker {
         FhirContext fhirContext,
         PatientFinder patientFinder) {
       String patientListId = getListId(jwt);
-      return new ListAccessChecker(httpFhirClient, patientListId, fhirContext, patientFinder);
+      initFhirClientUsers(httpFhirClient, fhirContext);
+      return new ListAccessChecker(
+          httpFhirClient,
+          patientListId,
+          fhirContext,
+          patientFinder,
+          membershipCache,
+          membershipIndex,
+          existenceCache,
+          listSearchCoalescer,
+          listUpdater,
+          lookupExecutor);
+    }
+
+    /**
+     * Logs the List search counts and stops the lookup threads; this is called by the container on
+     * shutdown.
+     */
+    @Override
+    public void close() {
+      logger.info(
+          "Sent {} List searches; {} more were shared with an identical in-flight search.",
+          getListSearchCount(),
+          getCoalescedListSearchCount());
+      lookupExecutor.shutdown();
     }
   }
 }
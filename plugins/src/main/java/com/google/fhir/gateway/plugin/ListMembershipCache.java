@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.fhir.gateway.EnvUtil;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Objects;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process cache of whether a patient is a member of an access list, i.e., whether the `List`
+ * resource with the given ID has an item referencing the patient. Member and non-member entries
+ * have separate TTLs; the non-member TTL is usually shorter since a patient can be added to a list
+ * through other paths than this proxy. When the proxy adds a patient to a list, the corresponding
+ * entry should be invalidated explicitly.
+ *
+ * <p>This class is thread-safe and is meant to be shared between all access-checkers of the same
+ * factory.
+ */
+class ListMembershipCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(ListMembershipCache.class);
+
+  private static final String MAX_SIZE_ENV = "LIST_MEMBERSHIP_CACHE_MAX_SIZE";
+  private static final String MEMBER_TTL_ENV = "LIST_MEMBERSHIP_CACHE_MEMBER_TTL_SECONDS";
+  private static final String NON_MEMBER_TTL_ENV = "LIST_MEMBERSHIP_CACHE_NON_MEMBER_TTL_SECONDS";
+
+  @VisibleForTesting static final long MAX_SIZE_DEFAULT = 100_000;
+  @VisibleForTesting static final Duration MEMBER_TTL_DEFAULT = Duration.ofMinutes(5);
+  @VisibleForTesting static final Duration NON_MEMBER_TTL_DEFAULT = Duration.ofSeconds(30);
+
+  private final Cache<MembershipKey, Boolean> cache;
+
+  ListMembershipCache(long maxSize, Duration memberTtl, Duration nonMemberTtl) {
+    Preconditions.checkArgument(maxSize >= 0, "Cache size cannot be negative.");
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfter(new MembershipExpiry(memberTtl, nonMemberTtl))
+            .recordStats()
+            .build();
+  }
+
+  static ListMembershipCache createFromEnvVars() {
+    long maxSize = EnvUtil.getLongOrDefault(MAX_SIZE_ENV, MAX_SIZE_DEFAULT);
+    Duration memberTtl =
+        Duration.ofSeconds(
+            EnvUtil.getLongOrDefault(MEMBER_TTL_ENV, MEMBER_TTL_DEFAULT.getSeconds()));
+    Duration nonMemberTtl =
+        Duration.ofSeconds(
+            EnvUtil.getLongOrDefault(NON_MEMBER_TTL_ENV, NON_MEMBER_TTL_DEFAULT.getSeconds()));
+    logger.info(
+        "List membership cache max size is {}, member TTL is {} and non-member TTL is {}",
+        maxSize,
+        memberTtl,
+        nonMemberTtl);
+    return new ListMembershipCache(maxSize, memberTtl, nonMemberTtl);
+  }
+
+  /** Returns whether the patient is a member of the list or null if that is not cached. */
+  @Nullable
+  Boolean isMember(String listId, String patientId) {
+    return cache.getIfPresent(new MembershipKey(listId, patientId));
+  }
+
+  void put(String listId, String patientId, boolean isMember) {
+    cache.put(new MembershipKey(listId, patientId), isMember);
+  }
+
+  void putAll(String listId, Collection<String> patientIds, boolean isMember) {
+    for (String patientId : patientIds) {
+      put(listId, patientId, isMember);
+    }
+  }
+
+  void invalidate(String listId, String patientId) {
+    cache.invalidate(new MembershipKey(listId, patientId));
+  }
+
+  CacheStats getStats() {
+    return cache.stats();
+  }
+
+  private static class MembershipKey {
+    private final String listId;
+    private final String patientId;
+
+    MembershipKey(String listId, String patientId) {
+      this.listId = Preconditions.checkNotNull(listId);
+      this.patientId = Preconditions.checkNotNull(patientId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof MembershipKey)) {
+        return false;
+      }
+      MembershipKey other = (MembershipKey) o;
+      return listId.equals(other.listId) && patientId.equals(other.patientId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(listId, patientId);
+    }
+  }
+
+  private static class MembershipExpiry implements Expiry<MembershipKey, Boolean> {
+    private final long memberTtlNanos;
+    private final long nonMemberTtlNanos;
+
+    MembershipExpiry(Duration memberTtl, Duration nonMemberTtl) {
+      this.memberTtlNanos = memberTtl.toNanos();
+      this.nonMemberTtlNanos = nonMemberTtl.toNanos();
+    }
+
+    private long ttlNanos(boolean isMember) {
+      return isMember ? memberTtlNanos : nonMemberTtlNanos;
+    }
+
+    @Override
+    public long expireAfterCreate(MembershipKey key, Boolean isMember, long currentTime) {
+      return ttlNanos(isMember);
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        MembershipKey key, Boolean isMember, long currentTime, long currentDuration) {
+      return ttlNanos(isMember);
+    }
+
+    @Override
+    public long expireAfterRead(
+        MembershipKey key, Boolean isMember, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.escape.Escaper;
+import com.google.common.net.UrlEscapers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.fhir.gateway.EnvUtil;
+import com.google.fhir.gateway.FhirUtil;
+import com.google.fhir.gateway.HttpFhirClient;
+import com.google.fhir.gateway.HttpUtil;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local, materialized index of the patients in access lists, i.e., `List` resources referenced by
+ * the `patient_list` claim. Each list is fetched from the FHIR store on first use and is then kept
+ * up to date by polling the `List/_history` of the FHIR store in the background; only the lists
+ * that are already in the index are updated.
+ *
+ * <p>If the index cannot load a list or has not synced successfully for longer than the max
+ * staleness, no answer is returned and the caller should fall back to searching the FHIR store.
+ * This class is thread-safe.
+ */
+class ListMembershipIndex {
+
+  private static final Logger logger = LoggerFactory.getLogger(ListMembershipIndex.class);
+
+  private static final String ENABLED_ENV = "LIST_INDEX_ENABLED";
+  private static final String SYNC_INTERVAL_ENV = "LIST_INDEX_SYNC_INTERVAL_SECONDS";
+  private static final String MAX_STALENESS_ENV = "LIST_INDEX_MAX_STALENESS_SECONDS";
+  private static final String MAX_LISTS_ENV = "LIST_INDEX_MAX_LISTS";
+
+  private static final Duration SYNC_INTERVAL_DEFAULT = Duration.ofSeconds(10);
+  private static final Duration MAX_STALENESS_DEFAULT = Duration.ofSeconds(60);
+  private static final long MAX_LISTS_DEFAULT = 10_000;
+  @VisibleForTesting static final int HISTORY_PAGE_SIZE = 100;
+  // Changes committed out of order around the last sync time are picked up by the next sync.
+  @VisibleForTesting static final Duration SYNC_OVERLAP = Duration.ofSeconds(5);
+  @VisibleForTesting static final int MIN_DICTIONARY_COMPACTION_SIZE = 1024;
+
+  private final HttpFhirClient httpFhirClient;
+  private final FhirContext fhirContext;
+  private final Duration syncInterval;
+  private final Duration maxStaleness;
+  private final Clock clock;
+  private final Escaper PARAM_ESCAPER = UrlEscapers.urlFormParameterEscaper();
+  // Shared by all indexed lists, such that a patient in many lists has its ID stored once. IDs
+  // that are removed from lists, or are only in evicted lists, stay in the dictionary; hence the
+  // sync replaces it with one rebuilt from the indexed lists once it has grown enough.
+  private volatile PatientIdDictionary patientIdDictionary = new PatientIdDictionary();
+  // List ID -> the latest known patients of that list; lists are evicted if there are too many.
+  private final Cache<String, ListSnapshot> lists;
+  // Only accessed by the sync thread.
+  private Instant syncedSince;
+  private int dictionaryCompactionSize = MIN_DICTIONARY_COMPACTION_SIZE;
+  private volatile Instant lastSuccessfulSync;
+
+  @VisibleForTesting
+  ListMembershipIndex(
+      HttpFhirClient httpFhirClient,
+      FhirContext fhirContext,
+      long maxLists,
+      Duration syncInterval,
+      Duration maxStaleness,
+      Clock clock) {
+    Preconditions.checkArgument(!syncInterval.isNegative() && !syncInterval.isZero());
+    this.httpFhirClient = httpFhirClient;
+    this.fhirContext = fhirContext;
+    this.syncInterval = syncInterval;
+    this.maxStaleness = maxStaleness;
+    this.clock = clock;
+    this.lists = Caffeine.newBuilder().maximumSize(maxLists).build();
+    this.lastSuccessfulSync = clock.instant();
+    this.syncedSince = lastSuccessfulSync.minus(SYNC_OVERLAP);
+  }
+
+  /**
+   * Creates the index and starts its background sync if enabled by `LIST_INDEX_ENABLED`, otherwise
+   * returns null.
+   */
+  @Nullable
+  static ListMembershipIndex createFromEnvVars(
+      HttpFhirClient httpFhirClient, FhirContext fhirContext) {
+    if (!EnvUtil.getBooleanOrDefault(ENABLED_ENV, false)) {
+      return null;
+    }
+    Duration syncInterval =
+        Duration.ofSeconds(
+            EnvUtil.getLongOrDefault(SYNC_INTERVAL_ENV, SYNC_INTERVAL_DEFAULT.getSeconds()));
+    Duration maxStaleness =
+        Duration.ofSeconds(
+            EnvUtil.getLongOrDefault(MAX_STALENESS_ENV, MAX_STALENESS_DEFAULT.getSeconds()));
+    long maxLists = EnvUtil.getLongOrDefault(MAX_LISTS_ENV, MAX_LISTS_DEFAULT);
+    ListMembershipIndex index =
+        new ListMembershipIndex(
+            httpFhirClient,
+            fhirContext,
+            maxLists,
+            syncInterval,
+            maxStaleness,
+            Clock.systemUTC());
+    index.startSync();
+    return index;
+  }
+
+  private void startSync() {
+    ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("list-index-sync-%d").setDaemon(true).build());
+    executor.scheduleWithFixedDelay(
+        this::syncOrLog, syncInterval.toMillis(), syncInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void syncOrLog() {
+    try {
+      sync();
+    } catch (IOException | RuntimeException e) {
+      // Note an exception should not escape, otherwise the scheduled sync is cancelled.
+      logger.error("Failed to sync the List index; will retry.", e);
+    }
+  }
+
+  /**
+   * Returns the patient IDs in the given list, loading the list on first use; null if the list
+   * cannot be loaded or the index is too stale.
+   */
+  @Nullable
+  CompactPatientIdSet getPatients(String listId) {
+    if (Duration.between(lastSuccessfulSync, clock.instant()).compareTo(maxStaleness) > 0) {
+      logger.warn("The List index was last synced at {}; not using it.", lastSuccessfulSync);
+      return null;
+    }
+    try {
+      // Concurrent first uses of the same list wait for a single load.
+      return lists.get(listId, this::loadListUnchecked).patientIds;
+    } catch (RuntimeException e) {
+      logger.error("Failed to load List " + listId + " into the index.", e);
+      return null;
+    }
+  }
+
+  /** Adds a patient to an indexed list, e.g., after the proxy has added it in the FHIR store. */
+  void addPatient(String listId, String patientId) {
+    lists.asMap().computeIfPresent(listId, (id, snapshot) -> snapshot.withPatient(patientId));
+  }
+
+  /** Evicts a list from the index, such that it is loaded from the FHIR store on next use. */
+  void invalidate(String listId) {
+    lists.invalidate(listId);
+  }
+
+  private ListSnapshot loadListUnchecked(String listId) {
+    try {
+      return loadList(listId);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private ListSnapshot loadList(String listId) throws IOException {
+    String resourcePath = String.format("List/%s", PARAM_ESCAPER.escape(listId));
+    HttpResponse response = httpFhirClient.getResource(resourcePath);
+    int status = response.getStatusLine().getStatusCode();
+    if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_GONE) {
+      // The list may be created later, which is picked up by the sync.
+      logger.info("List {} does not exist; indexing it as empty.", listId);
+      return ListSnapshot.empty(Instant.EPOCH, patientIdDictionary);
+    }
+    HttpUtil.validateResponseEntityOrFail(response, resourcePath);
+    ListResource list =
+        fhirContext
+            .newJsonParser()
+            .parseResource(ListResource.class, HttpUtil.readerFromEntity(response.getEntity()));
+    ListSnapshot snapshot = ListSnapshot.fromList(list, patientIdDictionary);
+    logger.info("Indexed List {} with {} patients.", listId, snapshot.patientIds.size());
+    return snapshot;
+  }
+
+  /**
+   * Applies the changes to indexed lists since the last sync, following the paging links of the
+   * history. Note the history is usually ordered from newest to oldest, hence the sync point is
+   * only moved forward once all pages are processed. The new sync point is the time of the history
+   * search, preferably by the clock of the FHIR store, minus the overlap; it never moves backward.
+   */
+  @VisibleForTesting
+  void sync() throws IOException {
+    Instant syncStart = clock.instant();
+    if (lists.estimatedSize() == 0) {
+      syncedSince = syncStart.minus(SYNC_OVERLAP);
+      lastSuccessfulSync = syncStart;
+      compactDictionaryIfNeeded();
+      return;
+    }
+    Map<String, ListSnapshot> latestChanges = new HashMap<>();
+    // The time up to which the history has been read; this is replaced by the time of the first
+    // page by the clock of the FHIR store, if present, as the two clocks may be skewed.
+    Instant syncedUntil = syncStart;
+    boolean firstPage = true;
+    String resourcePath =
+        String.format(
+            "List/_history?_since=%s&_count=%d",
+            PARAM_ESCAPER.escape(syncedSince.toString()), HISTORY_PAGE_SIZE);
+    while (resourcePath != null) {
+      HttpResponse response = httpFhirClient.getResource(resourcePath);
+      HttpUtil.validateResponseEntityOrFail(response, resourcePath);
+      Bundle history = FhirUtil.parseResponseToBundle(fhirContext, response);
+      if (firstPage && history.getMeta().getLastUpdated() != null) {
+        syncedUntil = history.getMeta().getLastUpdated().toInstant();
+      }
+      firstPage = false;
+      for (BundleEntryComponent entry : history.getEntry()) {
+        IdType listId = historyEntryListId(entry);
+        if (listId == null || lists.getIfPresent(listId.getIdPart()) == null) {
+          continue;
+        }
+        ListSnapshot change = historyEntrySnapshot(entry, syncStart, patientIdDictionary);
+        if (change.lastUpdated.isAfter(syncedUntil)) {
+          syncedUntil = change.lastUpdated;
+        }
+        latestChanges.merge(listId.getIdPart(), change, ListSnapshot::newer);
+      }
+      resourcePath = nextPageOrNull(history);
+    }
+    for (Map.Entry<String, ListSnapshot> change : latestChanges.entrySet()) {
+      lists
+          .asMap()
+          .computeIfPresent(change.getKey(), (id, current) -> current.newer(change.getValue()));
+    }
+    if (!latestChanges.isEmpty()) {
+      logger.info("Synced {} changed lists in the List index.", latestChanges.size());
+    }
+    Instant newSyncedSince = syncedUntil.minus(SYNC_OVERLAP);
+    if (newSyncedSince.isAfter(syncedSince)) {
+      syncedSince = newSyncedSince;
+    }
+    lastSuccessfulSync = syncStart;
+    compactDictionaryIfNeeded();
+  }
+
+  /**
+   * Replaces the patient ID dictionary with one that only has the IDs of the indexed lists, once
+   * the dictionary has doubled in size since the last compaction; hence the dictionary is at most
+   * about twice as large as needed. Lists that are loaded or updated concurrently may still use the
+   * old dictionary, which is fine as each set has a reference to its own dictionary; they are
+   * re-encoded by the next compaction.
+   */
+  private void compactDictionaryIfNeeded() {
+    PatientIdDictionary oldDictionary = patientIdDictionary;
+    if (oldDictionary.size() < dictionaryCompactionSize) {
+      return;
+    }
+    PatientIdDictionary newDictionary = new PatientIdDictionary();
+    // New lists are encoded with the new dictionary from here on.
+    patientIdDictionary = newDictionary;
+    for (String listId : lists.asMap().keySet()) {
+      lists
+          .asMap()
+          .computeIfPresent(listId, (id, snapshot) -> snapshot.withDictionary(newDictionary));
+    }
+    dictionaryCompactionSize = Math.max(MIN_DICTIONARY_COMPACTION_SIZE, 2 * newDictionary.size());
+    logger.info(
+        "Compacted the patient ID dictionary of the List index from {} to {} IDs.",
+        oldDictionary.size(),
+        newDictionary.size());
+  }
+
+  @VisibleForTesting
+  int getDictionarySize() {
+    return patientIdDictionary.size();
+  }
+
+  @Nullable
+  private String nextPageOrNull(Bundle bundle) {
+    Bundle.BundleLinkComponent next = bundle.getLink(Bundle.LINK_NEXT);
+    if (next == null || next.getUrl() == null) {
+      return null;
+    }
+    String path = httpFhirClient.getResourcePathForUrl(next.getUrl());
+    if (path == null) {
+      // This should not happen; we rely on the next sync to pick up the remaining changes.
+      logger.error("The next page {} of the List history is not on the FHIR store.", next.getUrl());
+    }
+    return path;
+  }
+
+  @Nullable
+  private static IdType historyEntryListId(BundleEntryComponent entry) {
+    if (entry.getResource() instanceof ListResource) {
+      return (IdType) entry.getResource().getIdElement();
+    }
+    // A deleted version has no resource; its request URL is like `List/ID/_history/VERSION`.
+    if (entry.hasRequest() && entry.getRequest().getUrl() != null) {
+      IdType id = new IdType(entry.getRequest().getUrl());
+      if (FhirUtil.isSameResourceType(id.getResourceType(), ResourceType.List)) {
+        return id;
+      }
+    }
+    return null;
+  }
+
+  private static ListSnapshot historyEntrySnapshot(
+      BundleEntryComponent entry, Instant syncStart, PatientIdDictionary dictionary) {
+    if (entry.getResource() instanceof ListResource) {
+      return ListSnapshot.fromList((ListResource) entry.getResource(), dictionary);
+    }
+    Preconditions.checkState(entry.getRequest().getMethod() == HTTPVerb.DELETE);
+    // If the deletion time is unknown, it is assumed to be the latest change.
+    Date deletedAt = entry.hasResponse() ? entry.getResponse().getLastModified() : null;
+    return ListSnapshot.empty(deletedAt == null ? syncStart : deletedAt.toInstant(), dictionary);
+  }
+
+  /** An immutable version of a list. */
+  private static class ListSnapshot {
+    private final Instant lastUpdated;
+    private final CompactPatientIdSet patientIds;
+
+    private ListSnapshot(Instant lastUpdated, CompactPatientIdSet patientIds) {
+      this.lastUpdated = lastUpdated;
+      this.patientIds = patientIds;
+    }
+
+    private static ListSnapshot empty(Instant lastUpdated, PatientIdDictionary dictionary) {
+      return new ListSnapshot(lastUpdated, CompactPatientIdSet.empty(dictionary));
+    }
+
+    private static ListSnapshot fromList(ListResource list, PatientIdDictionary dictionary) {
+      List<String> patientIds = new ArrayList<>(list.getEntry().size());
+      for (ListEntryComponent entry : list.getEntry()) {
+        IIdType reference = entry.getItem().getReferenceElement();
+        if (FhirUtil.isSameResourceType(reference.getResourceType(), ResourceType.Patient)
+            && reference.hasIdPart()) {
+          patientIds.add(reference.getIdPart());
+        }
+      }
+      Date lastUpdated = list.getMeta().getLastUpdated();
+      return new ListSnapshot(
+          lastUpdated == null ? Instant.EPOCH : lastUpdated.toInstant(),
+          CompactPatientIdSet.copyOf(dictionary, patientIds));
+    }
+
+    private ListSnapshot withPatient(String patientId) {
+      CompactPatientIdSet newPatientIds = patientIds.with(patientId);
+      return newPatientIds == patientIds ? this : new ListSnapshot(lastUpdated, newPatientIds);
+    }
+
+    private ListSnapshot withDictionary(PatientIdDictionary dictionary) {
+      return new ListSnapshot(lastUpdated, patientIds.withDictionary(dictionary));
+    }
+
+    private ListSnapshot newer(ListSnapshot other) {
+      return other.lastUpdated.isAfter(lastUpdated) ? other : this;
+    }
+  }
+}
@@ -38,9 +38,9 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.inject.Named;
 import org.hl7.fhir.instance.model.api.IIdType;
-import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryRequestComponent;
 import org.hl7.fhir.r4.model.Reference;
@@ -59,22 +59,17 @@ public class PatientAccessChecker implements AccessChecker {
   private final String authorizedPatientId;
   private final PatientFinder patientFinder;
 
-  private final FhirContext fhirContext;
-
   private final SmartScopeChecker smartScopeChecker;
 
   private PatientAccessChecker(
-      FhirContext fhirContext,
       String authorizedPatientId,
       PatientFinder patientFinder,
       SmartScopeChecker smartScopeChecker) {
     Preconditions.checkNotNull(authorizedPatientId);
     Preconditions.checkNotNull(patientFinder);
     Preconditions.checkNotNull(smartScopeChecker);
-    Preconditions.checkNotNull(fhirContext);
     this.authorizedPatientId = authorizedPatientId;
     this.patientFinder = patientFinder;
-    this.fhirContext = fhirContext;
     this.smartScopeChecker = smartScopeChecker;
   }
 
@@ -208,8 +203,17 @@ public class PatientAccessChecker implements AccessChecker {
   }
 
   private AccessDecision processBundle(RequestDetailsReader requestDetails) {
-    Bundle requestBundle = FhirUtil.parseRequestToBundle(fhirContext, requestDetails);
-    BundlePatients patientsInBundle = patientFinder.findPatientsInBundle(requestBundle);
+    // The permission of each entry is checked while the Bundle is read, so that the entries need
+    // not be kept after their analysis.
+    AtomicBoolean entriesPermitted = new AtomicBoolean(true);
+    BundlePatients patientsInBundle =
+        patientFinder.findPatientsInBundle(
+            requestDetails,
+            entryComponent -> {
+              if (entriesPermitted.get() && !doesBundleElementHavePermission(entryComponent)) {
+                entriesPermitted.set(false);
+              }
+            });
 
     if (patientsInBundle == null
         || patientsInBundle.areTherePatientToCreate()
@@ -228,10 +232,8 @@ public class PatientAccessChecker implements AccessChecker {
       }
     }
 
-    for (BundleEntryComponent entryComponent : requestBundle.getEntry()) {
-      if (!doesBundleElementHavePermission(entryComponent)) {
-        return NoOpAccessDecision.accessDenied();
-      }
+    if (!entriesPermitted.get()) {
+      return NoOpAccessDecision.accessDenied();
     }
     return NoOpAccessDecision.accessGranted();
   }
@@ -318,7 +320,7 @@ public class PatientAccessChecker implements AccessChecker {
         FhirContext fhirContext,
         PatientFinder patientFinder) {
       return new PatientAccessChecker(
-          fhirContext, getPatientId(jwt), patientFinder, getSmartFhirPermissionChecker(jwt));
+          getPatientId(jwt), patientFinder, getSmartFhirPermissionChecker(jwt));
     }
   }
 }
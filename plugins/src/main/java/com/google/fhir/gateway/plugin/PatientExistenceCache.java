@@ -0,0 +1,132 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.fhir.gateway.EnvUtil;
+import java.time.Duration;
+import java.util.Collection;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process cache of whether a patient exists in the FHIR store, which is used to decide if a
+ * Patient PUT is an update or a create. A stale "exists" entry can only deny access to a patient
+ * that is not in the access list, but a stale "does not exist" entry would let a user add an
+ * existing patient to their list; hence the latter has a much shorter TTL.
+ *
+ * <p>This class is thread-safe and is meant to be shared between all access-checkers of the same
+ * factory.
+ */
+class PatientExistenceCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(PatientExistenceCache.class);
+
+  private static final String MAX_SIZE_ENV = "PATIENT_EXISTENCE_CACHE_MAX_SIZE";
+  private static final String TTL_ENV = "PATIENT_EXISTENCE_CACHE_TTL_SECONDS";
+  private static final String NEGATIVE_TTL_ENV = "PATIENT_EXISTENCE_CACHE_NEGATIVE_TTL_SECONDS";
+
+  @VisibleForTesting static final long MAX_SIZE_DEFAULT = 100_000;
+  @VisibleForTesting static final Duration TTL_DEFAULT = Duration.ofMinutes(10);
+  @VisibleForTesting static final Duration NEGATIVE_TTL_DEFAULT = Duration.ofSeconds(5);
+
+  private final Cache<String, Boolean> cache;
+
+  PatientExistenceCache(long maxSize, Duration ttl, Duration negativeTtl) {
+    Preconditions.checkArgument(maxSize >= 0, "Cache size cannot be negative.");
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfter(new ExistenceExpiry(ttl, negativeTtl))
+            .recordStats()
+            .build();
+  }
+
+  static PatientExistenceCache createFromEnvVars() {
+    long maxSize = EnvUtil.getLongOrDefault(MAX_SIZE_ENV, MAX_SIZE_DEFAULT);
+    Duration ttl = Duration.ofSeconds(EnvUtil.getLongOrDefault(TTL_ENV, TTL_DEFAULT.getSeconds()));
+    Duration negativeTtl =
+        Duration.ofSeconds(
+            EnvUtil.getLongOrDefault(NEGATIVE_TTL_ENV, NEGATIVE_TTL_DEFAULT.getSeconds()));
+    logger.info(
+        "Patient existence cache max size is {}, TTL is {} and negative TTL is {}",
+        maxSize,
+        ttl,
+        negativeTtl);
+    return new PatientExistenceCache(maxSize, ttl, negativeTtl);
+  }
+
+  /** Returns whether the patient exists or null if that is not cached. */
+  @Nullable
+  Boolean exists(String patientId) {
+    return cache.getIfPresent(patientId);
+  }
+
+  void put(String patientId, boolean exists) {
+    cache.put(Preconditions.checkNotNull(patientId), exists);
+  }
+
+  void putAll(Collection<String> patientIds, boolean exists) {
+    for (String patientId : patientIds) {
+      put(patientId, exists);
+    }
+  }
+
+  void invalidate(String patientId) {
+    cache.invalidate(patientId);
+  }
+
+  CacheStats getStats() {
+    return cache.stats();
+  }
+
+  private static class ExistenceExpiry implements Expiry<String, Boolean> {
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    ExistenceExpiry(Duration ttl, Duration negativeTtl) {
+      this.ttlNanos = ttl.toNanos();
+      this.negativeTtlNanos = negativeTtl.toNanos();
+    }
+
+    private long ttlNanos(boolean exists) {
+      return exists ? ttlNanos : negativeTtlNanos;
+    }
+
+    @Override
+    public long expireAfterCreate(String patientId, Boolean exists, long currentTime) {
+      return ttlNanos(exists);
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        String patientId, Boolean exists, long currentTime, long currentDuration) {
+      return ttlNanos(exists);
+    }
+
+    @Override
+    public long expireAfterRead(
+        String patientId, Boolean exists, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Maps patient IDs to dense int ordinals, such that each ID string is stored once no matter how
+ * many {@link CompactPatientIdSet}s include it. Ordinals are never reused or removed; instead, once
+ * many IDs are not in any set anymore, the owner replaces the dictionary with a new one and
+ * re-encodes its sets with {@link CompactPatientIdSet#withDictionary}. This class is thread-safe;
+ * looking up the ordinal of an interned ID takes no lock.
+ */
+class PatientIdDictionary {
+
+  static final int NOT_FOUND = -1;
+
+  private final ConcurrentHashMap<String, Integer> ordinals = new ConcurrentHashMap<>();
+  // Guards `ids` and the assignment of new ordinals.
+  private final Lock lock = new ReentrantLock();
+  // Ordinal -> ID.
+  private final List<String> ids = new ArrayList<>();
+
+  /** Returns the ordinal of the given ID, assigning a new one if this is the first time. */
+  int intern(String patientId) {
+    Preconditions.checkNotNull(patientId);
+    Integer ordinal = ordinals.get(patientId);
+    if (ordinal != null) {
+      return ordinal;
+    }
+    lock.lock();
+    try {
+      ordinal = ordinals.get(patientId);
+      if (ordinal == null) {
+        ordinal = ids.size();
+        ids.add(patientId);
+        ordinals.put(patientId, ordinal);
+      }
+      return ordinal;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the ordinal of the given ID or {@link #NOT_FOUND} if it is not interned. */
+  int ordinalOf(String patientId) {
+    Integer ordinal = ordinals.get(patientId);
+    return ordinal == null ? NOT_FOUND : ordinal;
+  }
+
+  /** Returns the ID with the given ordinal, which must have been returned by `intern`. */
+  String idOf(int ordinal) {
+    lock.lock();
+    try {
+      return ids.get(ordinal);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    return ordinals.size();
+  }
+}
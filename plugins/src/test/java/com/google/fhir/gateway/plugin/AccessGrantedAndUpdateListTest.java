@@ -1,5 +1,5 @@
 /*
- * Copyright 2021-2023 Google LLC
+ * Copyright 2021-2024 Google LLC
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,13 +15,24 @@
  */
 package com.google.fhir.gateway.plugin;
 
-import ca.uhn.fhir.context.FhirContext;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
 import com.google.common.io.Resources;
 import com.google.fhir.gateway.HttpFhirClient;
 import com.google.fhir.gateway.interfaces.RequestDetailsReader;
+import com.google.fhir.gateway.interfaces.ResponseStreamProcessor;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Set;
 import org.apache.http.HttpResponse;
 import org.junit.Before;
 import org.junit.Test;
@@ -34,6 +45,14 @@ import org.mockito.junit.MockitoJUnitRunner;
 public class AccessGrantedAndUpdateListTest {
 
   private static final String TEST_LIST_ID = "test-list";
+  private static final String TEST_PATIENT_ID = "be92a43f-de46-affa-b131-bbf9eea51140";
+  private static final String TRANSACTION_RESPONSE_JSON =
+      "{\"resourceType\": \"Bundle\", \"type\": \"transaction-response\", \"entry\": ["
+          + "{\"response\": {\"status\": \"201 Created\","
+          + " \"location\": \"Patient\\/new-patient\\/_history\\/1\"}},"
+          + "{\"response\": {\"status\": \"200 OK\", \"location\": \"Patient/put-patient\"}},"
+          + "{\"response\": {\"status\": \"201 Created\", \"location\": \"Observation/obs\"}}"
+          + "]}";
 
   @Mock private HttpFhirClient httpFhirClientMock;
 
@@ -43,30 +62,112 @@ public class AccessGrantedAndUpdateListTest {
   @Mock(answer = Answers.RETURNS_DEEP_STUBS)
   private RequestDetailsReader requestDetailsReader;
 
-  private static final FhirContext fhirContext = FhirContext.forR4();
+  private final ListMembershipCache membershipCache =
+      new ListMembershipCache(100, Duration.ofMinutes(1), Duration.ofMinutes(1));
+
+  private final PatientExistenceCache existenceCache =
+      new PatientExistenceCache(100, Duration.ofMinutes(1), Duration.ofMinutes(1));
+
+  private AccessListUpdater listUpdater;
 
   private AccessGrantedAndUpdateList testInstance;
 
+  private String testJson;
+
   @Before
   public void setUp() throws IOException {
     URL url = Resources.getResource("test_patient.json");
-    String testJson = Resources.toString(url, StandardCharsets.UTF_8);
-    TestUtil.setUpFhirResponseMock(responseMock, testJson);
+    testJson = Resources.toString(url, StandardCharsets.UTF_8);
+    listUpdater =
+        new AccessListUpdater(
+            httpFhirClientMock, membershipCache, null, 10, null, Clock.systemUTC());
+  }
+
+  /** Post-processes the response and streams it the way it is forwarded to the client. */
+  private String postProcessAndForward(String responseJson) throws IOException {
+    TestUtil.setUpFhirResponseMock(responseMock, responseJson);
+    assertThat(testInstance.postProcess(requestDetailsReader, responseMock), nullValue());
+    ResponseStreamProcessor streamProcessor =
+        testInstance.getResponseStreamProcessor(requestDetailsReader, responseMock);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    streamProcessor.process(responseMock.getEntity().getContent(), output);
+    return output.toString(StandardCharsets.UTF_8);
   }
 
   @Test
   public void postProcessNewPatientPut() throws IOException {
     testInstance =
-        AccessGrantedAndUpdateList.forPatientResource(
-            TEST_LIST_ID, httpFhirClientMock, fhirContext);
-    testInstance.postProcess(requestDetailsReader, responseMock);
+        AccessGrantedAndUpdateList.forPatientResource(TEST_LIST_ID, existenceCache, listUpdater);
+    postProcessAndForward(testJson);
+    assertThat(listUpdater.getPendingCount(), equalTo(1));
   }
 
   @Test
   public void postProcessNewPatientPost() throws IOException {
     testInstance =
-        AccessGrantedAndUpdateList.forPatientResource(
-            TEST_LIST_ID, httpFhirClientMock, fhirContext);
+        AccessGrantedAndUpdateList.forPatientResource(TEST_LIST_ID, existenceCache, listUpdater);
+    postProcessAndForward(testJson);
+    assertThat(listUpdater.getPendingCount(), equalTo(1));
+  }
+
+  @Test
+  public void postProcessNewPatientDoesNotWaitForList() throws IOException {
+    testInstance =
+        AccessGrantedAndUpdateList.forPatientResource(TEST_LIST_ID, existenceCache, listUpdater);
+    postProcessAndForward(testJson);
+    verify(httpFhirClientMock, never()).patchResource(anyString(), anyString());
+  }
+
+  @Test
+  public void postProcessNewPatientCachesMembership() throws IOException {
+    membershipCache.put(TEST_LIST_ID, TEST_PATIENT_ID, false);
+    testInstance =
+        AccessGrantedAndUpdateList.forPatientResource(TEST_LIST_ID, existenceCache, listUpdater);
+    postProcessAndForward(testJson);
+    assertThat(membershipCache.isMember(TEST_LIST_ID, TEST_PATIENT_ID), equalTo(true));
+  }
+
+  @Test
+  public void postProcessNewPatientCachesExistence() throws IOException {
+    existenceCache.put(TEST_PATIENT_ID, false);
+    testInstance =
+        AccessGrantedAndUpdateList.forPatientResource(TEST_LIST_ID, existenceCache, listUpdater);
+    postProcessAndForward(testJson);
+    assertThat(existenceCache.exists(TEST_PATIENT_ID), equalTo(true));
+  }
+
+  @Test
+  public void postProcessForwardsResponseUnchanged() throws IOException {
+    testInstance =
+        AccessGrantedAndUpdateList.forPatientResource(TEST_LIST_ID, existenceCache, listUpdater);
+    assertThat(postProcessAndForward(testJson), equalTo(testJson));
+  }
+
+  @Test
+  public void postProcessListNotUpdatedBeforeForwarding() throws IOException {
+    TestUtil.setUpFhirResponseMock(responseMock, testJson);
+    testInstance =
+        AccessGrantedAndUpdateList.forPatientResource(TEST_LIST_ID, existenceCache, listUpdater);
     testInstance.postProcess(requestDetailsReader, responseMock);
+    assertThat(listUpdater.getPendingCount(), equalTo(0));
+  }
+
+  @Test
+  public void postProcessTransactionResponse() throws IOException {
+    testInstance =
+        AccessGrantedAndUpdateList.forBundle(
+            TEST_LIST_ID, existenceCache, listUpdater, Set.of("put-patient"));
+    postProcessAndForward(TRANSACTION_RESPONSE_JSON);
+    assertThat(listUpdater.getPendingCount(), equalTo(1));
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "new-patient"), equalTo(true));
+    assertThat(existenceCache.exists("put-patient"), equalTo(true));
+  }
+
+  @Test
+  public void postProcessUnexpectedResourceType() throws IOException {
+    testInstance =
+        AccessGrantedAndUpdateList.forBundle(TEST_LIST_ID, existenceCache, listUpdater, Set.of());
+    postProcessAndForward(testJson);
+    assertThat(listUpdater.getPendingCount(), equalTo(0));
   }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.fhir.gateway.HttpFhirClient;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AccessListUpdaterTest {
+
+  private static final String TEST_LIST_ID = "test-list";
+  private static final String OTHER_LIST_ID = "other-list";
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Mock private HttpFhirClient httpFhirClientMock;
+  @Mock private ListMembershipIndex membershipIndexMock;
+
+  @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+  private HttpResponse patchResponseMock;
+
+  private final ListMembershipCache membershipCache =
+      new ListMembershipCache(100, Duration.ofMinutes(1), Duration.ofMinutes(1));
+
+  private final TestClock clock = new TestClock(Instant.parse("2024-01-01T10:00:00Z"));
+  private Path outboxPath;
+
+  @Before
+  public void setUp() {
+    outboxPath = tempFolder.getRoot().toPath().resolve("outbox");
+  }
+
+  private AccessListUpdater createUpdater() throws IOException {
+    return new AccessListUpdater(httpFhirClientMock, membershipCache, null, 3, outboxPath, clock);
+  }
+
+  private void setUpPatchResponse(int status) throws IOException {
+    when(patchResponseMock.getStatusLine().getStatusCode()).thenReturn(status);
+    when(httpFhirClientMock.patchResource(anyString(), anyString())).thenReturn(patchResponseMock);
+  }
+
+  private JsonArray capturePatch(String listId) throws IOException {
+    ArgumentCaptor<String> patchCaptor = ArgumentCaptor.forClass(String.class);
+    verify(httpFhirClientMock).patchResource(eq("List/" + listId), patchCaptor.capture());
+    return JsonParser.parseString(patchCaptor.getValue()).getAsJsonArray();
+  }
+
+  @Test
+  public void flushSendsOnePatchPerList() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_OK);
+    AccessListUpdater testInstance = createUpdater();
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1", "p2"));
+    testInstance.addPatients(TEST_LIST_ID, List.of("p2"));
+    testInstance.addPatients(OTHER_LIST_ID, List.of("p3"));
+
+    testInstance.flush();
+
+    JsonArray patch = capturePatch(TEST_LIST_ID);
+    assertThat(patch.size(), equalTo(2));
+    assertThat(patch.get(0).getAsJsonObject().get("op").getAsString(), equalTo("add"));
+    assertThat(
+        patch
+            .get(1)
+            .getAsJsonObject()
+            .getAsJsonObject("value")
+            .getAsJsonObject("item")
+            .get("reference")
+            .getAsString(),
+        equalTo("Patient/p2"));
+    assertThat(capturePatch(OTHER_LIST_ID).size(), equalTo(1));
+    assertThat(testInstance.getPendingCount(), equalTo(0));
+  }
+
+  @Test
+  public void flushLimitsBatchSize() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_OK);
+    AccessListUpdater testInstance = createUpdater();
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1", "p2", "p3", "p4"));
+
+    testInstance.flush();
+
+    assertThat(capturePatch(TEST_LIST_ID).size(), equalTo(3));
+    assertThat(testInstance.getPendingCount(), equalTo(1));
+  }
+
+  @Test
+  public void flushFailureRetriedWithBackoff() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_SERVICE_UNAVAILABLE);
+    AccessListUpdater testInstance = createUpdater();
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1"));
+
+    testInstance.flush();
+    assertThat(testInstance.getPendingCount(), equalTo(1));
+    testInstance.flush();
+    verify(httpFhirClientMock, times(1)).patchResource(eq("List/" + TEST_LIST_ID), anyString());
+    clock.advance(AccessListUpdater.MIN_RETRY_BACKOFF);
+    testInstance.flush();
+    verify(httpFhirClientMock, times(2)).patchResource(eq("List/" + TEST_LIST_ID), anyString());
+    // The backoff is doubled after each failure.
+    clock.advance(AccessListUpdater.MIN_RETRY_BACKOFF);
+    testInstance.flush();
+    verify(httpFhirClientMock, times(2)).patchResource(eq("List/" + TEST_LIST_ID), anyString());
+    clock.advance(AccessListUpdater.MIN_RETRY_BACKOFF);
+    testInstance.flush();
+
+    verify(httpFhirClientMock, times(3)).patchResource(eq("List/" + TEST_LIST_ID), anyString());
+  }
+
+  @Test
+  public void flushFailureDoesNotDelayOtherLists() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_SERVICE_UNAVAILABLE);
+    AccessListUpdater testInstance = createUpdater();
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1"));
+    testInstance.flush();
+
+    testInstance.addPatients(OTHER_LIST_ID, List.of("p2"));
+    testInstance.flush();
+
+    verify(httpFhirClientMock, times(1)).patchResource(eq("List/" + TEST_LIST_ID), anyString());
+    verify(httpFhirClientMock, times(1)).patchResource(eq("List/" + OTHER_LIST_ID), anyString());
+  }
+
+  @Test
+  public void flushConflictRetried() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_CONFLICT);
+    AccessListUpdater testInstance =
+        new AccessListUpdater(
+            httpFhirClientMock, membershipCache, membershipIndexMock, 3, null, clock);
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1", "p2"));
+
+    testInstance.flush();
+
+    assertThat(testInstance.getPendingCount(), equalTo(2));
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "p1"), equalTo(true));
+    verify(membershipIndexMock, never()).invalidate(anyString());
+  }
+
+  @Test
+  public void flushInvalidPatchDropped() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_BAD_REQUEST);
+    AccessListUpdater testInstance = createUpdater();
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1"));
+
+    testInstance.flush();
+
+    assertThat(testInstance.getPendingCount(), equalTo(0));
+  }
+
+  @Test
+  public void flushInvalidPatchForgetsMembers() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_UNPROCESSABLE_ENTITY);
+    AccessListUpdater testInstance =
+        new AccessListUpdater(
+            httpFhirClientMock, membershipCache, membershipIndexMock, 3, null, clock);
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1", "p2"));
+    membershipCache.put(OTHER_LIST_ID, "p1", true);
+
+    testInstance.flush();
+
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "p1"), nullValue());
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "p2"), nullValue());
+    assertThat(membershipCache.isMember(OTHER_LIST_ID, "p1"), equalTo(true));
+    verify(membershipIndexMock).addPatient(TEST_LIST_ID, "p1");
+    verify(membershipIndexMock).invalidate(TEST_LIST_ID);
+  }
+
+  @Test
+  public void flushInvalidPatchDropsOnlyRejectedPatients() throws IOException {
+    HttpResponse rejectedResponseMock = mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
+    when(rejectedResponseMock.getStatusLine().getStatusCode())
+        .thenReturn(HttpStatus.SC_UNPROCESSABLE_ENTITY);
+    when(patchResponseMock.getStatusLine().getStatusCode()).thenReturn(HttpStatus.SC_OK);
+    when(httpFhirClientMock.patchResource(anyString(), anyString())).thenReturn(patchResponseMock);
+    when(httpFhirClientMock.patchResource(anyString(), contains("Patient/bad")))
+        .thenReturn(rejectedResponseMock);
+    AccessListUpdater testInstance =
+        new AccessListUpdater(
+            httpFhirClientMock, membershipCache, membershipIndexMock, 3, null, clock);
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1", "bad", "p2"));
+
+    testInstance.flush();
+
+    assertThat(testInstance.getPendingCount(), equalTo(0));
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "p1"), equalTo(true));
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "bad"), nullValue());
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "p2"), equalTo(true));
+    verify(membershipIndexMock).invalidate(TEST_LIST_ID);
+    // The batch of 3 is split into [p1] and [bad, p2], then the latter into [bad] and [p2].
+    verify(httpFhirClientMock, times(5)).patchResource(eq("List/" + TEST_LIST_ID), anyString());
+  }
+
+  @Test
+  public void flushFailureKeepsMembers() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_SERVICE_UNAVAILABLE);
+    AccessListUpdater testInstance =
+        new AccessListUpdater(
+            httpFhirClientMock, membershipCache, membershipIndexMock, 3, null, clock);
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1"));
+
+    testInstance.flush();
+
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "p1"), equalTo(true));
+    verify(membershipIndexMock, never()).invalidate(anyString());
+  }
+
+  @Test
+  public void addPatientsCachesMembers() throws IOException {
+    AccessListUpdater testInstance = createUpdater();
+
+    testInstance.addPatients(TEST_LIST_ID, List.of("p1"));
+
+    assertThat(membershipCache.isMember(TEST_LIST_ID, "p1"), equalTo(true));
+    verify(httpFhirClientMock, never()).patchResource(anyString(), anyString());
+  }
+
+  @Test
+  public void pendingPatientsRecoveredFromOutbox() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_OK);
+    AccessListUpdater crashedInstance = createUpdater();
+    crashedInstance.addPatients(TEST_LIST_ID, List.of("p1", "p2"));
+    // A record cut by the crash is ignored.
+    Files.write(
+        outboxPath, "+\ttest-list\tp3".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    AccessListUpdater testInstance = createUpdater();
+    assertThat(testInstance.getPendingCount(), equalTo(2));
+    testInstance.flush();
+
+    assertThat(capturePatch(TEST_LIST_ID).size(), equalTo(2));
+    assertThat(Files.size(outboxPath), equalTo(0L));
+  }
+
+  @Test
+  public void flushedPatientsNotRecovered() throws IOException {
+    setUpPatchResponse(HttpStatus.SC_OK);
+    AccessListUpdater flushedInstance = createUpdater();
+    flushedInstance.addPatients(TEST_LIST_ID, List.of("p1", "p2", "p3", "p4"));
+    flushedInstance.flush();
+
+    AccessListUpdater testInstance = createUpdater();
+
+    assertThat(testInstance.getPendingCount(), equalTo(1));
+  }
+
+  @Test
+  public void concurrentAdditionsRecoveredFromOutbox() throws Exception {
+    AccessListUpdater crashedInstance = createUpdater();
+    int numPatients = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int i = 0; i < numPatients; i++) {
+        String patientId = "p" + i;
+        results.add(
+            executor.submit(
+                () -> {
+                  crashedInstance.addPatients(TEST_LIST_ID, List.of(patientId));
+                  return null;
+                }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    AccessListUpdater testInstance = createUpdater();
+
+    assertThat(testInstance.getPendingCount(), equalTo(numPatients));
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactPatientIdSetTest {
+
+  private PatientIdDictionary dictionary;
+  private CompactPatientIdSet testSet;
+
+  @Before
+  public void setUp() {
+    dictionary = new PatientIdDictionary();
+    // Interning an ID first makes ordinals and insertion order differ.
+    dictionary.intern("p3");
+    testSet = CompactPatientIdSet.copyOf(dictionary, List.of("p1", "p2", "p1", "p3"));
+  }
+
+  @Test
+  public void copyOfRemovesDuplicates() {
+    assertThat(testSet.size(), equalTo(3));
+    assertThat(dictionary.size(), equalTo(3));
+  }
+
+  @Test
+  public void containsMembers() {
+    assertThat(testSet.contains("p1"), equalTo(true));
+    assertThat(testSet.contains("p3"), equalTo(true));
+    assertThat(testSet.contains("p4"), equalTo(false));
+  }
+
+  @Test
+  public void containsDoesNotIntern() {
+    testSet.contains("p4");
+
+    assertThat(dictionary.size(), equalTo(3));
+  }
+
+  @Test
+  public void containsAnyAndAll() {
+    assertThat(testSet.containsAny(Set.of("p4", "p2")), equalTo(true));
+    assertThat(testSet.containsAny(Set.of("p4", "p5")), equalTo(false));
+    assertThat(testSet.containsAll(Set.of("p1", "p2")), equalTo(true));
+    assertThat(testSet.containsAll(Set.of("p1", "p4")), equalTo(false));
+  }
+
+  @Test
+  public void containsAnyAndAllNoPatients() {
+    assertThat(testSet.containsAny(Set.of()), equalTo(false));
+    assertThat(testSet.containsAll(Set.of()), equalTo(false));
+  }
+
+  @Test
+  public void withNewPatient() {
+    CompactPatientIdSet newSet = testSet.with("p0");
+
+    assertThat(newSet.size(), equalTo(4));
+    assertThat(newSet.containsAll(Set.of("p0", "p1", "p2", "p3")), equalTo(true));
+    assertThat(testSet.contains("p0"), equalTo(false));
+  }
+
+  @Test
+  public void withExistingPatientSameSet() {
+    assertThat(testSet.with("p2"), sameInstance(testSet));
+  }
+
+  @Test
+  public void setsShareDictionary() {
+    CompactPatientIdSet otherSet = CompactPatientIdSet.copyOf(dictionary, List.of("p2", "p5"));
+
+    assertThat(dictionary.size(), equalTo(4));
+    assertThat(otherSet.contains("p1"), equalTo(false));
+    assertThat(otherSet.contains("p5"), equalTo(true));
+  }
+
+  @Test
+  public void withDictionaryOnlyInternsMembers() {
+    CompactPatientIdSet.copyOf(dictionary, List.of("p4", "p5"));
+    PatientIdDictionary newDictionary = new PatientIdDictionary();
+
+    CompactPatientIdSet newSet = testSet.withDictionary(newDictionary);
+
+    assertThat(newDictionary.size(), equalTo(3));
+    assertThat(newSet.size(), equalTo(3));
+    assertThat(newSet.containsAll(Set.of("p1", "p2", "p3")), equalTo(true));
+    assertThat(newSet.contains("p4"), equalTo(false));
+  }
+
+  @Test
+  public void withSameDictionarySameSet() {
+    assertThat(testSet.withDictionary(dictionary), sameInstance(testSet));
+  }
+}
@@ -17,13 +17,19 @@ package com.google.fhir.gateway.plugin;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Resources;
 import com.google.fhir.gateway.HttpFhirClient;
 import com.google.fhir.gateway.PatientFinderImp;
@@ -31,7 +37,15 @@ import com.google.fhir.gateway.interfaces.AccessChecker;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.apache.http.HttpResponse;
 import org.junit.Before;
 import org.junit.Test;
@@ -61,14 +75,47 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
     TestUtil.setUpFhirResponseMock(fhirResponseMock, testListJson);
   }
 
-  private void setUpPatientSearchMock(String patientParam, String resourceFileToReturn)
+  private static String patientSearchQuery(String... patientIds) {
+    return String.format(
+        "/Patient?_id=%s&_elements=id&_count=%d",
+        String.join(",", Sets.newTreeSet(List.of(patientIds))), patientIds.length);
+  }
+
+  /** Sets up the existence search of `searchedIds` to return only the `existingIds` patients. */
+  private void setUpPatientExistenceMock(List<String> searchedIds, String... existingIds)
       throws IOException {
-    URL listUrl = Resources.getResource(resourceFileToReturn);
-    String testListJson = Resources.toString(listUrl, StandardCharsets.UTF_8);
+    String entries =
+        Arrays.stream(existingIds)
+            .map(
+                id ->
+                    String.format(
+                        "{\"resource\": {\"resourceType\": \"Patient\", \"id\": \"%s\"}}", id))
+            .collect(Collectors.joining(","));
+    String searchJson =
+        String.format(
+            "{\"resourceType\": \"Bundle\", \"type\": \"searchset\", \"total\": %d,"
+                + " \"entry\": [%s]}",
+            existingIds.length, entries);
     HttpResponse fhirResponseMock = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
     doReturn(fhirResponseMock)
         .when(httpFhirClientMock)
-        .getResource(String.format("/Patient?_id=%s&_elements=id", patientParam));
+        .getResource(patientSearchQuery(searchedIds.toArray(new String[0])));
+    TestUtil.setUpFhirResponseMock(fhirResponseMock, searchJson);
+  }
+
+  /** Sets up the List search with any `item` params that include the given patient. */
+  private void setUpFhirListSearchMockIncluding(String patientId, String resourceFileToReturn)
+      throws IOException {
+    URL listUrl = Resources.getResource(resourceFileToReturn);
+    String testListJson = Resources.toString(listUrl, StandardCharsets.UTF_8);
+    HttpResponse fhirResponseMock = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
+    when(httpFhirClientMock.getResource(
+            argThat(
+                (String query) ->
+                    query != null
+                        && query.startsWith("/List?")
+                        && query.contains("Patient%2F" + patientId))))
+        .thenReturn(fhirResponseMock);
     TestUtil.setUpFhirResponseMock(fhirResponseMock, testListJson);
   }
 
@@ -133,8 +180,7 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
     String testJson = Resources.toString(url, StandardCharsets.UTF_8);
     HttpResponse fhirResponseMock = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
     TestUtil.setUpFhirResponseMock(fhirResponseMock, testJson);
-    when(httpFhirClientMock.getResource(
-            String.format("/Patient?_id=%s&_elements=id", PATIENT_AUTHORIZED)))
+    when(httpFhirClientMock.getResource(patientSearchQuery(PATIENT_AUTHORIZED)))
         .thenReturn(fhirResponseMock);
     AccessChecker testInstance = getInstance();
     assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(true));
@@ -174,8 +220,6 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
   public void canAccessGetObservations() throws IOException {
     when(requestMock.getResourceName()).thenReturn("Observation");
     when(requestMock.getRequestType()).thenReturn(RequestTypeEnum.GET);
-    setUpPatientSearchMock(PATIENT_AUTHORIZED, "patient_id_search_single.json");
-    setUpPatientSearchMock(PATIENT_IN_BUNDLE_1, "patient_id_search_single.json");
     setUpFhirListSearchMock(
         String.format(
             "item=Patient%%2F%s&item=Patient%%2F%s", PATIENT_IN_BUNDLE_1, PATIENT_AUTHORIZED),
@@ -197,8 +241,7 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
     String testJson = Resources.toString(url, StandardCharsets.UTF_8);
     HttpResponse fhirResponseMock = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
     TestUtil.setUpFhirResponseMock(fhirResponseMock, testJson);
-    when(httpFhirClientMock.getResource(
-            String.format("/Patient?_id=%s&_elements=id", PATIENT_AUTHORIZED)))
+    when(httpFhirClientMock.getResource(patientSearchQuery(PATIENT_AUTHORIZED)))
         .thenReturn(fhirResponseMock);
     AccessChecker testInstance = getInstance();
     assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(true));
@@ -216,8 +259,6 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
   @Test
   public void canAccessBundleGetNonPatientAuthorized() throws IOException {
     setUpFhirBundle("bundle_transaction_get_non_patient_multiple_authorized.json");
-    setUpPatientSearchMock(PATIENT_AUTHORIZED, "patient_id_search_single.json");
-    setUpPatientSearchMock(PATIENT_IN_BUNDLE_1, "patient_id_search_single.json");
     setUpFhirListSearchMock(
         String.format(
             "item=Patient%%2F%s&item=Patient%%2F%s", PATIENT_IN_BUNDLE_1, PATIENT_AUTHORIZED),
@@ -238,8 +279,8 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
   @Test
   public void canAccessBundlePutExistingPatient() throws IOException {
     setUpFhirBundle("bundle_transaction_put_patient.json");
-    setUpPatientSearchMock(PATIENT_AUTHORIZED, "patient_id_search_single.json");
-    setUpPatientSearchMock(PATIENT_IN_BUNDLE_1, "patient_id_search_single.json");
+    setUpPatientExistenceMock(
+        List.of(PATIENT_AUTHORIZED, PATIENT_IN_BUNDLE_1), PATIENT_AUTHORIZED, PATIENT_IN_BUNDLE_1);
     setUpFhirListSearchMock(
         String.format(
             "item=Patient%%2F%s&item=Patient%%2F%s", PATIENT_IN_BUNDLE_1, PATIENT_AUTHORIZED),
@@ -248,11 +289,34 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
     assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(true));
   }
 
+  @Test
+  public void canAccessBundlePutExistingPatientsSingleSearch() throws IOException {
+    setUpFhirBundle("bundle_transaction_put_patient.json");
+    setUpPatientExistenceMock(
+        List.of(PATIENT_AUTHORIZED, PATIENT_IN_BUNDLE_1), PATIENT_AUTHORIZED, PATIENT_IN_BUNDLE_1);
+    setUpFhirListSearchMock(
+        String.format(
+            "item=Patient%%2F%s&item=Patient%%2F%s", PATIENT_IN_BUNDLE_1, PATIENT_AUTHORIZED),
+        "bundle_list_patient_item.json");
+    AccessChecker testInstance = getInstance();
+
+    testInstance.checkAccess(requestMock);
+
+    verify(httpFhirClientMock, times(1))
+        .getResource(patientSearchQuery(PATIENT_AUTHORIZED, PATIENT_IN_BUNDLE_1));
+    verify(httpFhirClientMock, times(2)).getResource(anyString());
+  }
+
   @Test
   public void canAccessBundlePutNewPatient() throws IOException {
     setUpFhirBundle("bundle_transaction_put_patient.json");
-    setUpPatientSearchMock(PATIENT_AUTHORIZED, "bundle_empty.json");
-    setUpPatientSearchMock(PATIENT_IN_BUNDLE_1, "patient_id_search_single.json");
+    setUpPatientExistenceMock(
+        List.of(PATIENT_AUTHORIZED, PATIENT_IN_BUNDLE_1), PATIENT_IN_BUNDLE_1);
+    // The first check assumes both patients exist; the new one is not in the list.
+    setUpFhirListSearchMock(
+        String.format(
+            "item=Patient%%2F%s&item=Patient%%2F%s", PATIENT_IN_BUNDLE_1, PATIENT_AUTHORIZED),
+        "bundle_empty.json");
     setUpFhirListSearchMock(
         String.format("item=Patient%%2F%s", PATIENT_IN_BUNDLE_1), "bundle_list_patient_item.json");
     AccessChecker testInstance = getInstance();
@@ -264,7 +328,7 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
     setUpFhirBundle("bundle_transaction_put_unauthorized.json");
     setUpFhirListSearchMock(
         String.format("item=Patient%%2F%s", PATIENT_NON_AUTHORIZED), "bundle_empty.json");
-    setUpPatientSearchMock(PATIENT_NON_AUTHORIZED, "bundle_list_patient_item.json");
+    setUpPatientExistenceMock(List.of(PATIENT_NON_AUTHORIZED), PATIENT_NON_AUTHORIZED);
     AccessChecker testInstance = getInstance();
     assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(false));
   }
@@ -284,7 +348,9 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
             "item=Patient%%2F%s&item=Patient%%2F%s%%2CPatient%%2F%s",
             PATIENT_IN_BUNDLE_1, PATIENT_IN_BUNDLE_1, PATIENT_AUTHORIZED),
         "bundle_list_patient_item.json");
-    setUpPatientSearchMock(PATIENT_IN_BUNDLE_2, "bundle_empty.json");
+    setUpPatientExistenceMock(List.of(PATIENT_IN_BUNDLE_2));
+    // The first check assumes the new patient exists.
+    setUpFhirListSearchMockIncluding(PATIENT_IN_BUNDLE_2, "bundle_empty.json");
     AccessChecker testInstance = getInstance();
     assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(true));
   }
@@ -292,7 +358,7 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
   @Test
   public void canAccessBundlePatchUnauthorized() throws IOException {
     setUpFhirBundle("bundle_transaction_patch_unauthorized.json");
-    setUpPatientSearchMock(PATIENT_AUTHORIZED, "bundle_list_patient_item.json");
+    setUpPatientExistenceMock(List.of(PATIENT_AUTHORIZED), PATIENT_AUTHORIZED);
     setUpFhirListSearchMock(
         String.format(
             "item=Patient%%2Fmichael%%2CPatient%%2Fbob&item=Patient%%2F%s&item=Patient%%2F%s",
@@ -394,8 +460,6 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
   public void canAccessDeleteObservationsForMultiplePatients() throws IOException {
     when(requestMock.getResourceName()).thenReturn("Observation");
     when(requestMock.getRequestType()).thenReturn(RequestTypeEnum.DELETE);
-    setUpPatientSearchMock(PATIENT_AUTHORIZED, "patient_id_search_single.json");
-    setUpPatientSearchMock(PATIENT_IN_BUNDLE_1, "patient_id_search_single.json");
     setUpFhirListSearchMock(
         String.format(
             "item=Patient%%2F%s&item=Patient%%2F%s", PATIENT_IN_BUNDLE_1, PATIENT_AUTHORIZED),
@@ -413,8 +477,6 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
   public void canAccessDeleteObservationsForMultiplePatientsUnauthorized() throws IOException {
     when(requestMock.getResourceName()).thenReturn("Observation");
     when(requestMock.getRequestType()).thenReturn(RequestTypeEnum.DELETE);
-    setUpPatientSearchMock(PATIENT_AUTHORIZED, "patient_id_search_single.json");
-    setUpPatientSearchMock(PATIENT_NON_AUTHORIZED, "patient_id_search_single.json");
     setUpFhirListSearchMock(
         String.format(
             "item=Patient%%2F%s&item=Patient%%2F%s", PATIENT_NON_AUTHORIZED, PATIENT_AUTHORIZED),
@@ -438,5 +500,136 @@ public class ListAccessCheckerTest extends AccessCheckerTestBase {
 
     assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(false));
   }
+
+  @Test
+  public void canAccessGetObservationMembershipCached() throws IOException {
+    when(requestMock.getResourceName()).thenReturn("Observation");
+    when(requestMock.getParameters())
+        .thenReturn(Map.of("subject", new String[] {PATIENT_AUTHORIZED}));
+    ListAccessChecker.Factory factory = new ListAccessChecker.Factory();
+
+    for (int i = 0; i < 3; i++) {
+      AccessChecker testInstance =
+          factory.create(
+              jwtMock, httpFhirClientMock, fhirContext, PatientFinderImp.getInstance(fhirContext));
+      assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(true));
+    }
+    verify(httpFhirClientMock, times(1))
+        .getResource(
+            String.format(
+                "/List?_id=%s&_elements=id&item=Patient%%2F%s", TEST_LIST_ID, PATIENT_AUTHORIZED));
+  }
+
+  @Test
+  public void canAccessGetObservationNonMembershipCached() throws IOException {
+    when(requestMock.getResourceName()).thenReturn("Observation");
+    when(requestMock.getParameters())
+        .thenReturn(Map.of("subject", new String[] {PATIENT_NON_AUTHORIZED}));
+    ListAccessChecker.Factory factory = new ListAccessChecker.Factory();
+
+    for (int i = 0; i < 3; i++) {
+      AccessChecker testInstance =
+          factory.create(
+              jwtMock, httpFhirClientMock, fhirContext, PatientFinderImp.getInstance(fhirContext));
+      assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(false));
+    }
+    verify(httpFhirClientMock, times(1))
+        .getResource(
+            String.format(
+                "/List?_id=%s&_elements=id&item=Patient%%2F%s",
+                TEST_LIST_ID, PATIENT_NON_AUTHORIZED));
+  }
+
+  @Test
+  public void canAccessGetObservationConcurrentSearchesCoalesced() throws Exception {
+    when(requestMock.getResourceName()).thenReturn("Observation");
+    when(requestMock.getParameters())
+        .thenReturn(Map.of("subject", new String[] {PATIENT_AUTHORIZED}));
+    ListAccessChecker.Factory factory = new ListAccessChecker.Factory();
+    String listQuery =
+        String.format(
+            "/List?_id=%s&_elements=id&item=Patient%%2F%s", TEST_LIST_ID, PATIENT_AUTHORIZED);
+    HttpResponse listResponse = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
+    TestUtil.setUpFhirResponseMock(
+        listResponse,
+        Resources.toString(
+            Resources.getResource("bundle_list_patient_item.json"), StandardCharsets.UTF_8));
+    // Holds the first search in flight until the second request is waiting for its result.
+    doAnswer(
+            invocation -> {
+              while (factory.getCoalescedListSearchCount() == 0) {
+                Thread.sleep(10);
+              }
+              return listResponse;
+            })
+        .when(httpFhirClientMock)
+        .getResource(listQuery);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<Boolean>> results =
+          executor.invokeAll(
+              Collections.nCopies(
+                  2,
+                  () ->
+                      factory
+                          .create(
+                              jwtMock,
+                              httpFhirClientMock,
+                              fhirContext,
+                              PatientFinderImp.getInstance(fhirContext))
+                          .checkAccess(requestMock)
+                          .canAccess()),
+              10,
+              TimeUnit.SECONDS);
+      for (Future<Boolean> result : results) {
+        assertThat(result.get(), equalTo(true));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(httpFhirClientMock, times(1)).getResource(listQuery);
+    assertThat(factory.getListSearchCount(), equalTo(1L));
+    assertThat(factory.getCoalescedListSearchCount(), equalTo(1L));
+  }
+
+  @Test
+  public void canAccessGetObservationsPartiallyCached() throws IOException {
+    when(requestMock.getResourceName()).thenReturn("Observation");
+    ListAccessChecker.Factory factory = new ListAccessChecker.Factory();
+    when(requestMock.getParameters())
+        .thenReturn(Map.of("subject", new String[] {PATIENT_AUTHORIZED}));
+    factory
+        .create(jwtMock, httpFhirClientMock, fhirContext, PatientFinderImp.getInstance(fhirContext))
+        .checkAccess(requestMock);
+    // Now only the membership of the second patient is unknown.
+    setUpFhirListSearchMock(
+        "item=Patient%2F" + PATIENT_IN_BUNDLE_1, "bundle_list_patient_item.json");
+    Map<String, String[]> params = Maps.newHashMap();
+    params.put("subject", new String[] {PATIENT_AUTHORIZED + "," + PATIENT_IN_BUNDLE_1});
+    when(requestMock.getParameters()).thenReturn(params);
+
+    AccessChecker testInstance =
+        factory.create(
+            jwtMock, httpFhirClientMock, fhirContext, PatientFinderImp.getInstance(fhirContext));
+
+    assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(true));
+  }
   // TODO add an Appointment POST
+
+  @Test
+  public void canAccessPutExistingPatientRepeatedSearchedOnce() throws IOException {
+    when(requestMock.getResourceName()).thenReturn("Patient");
+    when(requestMock.getRequestType()).thenReturn(RequestTypeEnum.PUT);
+    when(requestMock.getId()).thenReturn(PATIENT_AUTHORIZED_ID);
+    setUpPatientExistenceMock(List.of(PATIENT_AUTHORIZED), PATIENT_AUTHORIZED);
+    ListAccessChecker.Factory factory = new ListAccessChecker.Factory();
+
+    for (int i = 0; i < 3; i++) {
+      AccessChecker testInstance =
+          factory.create(
+              jwtMock, httpFhirClientMock, fhirContext, PatientFinderImp.getInstance(fhirContext));
+      assertThat(testInstance.checkAccess(requestMock).canAccess(), equalTo(true));
+    }
+    verify(httpFhirClientMock, times(1)).getResource(patientSearchQuery(PATIENT_AUTHORIZED));
+  }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.plugin;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.net.UrlEscapers;
+import com.google.fhir.gateway.HttpFhirClient;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ListMembershipIndexTest {
+
+  private static final String TEST_LIST_ID = "test-list";
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  @Mock private HttpFhirClient httpFhirClientMock;
+
+  private final TestClock clock = new TestClock(Instant.parse("2024-01-01T10:00:00Z"));
+  private ListMembershipIndex testInstance;
+
+  private static String listJson(String lastUpdated, String... patientIds) {
+    StringBuilder entries = new StringBuilder();
+    for (String patientId : patientIds) {
+      if (entries.length() > 0) {
+        entries.append(",");
+      }
+      entries.append(String.format("{\"item\": {\"reference\": \"Patient/%s\"}}", patientId));
+    }
+    return String.format(
+        "{\"resourceType\": \"List\", \"id\": \"%s\", \"meta\": {\"lastUpdated\": \"%s\"},"
+            + " \"status\": \"current\", \"mode\": \"working\", \"entry\": [%s]}",
+        TEST_LIST_ID, lastUpdated, entries);
+  }
+
+  private static String historyJson(String... listJsons) {
+    StringBuilder entries = new StringBuilder();
+    for (String listJson : listJsons) {
+      if (entries.length() > 0) {
+        entries.append(",");
+      }
+      entries.append(String.format("{\"resource\": %s}", listJson));
+    }
+    return String.format(
+        "{\"resourceType\": \"Bundle\", \"type\": \"history\", \"entry\": [%s]}", entries);
+  }
+
+  private void setUpResponse(String resourcePath, String json) throws IOException {
+    HttpResponse responseMock = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
+    TestUtil.setUpFhirResponseMock(responseMock, json);
+    when(httpFhirClientMock.getResource(resourcePath)).thenReturn(responseMock);
+  }
+
+  private void setUpHistoryResponse(String json) throws IOException {
+    HttpResponse responseMock = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
+    TestUtil.setUpFhirResponseMock(responseMock, json);
+    when(httpFhirClientMock.getResource(startsWith("List/_history?_since=")))
+        .thenReturn(responseMock);
+  }
+
+  private void verifyHistorySearchedSince(String since) throws IOException {
+    verify(httpFhirClientMock)
+        .getResource(
+            String.format(
+                "List/_history?_since=%s&_count=%d",
+                UrlEscapers.urlFormParameterEscaper().escape(since),
+                ListMembershipIndex.HISTORY_PAGE_SIZE));
+  }
+
+  private void assertIndexedPatients(String... patientIds) {
+    CompactPatientIdSet indexedPatients = testInstance.getPatients(TEST_LIST_ID);
+    assertThat(indexedPatients.size(), equalTo(patientIds.length));
+    assertThat(indexedPatients.containsAll(List.of(patientIds)), equalTo(patientIds.length > 0));
+  }
+
+  @Before
+  public void setUp() {
+    testInstance =
+        new ListMembershipIndex(
+            httpFhirClientMock,
+            fhirContext,
+            100,
+            Duration.ofSeconds(10),
+            Duration.ofSeconds(60),
+            clock);
+  }
+
+  @Test
+  public void getPatientsLoadsListOnce() throws IOException {
+    setUpResponse(
+        "List/" + TEST_LIST_ID, listJson("2024-01-01T09:00:00Z", "patient-1", "patient-2"));
+
+    assertIndexedPatients("patient-1", "patient-2");
+    assertIndexedPatients("patient-1", "patient-2");
+    verify(httpFhirClientMock, times(1)).getResource("List/" + TEST_LIST_ID);
+  }
+
+  @Test
+  public void getPatientsMissingListEmpty() throws IOException {
+    HttpResponse responseMock = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
+    when(responseMock.getStatusLine().getStatusCode()).thenReturn(HttpStatus.SC_NOT_FOUND);
+    when(httpFhirClientMock.getResource("List/" + TEST_LIST_ID)).thenReturn(responseMock);
+
+    assertIndexedPatients();
+  }
+
+  @Test
+  public void getPatientsLoadFailureNull() throws IOException {
+    when(httpFhirClientMock.getResource("List/" + TEST_LIST_ID)).thenThrow(new IOException());
+
+    assertThat(testInstance.getPatients(TEST_LIST_ID), nullValue());
+  }
+
+  @Test
+  public void syncAppliesNewerVersions() throws IOException {
+    setUpResponse("List/" + TEST_LIST_ID, listJson("2024-01-01T09:00:00Z", "patient-1"));
+    testInstance.getPatients(TEST_LIST_ID);
+    // The history has an older and a newer version of the list.
+    setUpHistoryResponse(
+        historyJson(
+            listJson("2024-01-01T10:00:05Z", "patient-1", "patient-2"),
+            listJson("2024-01-01T08:00:00Z")));
+    clock.advance(Duration.ofSeconds(10));
+
+    testInstance.sync();
+
+    assertIndexedPatients("patient-1", "patient-2");
+  }
+
+  @Test
+  public void syncIgnoresOlderVersions() throws IOException {
+    setUpResponse("List/" + TEST_LIST_ID, listJson("2024-01-01T09:00:00Z", "patient-1"));
+    testInstance.getPatients(TEST_LIST_ID);
+    setUpHistoryResponse(historyJson(listJson("2024-01-01T08:00:00Z", "patient-2")));
+    clock.advance(Duration.ofSeconds(10));
+
+    testInstance.sync();
+
+    assertIndexedPatients("patient-1");
+  }
+
+  @Test
+  public void addPatientUpdatesIndexedList() throws IOException {
+    setUpResponse("List/" + TEST_LIST_ID, listJson("2024-01-01T09:00:00Z", "patient-1"));
+    testInstance.getPatients(TEST_LIST_ID);
+
+    testInstance.addPatient(TEST_LIST_ID, "patient-2");
+
+    assertIndexedPatients("patient-1", "patient-2");
+  }
+
+  @Test
+  public void getPatientsStaleIndexNull() throws IOException {
+    setUpResponse("List/" + TEST_LIST_ID, listJson("2024-01-01T09:00:00Z", "patient-1"));
+    testInstance.getPatients(TEST_LIST_ID);
+    when(httpFhirClientMock.getResource(startsWith("List/_history?_since=")))
+        .thenThrow(new IOException());
+    clock.advance(Duration.ofSeconds(61));
+
+    try {
+      testInstance.sync();
+    } catch (IOException e) {
+      // Expected.
+    }
+
+    assertThat(testInstance.getPatients(TEST_LIST_ID), nullValue());
+  }
+
+  @Test
+  public void syncWithoutChangesMovesSinceForward() throws IOException {
+    setUpResponse("List/" + TEST_LIST_ID, listJson("2024-01-01T09:00:00Z", "patient-1"));
+    testInstance.getPatients(TEST_LIST_ID);
+    setUpHistoryResponse(historyJson());
+
+    for (int i = 0; i < 3; i++) {
+      clock.advance(Duration.ofSeconds(10));
+      testInstance.sync();
+    }
+
+    verifyHistorySearchedSince("2024-01-01T09:59:55Z");
+    verifyHistorySearchedSince("2024-01-01T10:00:05Z");
+    verifyHistorySearchedSince("2024-01-01T10:00:15Z");
+  }
+
+  @Test
+  public void syncUsesTimeOfFhirStore() throws IOException {
+    setUpResponse("List/" + TEST_LIST_ID, listJson("2024-01-01T09:00:00Z", "patient-1"));
+    testInstance.getPatients(TEST_LIST_ID);
+    // The clock of the FHIR store is one minute ahead.
+    setUpHistoryResponse(
+        "{\"resourceType\": \"Bundle\", \"type\": \"history\","
+            + " \"meta\": {\"lastUpdated\": \"2024-01-01T10:01:10Z\"}}");
+    clock.advance(Duration.ofSeconds(10));
+
+    testInstance.sync();
+    testInstance.sync();
+
+    verifyHistorySearchedSince("2024-01-01T10:01:05Z");
+  }
+
+  @Test
+  public void syncCompactsDictionary() throws IOException {
+    String[] patientIds = new String[ListMembershipIndex.MIN_DICTIONARY_COMPACTION_SIZE];
+    for (int i = 0; i < patientIds.length; i++) {
+      patientIds[i] = "patient-" + i;
+    }
+    setUpResponse("List/" + TEST_LIST_ID, listJson("2024-01-01T09:00:00Z", patientIds));
+    testInstance.getPatients(TEST_LIST_ID);
+    // All but one patient are removed from the list.
+    setUpHistoryResponse(historyJson(listJson("2024-01-01T10:00:05Z", "patient-0", "patient-x")));
+    clock.advance(Duration.ofSeconds(10));
+
+    testInstance.sync();
+
+    assertThat(testInstance.getDictionarySize(), equalTo(2));
+    assertIndexedPatients("patient-0", "patient-x");
+    assertThat(testInstance.getPatients(TEST_LIST_ID).contains("patient-1"), equalTo(false));
+  }
+}
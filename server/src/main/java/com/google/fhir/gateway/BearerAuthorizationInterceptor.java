@@ -20,29 +20,53 @@ import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.server.IRestfulResponse;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.fhir.gateway.interfaces.AccessChecker;
 import com.google.fhir.gateway.interfaces.AccessCheckerFactory;
 import com.google.fhir.gateway.interfaces.AccessDecision;
 import com.google.fhir.gateway.interfaces.RequestDetailsReader;
 import com.google.fhir.gateway.interfaces.RequestMutation;
+import com.google.fhir.gateway.interfaces.ResponseStreamProcessor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
-import java.util.Locale;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.CollectionUtils;
@@ -59,6 +83,10 @@ public class BearerAuthorizationInterceptor {
 
   private static final String GZIP_ENCODING_VALUE = "gzip";
 
+  private static final String GZIP_LEVEL_ENV = "RESPONSE_GZIP_LEVEL";
+
+  private static final int GZIP_BUFFER_SIZE = 8192;
+
   // See https://hl7.org/fhir/smart-app-launch/conformance.html#using-well-known
   @VisibleForTesting static final String WELL_KNOWN_CONF_PATH = ".well-known/smart-configuration";
 
@@ -71,6 +99,18 @@ public class BearerAuthorizationInterceptor {
   private final AccessCheckerFactory accessFactory;
   private final AllowedQueriesChecker allowedQueriesChecker;
 
+  // The UTF-8 encoded base URL of the FHIR store, for byte-level URL replacement.
+  private final byte[] fhirStoreUrlBytes;
+
+  // The compression level used when responses are gzipped by the proxy.
+  private final int gzipLevel;
+
+  // Only used in the async mode, for copying FHIR store responses to the client.
+  private final Executor asyncResponseExecutor;
+
+  // For serving `/metadata` without going to the FHIR store; null if disabled.
+  @Nullable private final CapabilityStatementCache capabilityCache;
+
   BearerAuthorizationInterceptor(
       HttpFhirClient fhirClient,
       TokenVerifier tokenVerifier,
@@ -85,13 +125,25 @@ public class BearerAuthorizationInterceptor {
     this.tokenVerifier = tokenVerifier;
     this.accessFactory = accessFactory;
     this.allowedQueriesChecker = allowedQueriesChecker;
+    this.asyncResponseExecutor = fhirClient.isAsyncEnabled() ? createAsyncResponseExecutor() : null;
+    this.fhirStoreUrlBytes = fhirClient.getBaseUrl().getBytes(StandardCharsets.UTF_8);
+    this.gzipLevel = EnvUtil.getIntOrDefault(GZIP_LEVEL_ENV, Deflater.DEFAULT_COMPRESSION);
+    this.capabilityCache =
+        CapabilityStatementCache.createFromEnvVars(fhirClient, server.getFhirContext());
+    Preconditions.checkArgument(
+        gzipLevel == Deflater.DEFAULT_COMPRESSION
+            || (gzipLevel >= Deflater.BEST_SPEED && gzipLevel <= Deflater.BEST_COMPRESSION),
+        "%s should be between 1 and 9; got %s",
+        GZIP_LEVEL_ENV,
+        gzipLevel);
     logger.info("Created proxy to the FHIR store " + this.fhirClient.getBaseUrl());
   }
 
   private AccessDecision checkAuthorization(RequestDetails requestDetails) {
     if (METADATA_PATH.equals(requestDetails.getRequestPath())) {
       // No further check is required; provide CapabilityStatement with security information.
-      // Note this is potentially an expensive resource to produce because of its size and parsings.
+      // Note this is potentially an expensive resource to produce because of its size and parsings;
+      // plain GET requests are normally served from `capabilityCache` instead (see below).
       // Abuse of this open endpoint should be blocked by DDOS prevention means.
       return CapabilityPostProcessor.getInstance(server.getFhirContext());
     }
@@ -146,73 +198,258 @@ public class BearerAuthorizationInterceptor {
       serveWellKnown(servletDetails);
       return false;
     }
+    if (METADATA_PATH.equals(requestPath)
+        && capabilityCache != null
+        && requestDetails.getRequestType() == RequestTypeEnum.GET
+        && requestDetails.getParameters().isEmpty()
+        && serveCachedCapability(servletDetails)) {
+      return false;
+    }
     AccessDecision outcome = checkAuthorization(requestDetails);
     mutateRequest(requestDetails, outcome);
     logger.debug("Authorized request path " + requestPath);
+    if (fhirClient.isAsyncEnabled() && servletDetails.getServletRequest().isAsyncSupported()) {
+      relayRequestAsync(servletDetails, outcome);
+    } else {
+      relayRequest(servletDetails, outcome);
+    }
+    // The request processing stops here, hence returning false.
+    return false;
+  }
+
+  private void relayRequest(ServletRequestDetails servletDetails, AccessDecision outcome) {
+    HttpResponse response = null;
     try {
-      HttpResponse response = fhirClient.handleRequest(servletDetails);
-      HttpUtil.validateResponseEntityExistsOrFail(response, requestPath);
-      // TODO communicate post-processing failures to the client; see:
-      //   https://github.com/google/fhir-access-proxy/issues/66
-
-      String content = null;
-      if (HttpUtil.isResponseValid(response)) {
-        try {
-          // For post-processing rationale/example see b/207589782#comment3.
-          content = outcome.postProcess(new RequestDetailsToReader(requestDetails), response);
-        } catch (Exception e) {
-          // Note this is after a successful fetch/update of the FHIR store. That success must be
-          // passed to the client even if the access related post-processing fails.
-          logger.error(
-              "Exception in access related post-processing for {} {}",
-              requestDetails.getRequestType(),
-              requestDetails.getRequestPath(),
-              e);
-        }
-      }
-      HttpEntity entity = response.getEntity();
-      logger.debug(String.format("The response for %s is %s ", requestPath, response));
-      logger.info("FHIR store response length: " + entity.getContentLength());
-      IRestfulResponse proxyResponse = requestDetails.getResponse();
-      for (Header header : fhirClient.responseHeadersToKeep(response)) {
-        proxyResponse.addHeader(header.getName(), header.getValue());
-      }
-      // This should be called after adding headers.
-      // TODO verify DEFAULT_CONTENT_TYPE/CHARSET are compatible with `entity.getContentType()`.
-      Writer writer =
-          proxyResponse.getResponseWriter(
-              response.getStatusLine().getStatusCode(),
-              response.getStatusLine().toString(),
-              DEFAULT_CONTENT_TYPE,
-              Constants.CHARSET_NAME_UTF8,
-              sendGzippedResponse(servletDetails));
-      Reader reader;
-      if (content != null) {
-        // We can read the entity body stream only once; in this case we have already done that.
-        reader = new StringReader(content);
-      } else {
-        reader = HttpUtil.readerFromEntity(entity);
-      }
-      replaceAndCopyResponse(reader, writer, server.getServerBaseForRequest(servletDetails));
+      response = fhirClient.handleRequest(servletDetails);
+      copyResponse(servletDetails, outcome, response);
     } catch (IOException e) {
       logger.error(
           String.format(
               "Exception for resource %s method %s with error: %s",
-              requestPath, servletDetails.getServletRequest().getMethod(), e));
+              servletDetails.getRequestPath(),
+              servletDetails.getServletRequest().getMethod(),
+              e));
       ExceptionUtil.throwRuntimeExceptionAndLog(logger, e.getMessage(), e);
+    } finally {
+      // Makes sure the connection to the FHIR store is released back to the pool, even if the
+      // response content is not fully read because of an error.
+      if (response != null) {
+        EntityUtils.consumeQuietly(response.getEntity());
+      }
     }
+  }
 
-    // The request processing stops here, hence returning false.
-    return false;
+  /**
+   * Relays the request to the FHIR store using Servlet async processing, i.e., the container thread
+   * is released while waiting for the FHIR store and the response is copied on another thread.
+   */
+  private void relayRequestAsync(ServletRequestDetails servletDetails, AccessDecision outcome) {
+    // Note any error in creating the outgoing request is thrown here, before the async processing
+    // starts, hence it is handled by HAPI as usual.
+    CompletableFuture<HttpResponse> responseFuture = fhirClient.handleRequestAsync(servletDetails);
+    HttpServletRequest servletRequest = servletDetails.getServletRequest();
+    AsyncContext asyncContext =
+        servletRequest.startAsync(servletRequest, servletDetails.getServletResponse());
+    // The FHIR store timeouts are enforced by the HTTP client.
+    asyncContext.setTimeout(0);
+    responseFuture.whenCompleteAsync(
+        (response, error) -> {
+          try {
+            if (error != null) {
+              sendAsyncError(servletDetails, error);
+            } else {
+              copyResponse(servletDetails, outcome, response);
+            }
+          } catch (Exception e) {
+            sendAsyncError(servletDetails, e);
+          } finally {
+            if (response != null) {
+              EntityUtils.consumeQuietly(response.getEntity());
+            }
+            asyncContext.complete();
+          }
+        },
+        asyncResponseExecutor);
+  }
+
+  private static Executor createAsyncResponseExecutor() {
+    return VirtualThreadUtil.newVirtualThreadPerTaskExecutor()
+        .orElseGet(
+            () ->
+                Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder()
+                        .setNameFormat("fhir-store-response-%d")
+                        .setDaemon(true)
+                        .build()));
+  }
+
+  /**
+   * Once the async processing is started, exceptions cannot be propagated to HAPI anymore, so this
+   * is the equivalent of HAPI's exception handling for relayed requests.
+   */
+  private void sendAsyncError(ServletRequestDetails servletDetails, Throwable error) {
+    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+    logger.error(
+        "Exception for resource {} method {}",
+        servletDetails.getRequestPath(),
+        servletDetails.getServletRequest().getMethod(),
+        cause);
+    HttpServletResponse servletResponse = servletDetails.getServletResponse();
+    if (servletResponse.isCommitted()) {
+      // Part of the response has already been sent; nothing else can be done.
+      return;
+    }
+    int statusCode = HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    if (cause instanceof BaseServerResponseException) {
+      statusCode = ((BaseServerResponseException) cause).getStatusCode();
+    }
+    try {
+      servletResponse.sendError(statusCode, cause.getMessage());
+    } catch (IOException e) {
+      logger.error("Failed to send the error response", e);
+    }
+  }
+
+  private void copyResponse(
+      ServletRequestDetails servletDetails, AccessDecision outcome, HttpResponse response)
+      throws IOException {
+    String requestPath = servletDetails.getRequestPath();
+    HttpUtil.validateResponseEntityExistsOrFail(response, requestPath);
+    // FHIR store responses are received in their original content-encoding (see HttpFhirClient).
+    // Post-processors expect the decoded content, but we avoid decoding if they do not need it.
+    HttpEntity rawEntity = response.getEntity();
+    String contentEncoding = DecodingEntity.contentEncodingOf(rawEntity);
+    DecodingEntity decodingEntity = null;
+    if (DecodingEntity.isDecodable(contentEncoding)) {
+      decodingEntity = new DecodingEntity(rawEntity, contentEncoding);
+      response.setEntity(decodingEntity);
+    }
+    // TODO communicate post-processing failures to the client; see:
+    //   https://github.com/google/fhir-access-proxy/issues/66
+
+    String content = null;
+    ResponseStreamProcessor streamProcessor = null;
+    if (HttpUtil.isResponseValid(response)) {
+      try {
+        // For post-processing rationale/example see b/207589782#comment3.
+        RequestDetailsReader requestReader = new RequestDetailsToReader(servletDetails);
+        content = outcome.postProcess(requestReader, response);
+        if (content == null) {
+          streamProcessor = outcome.getResponseStreamProcessor(requestReader, response);
+        }
+      } catch (Exception e) {
+        // Note this is after a successful fetch/update of the FHIR store. That success must be
+        // passed to the client even if the access related post-processing fails.
+        logger.error(
+            "Exception in access related post-processing for {} {}",
+            servletDetails.getRequestType(),
+            servletDetails.getRequestPath(),
+            e);
+      }
+    }
+    HttpEntity entity = decodingEntity != null ? decodingEntity : rawEntity;
+    logger.debug(String.format("The response for %s is %s ", requestPath, response));
+    logger.info("FHIR store response length: " + rawEntity.getContentLength());
+    String proxyBase = server.getServerBaseForRequest(servletDetails);
+    boolean isTextual = content != null || HttpUtil.isTextual(entity);
+    boolean rewriteUrls = isTextual && !fhirClient.getBaseUrl().equals(proxyBase);
+    boolean gzipResponse = sendGzippedResponse(servletDetails);
+
+    HttpServletResponse servletResponse = servletDetails.getServletResponse();
+    for (Header header : fhirClient.responseHeadersToKeep(response)) {
+      servletResponse.addHeader(header.getName(), header.getValue());
+    }
+    servletResponse.setStatus(response.getStatusLine().getStatusCode());
+    if (isTextual) {
+      // Textual content is always sent in UTF-8; see below.
+      servletResponse.setContentType(DEFAULT_CONTENT_TYPE);
+      servletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+    } else if (entity.getContentType() != null) {
+      servletResponse.setContentType(entity.getContentType().getValue());
+    }
+
+    if (content == null
+        && contentEncoding != null
+        && (decodingEntity == null
+            || (!rewriteUrls
+                && streamProcessor == null
+                && !decodingEntity.isContentRequested()
+                && gzipResponse
+                && DecodingEntity.isGzip(contentEncoding)))) {
+      // The encoded content is passed through as is. Note unknown encodings (which are never
+      // requested by HttpFhirClient) can only be passed through, i.e., without URL replacement.
+      if (decodingEntity == null) {
+        logger.warn("Unknown content-encoding {} for {}", contentEncoding, requestPath);
+        if (streamProcessor != null) {
+          logger.error("Skipped stream post-processing of the encoded content for {}", requestPath);
+        }
+      }
+      servletResponse.addHeader(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+      try (InputStream entityStream = rawEntity.getContent();
+          OutputStream outputStream = servletResponse.getOutputStream()) {
+        ByteStreams.copy(entityStream, outputStream);
+      }
+      return;
+    }
+
+    OutputStream outputStream = servletResponse.getOutputStream();
+    if (gzipResponse) {
+      servletResponse.addHeader(HttpHeaders.CONTENT_ENCODING, GZIP_ENCODING_VALUE);
+      outputStream = createGzipStream(outputStream);
+    }
+    if (content != null) {
+      // We can read the entity body stream only once; in this case we have already done that.
+      try (Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)) {
+        replaceAndCopyResponse(new StringReader(content), writer, proxyBase, rewriteUrls);
+      }
+    } else if (!isTextual || StandardCharsets.UTF_8.equals(HttpUtil.charsetOf(entity))) {
+      // The common case; the entity bytes are copied without any charset decoding/encoding.
+      if (rewriteUrls) {
+        outputStream =
+            new ReplacingOutputStream(
+                outputStream, fhirStoreUrlBytes, proxyBase.getBytes(StandardCharsets.UTF_8));
+      }
+      // Stream post-processing is chained with the URL replacement, i.e., done in the same pass.
+      try (InputStream entityStream = entity.getContent();
+          OutputStream replacingStream = outputStream) {
+        if (streamProcessor != null) {
+          streamProcessor.process(entityStream, replacingStream);
+        } else {
+          ByteStreams.copy(entityStream, replacingStream);
+        }
+      }
+    } else {
+      // Other charsets are converted to UTF-8.
+      Reader entityReader;
+      if (streamProcessor != null) {
+        // This is rare for FHIR stores, hence the processed content is simply buffered.
+        ByteArrayOutputStream processed = new ByteArrayOutputStream();
+        try (InputStream entityStream = entity.getContent()) {
+          streamProcessor.process(entityStream, processed);
+        }
+        entityReader =
+            new InputStreamReader(
+                new ByteArrayInputStream(processed.toByteArray()), HttpUtil.charsetOf(entity));
+      } else {
+        entityReader = HttpUtil.readerFromEntity(entity);
+      }
+      try (Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)) {
+        replaceAndCopyResponse(entityReader, writer, proxyBase, rewriteUrls);
+      }
+    }
+  }
+
+  private OutputStream createGzipStream(OutputStream outputStream) throws IOException {
+    return new GZIPOutputStream(outputStream, GZIP_BUFFER_SIZE) {
+      {
+        def.setLevel(gzipLevel);
+      }
+    };
   }
 
   private boolean sendGzippedResponse(ServletRequestDetails requestDetails) {
     // we send gzipped encoded response to client only if they requested so
-    String acceptEncodingValue = requestDetails.getHeader(ACCEPT_ENCODING_HEADER.toLowerCase());
-    if (acceptEncodingValue == null) {
-      return false;
-    }
-    return acceptEncodingValue.toLowerCase(Locale.ENGLISH).contains(GZIP_ENCODING_VALUE);
+    return HttpUtil.acceptsGzip(requestDetails.getHeader(ACCEPT_ENCODING_HEADER.toLowerCase()));
   }
 
   /**
@@ -222,36 +459,21 @@ public class BearerAuthorizationInterceptor {
    * @param entityContentReader a reader for the entity content of the FHIR store response
    * @param writer the writer for proxy response
    * @param proxyBase the base URL of the proxy
+   * @param rewriteUrls whether URL replacement is needed at all
    */
-  private void replaceAndCopyResponse(Reader entityContentReader, Writer writer, String proxyBase)
+  private void replaceAndCopyResponse(
+      Reader entityContentReader, Writer writer, String proxyBase, boolean rewriteUrls)
       throws IOException {
-    // To make this more efficient, this only does a string search/replace; we may need to add
-    // proper URL parsing if we need to address edge cases in URL no-op changes. This string
-    // matching can be done more efficiently if needed, but we should avoid loading the full
-    // stream in memory.
-    String fhirStoreUrl = fhirClient.getBaseUrl();
-    int numMatched = 0;
-    int n;
-    while ((n = entityContentReader.read()) >= 0) {
-      char c = (char) n;
-      if (fhirStoreUrl.charAt(numMatched) == c) {
-        numMatched++;
-        if (numMatched == fhirStoreUrl.length()) {
-          // A match found; replace it with proxy's base URL.
-          writer.write(proxyBase);
-          numMatched = 0;
-        }
-      } else {
-        writer.write(fhirStoreUrl.substring(0, numMatched));
-        writer.write(c);
-        numMatched = 0;
-      }
+    if (!rewriteUrls) {
+      CharStreams.copy(entityContentReader, writer);
+      return;
     }
-    if (numMatched > 0) {
-      // Handle any remaining characters that partially matched.
-      writer.write(fhirStoreUrl.substring(0, numMatched));
+    // This only does a string search/replace; we may need to add proper URL parsing if we need to
+    // address edge cases in URL no-op changes. Note we should avoid loading the full stream in
+    // memory, hence the streaming replacement.
+    try (Writer replacingWriter = new ReplacingWriter(writer, fhirClient.getBaseUrl(), proxyBase)) {
+      CharStreams.copy(entityContentReader, replacingWriter);
     }
-    writer.close();
   }
 
   private void serveWellKnown(ServletRequestDetails request) {
@@ -279,6 +501,51 @@ public class BearerAuthorizationInterceptor {
     }
   }
 
+  /**
+   * Serves the CapabilityStatement from `capabilityCache`, including `304 Not Modified` responses
+   * for conditional requests. Returns false if the statement cannot be fetched, in which case the
+   * request is relayed to the FHIR store as usual.
+   */
+  private boolean serveCachedCapability(ServletRequestDetails servletDetails) {
+    CapabilityStatementCache.Entry capability;
+    try {
+      capability = capabilityCache.get();
+    } catch (IOException | RuntimeException e) {
+      logger.error("Failed to fetch the CapabilityStatement; relaying the request.", e);
+      return false;
+    }
+    HttpServletResponse servletResponse = servletDetails.getServletResponse();
+    servletResponse.setHeader(HttpHeaders.ETAG, capability.getEtag());
+    servletResponse.setHeader(HttpHeaders.LAST_MODIFIED, capability.getLastModified());
+    if (capability.isNotModified(
+        servletDetails.getHeader(HttpHeaders.IF_NONE_MATCH),
+        servletDetails.getHeader(HttpHeaders.IF_MODIFIED_SINCE))) {
+      servletResponse.setStatus(HttpStatus.SC_NOT_MODIFIED);
+      return true;
+    }
+    String proxyBase = server.getServerBaseForRequest(servletDetails);
+    boolean rewriteUrls = !fhirClient.getBaseUrl().equals(proxyBase);
+    servletResponse.setStatus(HttpStatus.SC_OK);
+    servletResponse.setContentType(DEFAULT_CONTENT_TYPE);
+    servletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+    try {
+      OutputStream outputStream = servletResponse.getOutputStream();
+      if (sendGzippedResponse(servletDetails)) {
+        servletResponse.addHeader(HttpHeaders.CONTENT_ENCODING, GZIP_ENCODING_VALUE);
+        outputStream = createGzipStream(outputStream);
+      }
+      try (Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)) {
+        replaceAndCopyResponse(
+            new StringReader(capability.getContent()), writer, proxyBase, rewriteUrls);
+      }
+    } catch (IOException e) {
+      logger.error(
+          String.format("Exception serving %s with error %s", servletDetails.getRequestPath(), e));
+      ExceptionUtil.throwRuntimeExceptionAndLog(logger, e.getMessage(), e);
+    }
+    return true;
+  }
+
   @VisibleForTesting
   void mutateRequest(RequestDetails requestDetails, AccessDecision accessDecision) {
     RequestMutation mutation =
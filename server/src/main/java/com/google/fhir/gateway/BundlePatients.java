@@ -87,6 +87,14 @@ public class BundlePatients {
       patientsToCreate = createPatient;
     }
 
+    /** Adds everything in `other` after what is already in this builder. */
+    void addAll(BundlePatientsBuilder other) {
+      updatedPatients.addAll(other.updatedPatients);
+      deletedPatients.addAll(other.deletedPatients);
+      referencedPatients.addAll(other.referencedPatients);
+      patientsToCreate = patientsToCreate || other.patientsToCreate;
+    }
+
     public BundlePatients build() {
       return new BundlePatients(
           referencedPatients, updatedPatients, deletedPatients, patientsToCreate);
@@ -23,6 +23,8 @@ import com.google.fhir.gateway.interfaces.AccessDecision;
 import com.google.fhir.gateway.interfaces.RequestDetailsReader;
 import com.google.fhir.gateway.interfaces.RequestMutation;
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.http.HttpResponse;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CapabilityStatement;
@@ -39,7 +41,9 @@ public class CapabilityPostProcessor implements AccessDecision {
       "To access FHIR resources behind this proxy, each request needs a Bearer Authorization "
           + "header containing a JWT access token. This token must have been issued by the "
           + "authorization server defined by the configured TOKEN_ISSUER.";
-  private static CapabilityPostProcessor instance = null;
+  // Not using `synchronized` to avoid pinning the carrier thread in the virtual-thread mode.
+  private static final Lock instanceLock = new ReentrantLock();
+  private static volatile CapabilityPostProcessor instance = null;
 
   private final FhirContext fhirContext;
 
@@ -47,11 +51,19 @@ public class CapabilityPostProcessor implements AccessDecision {
     this.fhirContext = fhirContext;
   }
 
-  static synchronized CapabilityPostProcessor getInstance(FhirContext fhirContext) {
-    if (instance == null) {
-      instance = new CapabilityPostProcessor(fhirContext);
+  static CapabilityPostProcessor getInstance(FhirContext fhirContext) {
+    if (instance != null) {
+      return instance;
+    }
+    instanceLock.lock();
+    try {
+      if (instance == null) {
+        instance = new CapabilityPostProcessor(fhirContext);
+      }
+      return instance;
+    } finally {
+      instanceLock.unlock();
     }
-    return instance;
   }
 
   @Override
@@ -69,6 +81,15 @@ public class CapabilityPostProcessor implements AccessDecision {
       throws IOException {
     Preconditions.checkState(HttpUtil.isResponseValid(response));
     String content = CharStreams.toString(HttpUtil.readerFromEntity(response.getEntity()));
+    return addSecurityInfo(content);
+  }
+
+  /**
+   * Adds the security and CORS information of the proxy to the given CapabilityStatement JSON.
+   *
+   * @return the modified CapabilityStatement, or `content` as is if it has nothing to modify.
+   */
+  String addSecurityInfo(String content) {
     IParser parser = fhirContext.newJsonParser();
     IBaseResource resource = parser.parseResource(content);
 
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the CapabilityStatement of the FHIR store, with the security information added by {@link
+ * CapabilityPostProcessor}, such that the unauthenticated `/metadata` endpoint is served without
+ * reaching the FHIR store or re-processing the statement. The statement is fetched on the first
+ * request and then revalidated in the background, with a conditional GET, every
+ * `CAPABILITY_REFRESH_INTERVAL_SECONDS`; setting that to 0 disables this cache.
+ */
+class CapabilityStatementCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(CapabilityStatementCache.class);
+
+  static final String REFRESH_INTERVAL_ENV = "CAPABILITY_REFRESH_INTERVAL_SECONDS";
+  private static final long DEFAULT_REFRESH_INTERVAL_SECONDS = 300;
+  private static final String METADATA_PATH = "metadata";
+
+  private final HttpFhirClient fhirClient;
+  private final CapabilityPostProcessor postProcessor;
+  private final Duration refreshInterval;
+  // Not using `synchronized` to avoid pinning the carrier thread in the virtual-thread mode.
+  private final Lock fetchLock = new ReentrantLock();
+  @Nullable private volatile Entry entry = null;
+  // Created with the first entry; guarded by `fetchLock`.
+  @Nullable private ScheduledExecutorService refreshExecutor = null;
+
+  @VisibleForTesting
+  CapabilityStatementCache(
+      HttpFhirClient fhirClient, CapabilityPostProcessor postProcessor, Duration refreshInterval) {
+    Preconditions.checkArgument(!refreshInterval.isNegative() && !refreshInterval.isZero());
+    this.fhirClient = fhirClient;
+    this.postProcessor = postProcessor;
+    this.refreshInterval = refreshInterval;
+  }
+
+  /** Returns null if the cache is disabled by `CAPABILITY_REFRESH_INTERVAL_SECONDS`. */
+  @Nullable
+  static CapabilityStatementCache createFromEnvVars(
+      HttpFhirClient fhirClient, FhirContext fhirContext) {
+    long refreshSeconds =
+        EnvUtil.getLongOrDefault(REFRESH_INTERVAL_ENV, DEFAULT_REFRESH_INTERVAL_SECONDS);
+    Preconditions.checkArgument(
+        refreshSeconds >= 0, "%s cannot be negative; got %s", REFRESH_INTERVAL_ENV, refreshSeconds);
+    if (refreshSeconds == 0) {
+      logger.info("CapabilityStatement caching is disabled.");
+      return null;
+    }
+    return new CapabilityStatementCache(
+        fhirClient,
+        CapabilityPostProcessor.getInstance(fhirContext),
+        Duration.ofSeconds(refreshSeconds));
+  }
+
+  /** Returns the cached statement; the first call fetches it from the FHIR store. */
+  Entry get() throws IOException {
+    Entry current = entry;
+    if (current != null) {
+      return current;
+    }
+    fetchLock.lock();
+    try {
+      if (entry == null) {
+        entry = fetch(null);
+        startRefresh();
+      }
+      return entry;
+    } finally {
+      fetchLock.unlock();
+    }
+  }
+
+  /** Revalidates the cached statement with the FHIR store; a no-op before the first fetch. */
+  @VisibleForTesting
+  void refresh() throws IOException {
+    Entry current = entry;
+    if (current != null) {
+      entry = fetch(current);
+    }
+  }
+
+  private void startRefresh() {
+    refreshExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("capability-refresh-%d")
+                .setDaemon(true)
+                .build());
+    long intervalMillis = refreshInterval.toMillis();
+    refreshExecutor.scheduleWithFixedDelay(
+        this::refreshOrLog, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // An exception would cancel the schedule, hence catching everything here.
+  private void refreshOrLog() {
+    try {
+      refresh();
+    } catch (Exception e) {
+      logger.error("Failed to revalidate the CapabilityStatement; keeping the cached one.", e);
+    }
+  }
+
+  private Entry fetch(@Nullable Entry previous) throws IOException {
+    HttpResponse response =
+        previous == null
+            ? fhirClient.getResource(METADATA_PATH)
+            : fhirClient.getResourceConditionally(
+                METADATA_PATH, previous.storeEtag, previous.storeLastModified);
+    int statusCode = response.getStatusLine().getStatusCode();
+    if (previous != null && statusCode == HttpStatus.SC_NOT_MODIFIED) {
+      return previous;
+    }
+    HttpUtil.validateResponseEntityOrFail(response, METADATA_PATH);
+    String content =
+        postProcessor.addSecurityInfo(
+            CharStreams.toString(HttpUtil.readerFromEntity(response.getEntity())));
+    String etag =
+        "W/\"" + Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString() + "\"";
+    String storeEtag = headerValueOrNull(response, HttpHeaders.ETAG);
+    String storeLastModified = headerValueOrNull(response, HttpHeaders.LAST_MODIFIED);
+    Date lastModified;
+    if (previous != null && previous.etag.equals(etag)) {
+      // E.g., the FHIR store does not support conditional requests.
+      lastModified = previous.lastModified;
+    } else {
+      Date parsed = storeLastModified == null ? null : DateUtils.parseDate(storeLastModified);
+      lastModified =
+          parsed != null ? parsed : Date.from(Instant.now().truncatedTo(ChronoUnit.SECONDS));
+      logger.info("Cached the CapabilityStatement with ETag {}", etag);
+    }
+    return new Entry(content, etag, lastModified, storeEtag, storeLastModified);
+  }
+
+  @Nullable
+  private static String headerValueOrNull(HttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
+  /** A processed CapabilityStatement with the validators of the proxy and the FHIR store. */
+  static class Entry {
+    private final String content;
+    private final String etag;
+    private final Date lastModified;
+    @Nullable private final String storeEtag;
+    @Nullable private final String storeLastModified;
+
+    private Entry(
+        String content,
+        String etag,
+        Date lastModified,
+        @Nullable String storeEtag,
+        @Nullable String storeLastModified) {
+      this.content = content;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.storeEtag = storeEtag;
+      this.storeLastModified = storeLastModified;
+    }
+
+    String getContent() {
+      return content;
+    }
+
+    String getEtag() {
+      return etag;
+    }
+
+    String getLastModified() {
+      return DateUtils.formatDate(lastModified);
+    }
+
+    /**
+     * Whether a client that sent the given conditional headers already has this statement. As in
+     * RFC 7232, `If-Modified-Since` is ignored when `If-None-Match` is present.
+     */
+    boolean isNotModified(@Nullable String ifNoneMatch, @Nullable String ifModifiedSince) {
+      if (ifNoneMatch != null) {
+        String opaqueTag = stripWeakPrefix(etag);
+        for (String tag : Splitter.on(',').trimResults().split(ifNoneMatch)) {
+          if (tag.equals("*") || stripWeakPrefix(tag).equals(opaqueTag)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (ifModifiedSince != null) {
+        Date since = DateUtils.parseDate(ifModifiedSince);
+        return since != null && !lastModified.after(since);
+      }
+      return false;
+    }
+
+    private static String stripWeakPrefix(String tag) {
+      return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Extracts the `reference` values of the patient compartment paths of a JSON encoded resource by
+ * walking its tokens; the resource is never materialized and subtrees that are not on any of the
+ * paths are skipped. The paths are simple element paths like `participant.individual` as in
+ * `patient_paths.json`; like FHIRPath, arrays are traversed transparently and contained resources
+ * are not looked into.
+ *
+ * <p>The JSON is read strictly, so a malformed input fails the extraction.
+ */
+final class CompartmentReferenceExtractor {
+
+  private static final String RESOURCE_TYPE_FIELD = "resourceType";
+  private static final String REFERENCE_FIELD = "reference";
+
+  // The compartment paths of each resource type.
+  private final ImmutableMap<ResourceType, ImmutableList<String>> pathsByType;
+  // All compartment paths and their prefixes; any other subtree is skipped.
+  private final ImmutableSet<String> pathPrefixes;
+  private final ImmutableSet<String> allPaths;
+
+  CompartmentReferenceExtractor(Map<ResourceType, ? extends List<String>> patientFhirPaths) {
+    Map<ResourceType, ImmutableList<String>> paths = new EnumMap<>(ResourceType.class);
+    ImmutableSet.Builder<String> prefixesBuilder = ImmutableSet.builder();
+    ImmutableSet.Builder<String> allPathsBuilder = ImmutableSet.builder();
+    for (Map.Entry<ResourceType, ? extends List<String>> entry : patientFhirPaths.entrySet()) {
+      paths.put(entry.getKey(), ImmutableList.copyOf(entry.getValue()));
+      for (String path : entry.getValue()) {
+        allPathsBuilder.add(path);
+        for (int i = path.indexOf('.'); i >= 0; i = path.indexOf('.', i + 1)) {
+          prefixesBuilder.add(path.substring(0, i));
+        }
+        prefixesBuilder.add(path);
+      }
+    }
+    this.pathsByType = Maps.immutableEnumMap(paths);
+    this.pathPrefixes = prefixesBuilder.build();
+    this.allPaths = allPathsBuilder.build();
+  }
+
+  /**
+   * Reads the JSON resource from `reader` to the end.
+   *
+   * @throws IOException if reading fails or the input is not a well-formed JSON object.
+   */
+  Result extract(Reader reader) throws IOException {
+    // Since the `resourceType` may come after the references, the references of all known paths
+    // are collected and then filtered once the type is known.
+    ListMultimap<String, String> references = LinkedListMultimap.create();
+    String resourceType = null;
+    try (JsonReader jsonReader = new JsonReader(reader)) {
+      jsonReader.beginObject();
+      while (jsonReader.hasNext()) {
+        String name = jsonReader.nextName();
+        if (RESOURCE_TYPE_FIELD.equals(name) && jsonReader.peek() == JsonToken.STRING) {
+          resourceType = jsonReader.nextString();
+        } else if (pathPrefixes.contains(name)) {
+          readElement(jsonReader, name, references);
+        } else {
+          jsonReader.skipValue();
+        }
+      }
+      jsonReader.endObject();
+      if (jsonReader.peek() != JsonToken.END_DOCUMENT) {
+        throw new IOException("Unexpected content after the resource " + jsonReader);
+      }
+    }
+    ImmutableList.Builder<String> typeReferences = ImmutableList.builder();
+    ResourceType type = FhirUtil.resourceTypeOrNull(resourceType);
+    if (type != null) {
+      for (String path : pathsByType.getOrDefault(type, ImmutableList.of())) {
+        typeReferences.addAll(references.get(path));
+      }
+    }
+    return new Result(resourceType, typeReferences.build());
+  }
+
+  private void readElement(JsonReader jsonReader, String path, ListMultimap<String, String> refs)
+      throws IOException {
+    switch (jsonReader.peek()) {
+      case BEGIN_ARRAY:
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+          readElement(jsonReader, path, refs);
+        }
+        jsonReader.endArray();
+        break;
+      case BEGIN_OBJECT:
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+          String name = jsonReader.nextName();
+          String childPath = path + "." + name;
+          if (REFERENCE_FIELD.equals(name)
+              && allPaths.contains(path)
+              && jsonReader.peek() == JsonToken.STRING) {
+            refs.put(path, jsonReader.nextString());
+          } else if (pathPrefixes.contains(childPath)) {
+            readElement(jsonReader, childPath, refs);
+          } else {
+            jsonReader.skipValue();
+          }
+        }
+        jsonReader.endObject();
+        break;
+      default:
+        jsonReader.skipValue();
+    }
+  }
+
+  /** The outcome of an extraction. */
+  static final class Result {
+    @Nullable private final String resourceType;
+    private final ImmutableList<String> references;
+
+    private Result(@Nullable String resourceType, ImmutableList<String> references) {
+      this.resourceType = resourceType;
+      this.references = references;
+    }
+
+    /** The `resourceType` of the root, or null if it does not have one. */
+    @Nullable
+    String getResourceType() {
+      return resourceType;
+    }
+
+    /** The `reference` values on the compartment paths of the resource type. */
+    ImmutableList<String> getReferences() {
+      return references;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import javax.annotation.Nullable;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Wraps an entity with a `gzip` or `deflate` content-encoding and exposes its decoded content. The
+ * decoding is lazy, i.e., it only happens if the content is requested. If that has not happened
+ * (see {@link #isContentRequested()}), the encoded content of the wrapped entity can still be used
+ * as is.
+ */
+class DecodingEntity extends HttpEntityWrapper {
+
+  static final String GZIP = "gzip";
+  private static final String X_GZIP = "x-gzip";
+  private static final String DEFLATE = "deflate";
+  private static final Set<String> DECODABLE_ENCODINGS = ImmutableSet.of(GZIP, X_GZIP, DEFLATE);
+
+  private final String contentEncoding;
+  private boolean contentRequested = false;
+
+  DecodingEntity(HttpEntity encodedEntity, String contentEncoding) {
+    super(encodedEntity);
+    this.contentEncoding = contentEncoding;
+  }
+
+  /**
+   * Returns the normalized content-encoding of the given entity or null if it is not encoded (i.e.,
+   * no content-encoding or `identity`).
+   */
+  @Nullable
+  static String contentEncodingOf(HttpEntity entity) {
+    Header header = entity.getContentEncoding();
+    if (header == null || header.getValue() == null) {
+      return null;
+    }
+    String encoding = header.getValue().trim().toLowerCase(Locale.ENGLISH);
+    if (encoding.isEmpty() || "identity".equals(encoding)) {
+      return null;
+    }
+    return encoding;
+  }
+
+  static boolean isDecodable(@Nullable String contentEncoding) {
+    return contentEncoding != null && DECODABLE_ENCODINGS.contains(contentEncoding);
+  }
+
+  static boolean isGzip(@Nullable String contentEncoding) {
+    return GZIP.equals(contentEncoding) || X_GZIP.equals(contentEncoding);
+  }
+
+  boolean isContentRequested() {
+    return contentRequested;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    contentRequested = true;
+    InputStream encodedStream = wrappedEntity.getContent();
+    if (DEFLATE.equals(contentEncoding)) {
+      // Handles both zlib wrapped and raw deflate streams.
+      return new DeflateInputStream(encodedStream);
+    }
+    return new GZIPInputStream(encodedStream);
+  }
+
+  @Override
+  public void writeTo(OutputStream outStream) throws IOException {
+    try (InputStream inStream = getContent()) {
+      inStream.transferTo(outStream);
+    }
+  }
+
+  @Override
+  public Header getContentEncoding() {
+    return null;
+  }
+
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return true;
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return false;
+  }
+}
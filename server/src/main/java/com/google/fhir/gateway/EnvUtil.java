@@ -0,0 +1,54 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Helpers for reading optional, typed configuration values from environment variables. */
+public class EnvUtil {
+
+  private static final Logger logger = LoggerFactory.getLogger(EnvUtil.class);
+
+  public static int getIntOrDefault(String envName, int defaultValue) {
+    return Math.toIntExact(getLongOrDefault(envName, defaultValue));
+  }
+
+  public static long getLongOrDefault(String envName, long defaultValue) {
+    String value = System.getenv(envName);
+    if (Strings.isNullOrEmpty(value)) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          String.format("The environment variable %s should be a number; got %s", envName, value),
+          e);
+    }
+  }
+
+  public static boolean getBooleanOrDefault(String envName, boolean defaultValue) {
+    String value = System.getenv(envName);
+    if (Strings.isNullOrEmpty(value)) {
+      return defaultValue;
+    }
+    boolean result = Boolean.parseBoolean(value.trim());
+    logger.info("The environment variable {} is set to {}", envName, result);
+    return result;
+  }
+}
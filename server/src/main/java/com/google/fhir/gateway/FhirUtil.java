@@ -19,14 +19,16 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.fhir.gateway.interfaces.RequestDetailsReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 import org.apache.http.HttpResponse;
-import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.ResourceType;
@@ -40,10 +42,25 @@ public class FhirUtil {
   // This is based on https://www.hl7.org/fhir/datatypes.html#id
   private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9\\-.]{1,64}");
 
+  // The names of the R4 `ResourceType` constants are the resource type codes.
+  private static final ImmutableMap<String, ResourceType> RESOURCE_TYPES =
+      Maps.uniqueIndex(Arrays.asList(ResourceType.values()), ResourceType::name);
+
   public static boolean isSameResourceType(@Nullable String resourceType, ResourceType type) {
     return type.name().equals(resourceType);
   }
 
+  /**
+   * Resolves a resource type code with a single hash lookup; unlike {@link ResourceType#fromCode},
+   * this does not compare against every code or throw for unknown ones.
+   *
+   * @return the resource type or null if `resourceType` is null or not a known type.
+   */
+  @Nullable
+  public static ResourceType resourceTypeOrNull(@Nullable String resourceType) {
+    return resourceType == null ? null : RESOURCE_TYPES.get(resourceType);
+  }
+
   public static String getIdOrNull(RequestDetailsReader requestDetails) {
     if (requestDetails.getId() == null) {
       return null;
@@ -85,12 +102,7 @@ public class FhirUtil {
   }
 
   public static boolean isValidFhirResourceType(String resourceType) {
-    try {
-      ResourceType.fromCode(resourceType);
-      return true;
-    } catch (FHIRException fe) {
-      return false;
-    }
+    return resourceTypeOrNull(resourceType) != null;
   }
 
   public static String checkIdOrFail(String idPart) {
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Connection pool and timeout settings of the HTTP client used for talking to the FHIR store. All
+ * durations are in milliseconds; a timeout of zero means no timeout.
+ */
+@Builder
+@Getter
+@ToString
+public class HttpClientConfig {
+
+  private static final String MAX_CONNECTIONS_TOTAL_ENV = "BACKEND_MAX_CONNECTIONS_TOTAL";
+  private static final String MAX_CONNECTIONS_PER_ROUTE_ENV = "BACKEND_MAX_CONNECTIONS_PER_ROUTE";
+  private static final String CONNECT_TIMEOUT_ENV = "BACKEND_CONNECT_TIMEOUT_MS";
+  private static final String SOCKET_TIMEOUT_ENV = "BACKEND_SOCKET_TIMEOUT_MS";
+  private static final String CONNECTION_REQUEST_TIMEOUT_ENV =
+      "BACKEND_CONNECTION_REQUEST_TIMEOUT_MS";
+  private static final String IDLE_CONNECTION_TIMEOUT_ENV = "BACKEND_IDLE_CONNECTION_TIMEOUT_MS";
+  private static final String VALIDATE_AFTER_INACTIVITY_ENV =
+      "BACKEND_VALIDATE_AFTER_INACTIVITY_MS";
+  private static final String ASYNC_MODE_ENV = "BACKEND_ASYNC_MODE";
+
+  // Note all proxied requests go to a single route (the FHIR store) hence the per-route limit is
+  // what effectively caps the number of concurrent requests to the FHIR store.
+  @Builder.Default private final int maxConnectionsTotal = 200;
+  @Builder.Default private final int maxConnectionsPerRoute = 100;
+  @Builder.Default private final int connectTimeoutMs = 10_000;
+  @Builder.Default private final int socketTimeoutMs = 60_000;
+  // How long to wait for a connection to be leased from the pool.
+  @Builder.Default private final int connectionRequestTimeoutMs = 10_000;
+  @Builder.Default private final long idleConnectionTimeoutMs = 30_000;
+  @Builder.Default private final int validateAfterInactivityMs = 2_000;
+  // If set, a non-blocking client is created as well and proxied requests are relayed to the FHIR
+  // store without holding a servlet container thread while waiting for the response. The response
+  // is streamed through a bounded buffer (64 KiB); note the access check still runs on the servlet
+  // container thread. Idle connections of this client are evicted like the blocking one's.
+  @Builder.Default private final boolean asyncMode = false;
+
+  public static HttpClientConfig createFromEnvVars() {
+    HttpClientConfig defaults = HttpClientConfig.builder().build();
+    return HttpClientConfig.builder()
+        .maxConnectionsTotal(
+            EnvUtil.getIntOrDefault(MAX_CONNECTIONS_TOTAL_ENV, defaults.maxConnectionsTotal))
+        .maxConnectionsPerRoute(
+            EnvUtil.getIntOrDefault(
+                MAX_CONNECTIONS_PER_ROUTE_ENV, defaults.maxConnectionsPerRoute))
+        .connectTimeoutMs(EnvUtil.getIntOrDefault(CONNECT_TIMEOUT_ENV, defaults.connectTimeoutMs))
+        .socketTimeoutMs(EnvUtil.getIntOrDefault(SOCKET_TIMEOUT_ENV, defaults.socketTimeoutMs))
+        .connectionRequestTimeoutMs(
+            EnvUtil.getIntOrDefault(
+                CONNECTION_REQUEST_TIMEOUT_ENV, defaults.connectionRequestTimeoutMs))
+        .idleConnectionTimeoutMs(
+            EnvUtil.getLongOrDefault(IDLE_CONNECTION_TIMEOUT_ENV, defaults.idleConnectionTimeoutMs))
+        .validateAfterInactivityMs(
+            EnvUtil.getIntOrDefault(
+                VALIDATE_AFTER_INACTIVITY_ENV, defaults.validateAfterInactivityMs))
+        .asyncMode(EnvUtil.getBooleanOrDefault(ASYNC_MODE_ENV, defaults.asyncMode))
+        .build();
+  }
+}
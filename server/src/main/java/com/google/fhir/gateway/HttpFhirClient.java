@@ -21,19 +21,40 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,7 +74,6 @@ public abstract class HttpFhirClient {
           "date",
           "expires",
           "content-location",
-          "content-encoding",
           "etag",
           "location",
           "x-progress",
@@ -70,7 +90,6 @@ public abstract class HttpFhirClient {
   static final Set<String> REQUEST_HEADERS_TO_KEEP =
       Sets.newHashSet(
           "content-type",
-          "accept-encoding",
           "last-modified",
           "etag",
           "prefer",
@@ -87,6 +106,103 @@ public abstract class HttpFhirClient {
           "x-forwarded-for",
           "x-forwarded-host");
 
+  // The max size of the buffered content of each relayed response in the async mode.
+  private static final int ASYNC_RESPONSE_BUFFER_SIZE = 64 * 1024;
+  // How often expired connections are evicted if idle connections are not.
+  private static final long EXPIRED_CONNECTIONS_EVICTION_MS = 10_000;
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+
+  // This client is shared between all requests, so that connections to the FHIR store are kept
+  // alive and reused instead of doing a new TCP/TLS handshake for each request.
+  private final CloseableHttpClient httpClient;
+
+  // This is only created in the async mode and only used for relayed requests, whose responses
+  // are streamed through a bounded buffer; the gateway-internal requests use `httpClient`.
+  @Nullable private final CloseableHttpAsyncClient asyncClient;
+
+  protected HttpFhirClient() {
+    this(HttpClientConfig.createFromEnvVars());
+  }
+
+  protected HttpFhirClient(HttpClientConfig config) {
+    Preconditions.checkNotNull(config);
+    logger.info("Creating HTTP client for the FHIR store with config {}", config);
+    connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(config.getMaxConnectionsTotal());
+    connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
+    connectionManager.setValidateAfterInactivity(config.getValidateAfterInactivityMs());
+    RequestConfig requestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(config.getConnectTimeoutMs())
+            .setSocketTimeout(config.getSocketTimeoutMs())
+            .setConnectionRequestTimeout(config.getConnectionRequestTimeoutMs())
+            .build();
+    httpClient =
+        HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .evictExpiredConnections()
+            .evictIdleConnections(config.getIdleConnectionTimeoutMs(), TimeUnit.MILLISECONDS)
+            // Responses are kept in their original encoding such that compressed responses can be
+            // passed to the client as is; see BearerAuthorizationInterceptor.
+            .disableContentCompression()
+            .build();
+    asyncClient = config.isAsyncMode() ? createAsyncClient(config, requestConfig) : null;
+  }
+
+  private static CloseableHttpAsyncClient createAsyncClient(
+      HttpClientConfig config, RequestConfig requestConfig) {
+    logger.info("Creating non-blocking HTTP client for the FHIR store");
+    IOReactorConfig ioReactorConfig =
+        IOReactorConfig.custom()
+            .setConnectTimeout(config.getConnectTimeoutMs())
+            .setSoTimeout(config.getSocketTimeoutMs())
+            .build();
+    PoolingNHttpClientConnectionManager asyncConnectionManager = null;
+    try {
+      asyncConnectionManager =
+          new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+    } catch (IOReactorException e) {
+      ExceptionUtil.throwRuntimeExceptionAndLog(logger, "Cannot create the I/O reactor", e);
+    }
+    asyncConnectionManager.setMaxTotal(config.getMaxConnectionsTotal());
+    asyncConnectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
+    CloseableHttpAsyncClient client =
+        HttpAsyncClients.custom()
+            .setConnectionManager(asyncConnectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .build();
+    client.start();
+    startConnectionEviction(asyncConnectionManager, config.getIdleConnectionTimeoutMs());
+    return client;
+  }
+
+  /**
+   * The async client has no built-in eviction, unlike the blocking one; this closes the connections
+   * that are expired (per the keep-alive of the FHIR store) or idle for longer than the timeout.
+   */
+  private static void startConnectionEviction(
+      PoolingNHttpClientConnectionManager asyncConnectionManager, long idleTimeoutMs) {
+    ScheduledExecutorService evictor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("fhir-store-connection-evictor-%d")
+                .setDaemon(true)
+                .build());
+    long periodMs = idleTimeoutMs > 0 ? idleTimeoutMs : EXPIRED_CONNECTIONS_EVICTION_MS;
+    evictor.scheduleWithFixedDelay(
+        () -> {
+          asyncConnectionManager.closeExpiredConnections();
+          if (idleTimeoutMs > 0) {
+            asyncConnectionManager.closeIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS);
+          }
+        },
+        periodMs,
+        periodMs,
+        TimeUnit.MILLISECONDS);
+  }
+
   protected abstract String getBaseUrl();
 
   protected abstract URI getUriForResource(String resourcePath) throws URISyntaxException;
@@ -106,6 +222,23 @@ public abstract class HttpFhirClient {
 
   /** This method is intended to be used only for requests that are relayed to the FHIR store. */
   HttpResponse handleRequest(ServletRequestDetails request) throws IOException {
+    return sendRequest(createRelayedRequestBuilder(request));
+  }
+
+  /**
+   * The non-blocking version of {@link #handleRequest(ServletRequestDetails)}; this should only be
+   * called if {@link #isAsyncEnabled()} is true. Note the outgoing request is fully created before
+   * this returns, i.e., the `request` is not accessed after that.
+   *
+   * <p>The returned future is completed once the response headers are received and the content is
+   * streamed; reading it blocks until more content arrives, hence it should be read on an executor
+   * other than the one completing the future; see {@link StreamingResponseConsumer}.
+   */
+  CompletableFuture<HttpResponse> handleRequestAsync(ServletRequestDetails request) {
+    return sendRequestAsync(createRelayedRequestBuilder(request));
+  }
+
+  private RequestBuilder createRelayedRequestBuilder(ServletRequestDetails request) {
     String httpMethod = request.getServletRequest().getMethod();
     RequestBuilder builder = RequestBuilder.create(httpMethod);
     setUri(builder, request.getRequestPath());
@@ -120,14 +253,54 @@ public abstract class HttpFhirClient {
       builder.setEntity(new ByteArrayEntity(requestContent));
     }
     copyRequiredHeaders(request, builder);
+    // The client's `accept-encoding` is not copied as is; only `gzip` is requested and only if the
+    // client accepts it too, so that the compressed response can be relayed without re-encoding.
+    if (HttpUtil.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+      builder.addHeader(HttpHeaders.ACCEPT_ENCODING, DecodingEntity.GZIP);
+    }
     copyParameters(request, builder);
-    return sendRequest(builder);
+    return builder;
   }
 
   public HttpResponse getResource(String resourcePath) throws IOException {
     RequestBuilder requestBuilder = RequestBuilder.get();
     setUri(requestBuilder, resourcePath);
-    return sendRequest(requestBuilder);
+    return sendRequestAndBufferEntity(requestBuilder);
+  }
+
+  /**
+   * A conditional version of {@link #getResource(String)}, i.e., the FHIR store may respond with
+   * `304 Not Modified` if the resource matches the given validators of an earlier response.
+   *
+   * @param etag the `ETag` of the earlier response, sent as `If-None-Match`
+   * @param lastModified the `Last-Modified` of the earlier response, sent as `If-Modified-Since`
+   */
+  public HttpResponse getResourceConditionally(
+      String resourcePath, @Nullable String etag, @Nullable String lastModified)
+      throws IOException {
+    RequestBuilder requestBuilder = RequestBuilder.get();
+    setUri(requestBuilder, resourcePath);
+    if (etag != null) {
+      requestBuilder.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    }
+    if (lastModified != null) {
+      requestBuilder.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    }
+    return sendRequestAndBufferEntity(requestBuilder);
+  }
+
+  /**
+   * Returns the path of a FHIR store URL relative to the base URL, e.g., to follow the paging links
+   * of a search result with {@link #getResource(String)}; null if the URL is not on the FHIR store.
+   */
+  @Nullable
+  public String getResourcePathForUrl(String url) {
+    String baseUrl = getBaseUrl();
+    if (!url.startsWith(baseUrl)) {
+      return null;
+    }
+    String path = url.substring(baseUrl.length());
+    return path.startsWith("/") ? path.substring(1) : path;
   }
 
   public HttpResponse patchResource(String resourcePath, String jsonPatch) throws IOException {
@@ -137,20 +310,106 @@ public abstract class HttpFhirClient {
     byte[] content = jsonPatch.getBytes(Constants.CHARSET_UTF8);
     requestBuilder.setCharset(Constants.CHARSET_UTF8);
     requestBuilder.setEntity(new ByteArrayEntity(content, ProxyConstants.JSON_PATCH_CONTENT));
-    return sendRequest(requestBuilder);
+    return sendRequestAndBufferEntity(requestBuilder);
   }
 
-  private HttpResponse sendRequest(RequestBuilder builder) throws IOException {
+  /** Returns true iff this client is created in the non-blocking mode; see `BACKEND_ASYNC_MODE`. */
+  public boolean isAsyncEnabled() {
+    return asyncClient != null;
+  }
+
+  /**
+   * Returns the current usage of the connection pool to the FHIR store, i.e., the number of leased
+   * and available connections and the number of requests waiting for a connection.
+   */
+  public PoolStats getConnectionPoolStats() {
+    return connectionManager.getTotalStats();
+  }
+
+  /**
+   * This is for the gateway-internal requests, e.g., access-check lookups. These responses are
+   * expected to be small, so we read the whole entity right away which releases the connection back
+   * to the pool even if the caller does not fully consume the content.
+   */
+  private HttpResponse sendRequestAndBufferEntity(RequestBuilder builder) throws IOException {
+    HttpResponse response = sendRequest(builder);
+    HttpEntity entity = response.getEntity();
+    if (entity != null) {
+      // Internal requests do not ask for compression but this is to be on the safe side.
+      String contentEncoding = DecodingEntity.contentEncodingOf(entity);
+      if (DecodingEntity.isDecodable(contentEncoding)) {
+        response.setEntity(new BufferedHttpEntity(new DecodingEntity(entity, contentEncoding)));
+        response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+      } else {
+        response.setEntity(new BufferedHttpEntity(entity));
+      }
+      EntityUtils.consume(entity);
+    }
+    return response;
+  }
+
+  private HttpUriRequest buildRequest(RequestBuilder builder) {
     Preconditions.checkArgument(builder.getFirstHeader("Authorization") == null);
     Header header = getAuthHeader();
     builder.addHeader(header);
     HttpUriRequest httpRequest = builder.build();
     logger.info("Request to the FHIR store is {}", httpRequest);
-    // TODO reuse if creation overhead is significant.
-    HttpClient httpClient = HttpClients.createDefault();
+    return httpRequest;
+  }
+
+  private HttpResponse sendRequest(RequestBuilder builder) throws IOException {
+    HttpUriRequest httpRequest = buildRequest(builder);
 
-    // Execute the request and process the results.
+    // Execute the request and process the results. Note the connection is released back to the
+    // pool only when the response entity is fully consumed (or closed).
     HttpResponse response = httpClient.execute(httpRequest);
+    logger.debug("FHIR store connection pool stats: {}", connectionManager.getTotalStats());
+    logErrorResponse(httpRequest, response);
+    return response;
+  }
+
+  /**
+   * Sends the request with the async client; the returned future is completed once the response
+   * headers are received, with the content streamed through a bounded buffer.
+   */
+  private CompletableFuture<HttpResponse> sendRequestAsync(RequestBuilder builder) {
+    Preconditions.checkState(isAsyncEnabled(), "The async mode is not enabled!");
+    HttpUriRequest httpRequest = buildRequest(builder);
+    CompletableFuture<HttpResponse> responseFuture = new CompletableFuture<>();
+    // Note these callbacks are run on the I/O dispatcher threads of the async client; so any
+    // further processing of the response should be done on a different executor.
+    FutureCallback<HttpResponse> callback =
+        new FutureCallback<HttpResponse>() {
+          @Override
+          public void completed(HttpResponse response) {
+            // The future is usually completed by the consumer already.
+            responseFuture.complete(response);
+          }
+
+          @Override
+          public void failed(Exception e) {
+            logger.error("Request to the FHIR store failed: {}", httpRequest.getRequestLine(), e);
+            responseFuture.completeExceptionally(e);
+          }
+
+          @Override
+          public void cancelled() {
+            responseFuture.cancel(false);
+          }
+        };
+    asyncClient.execute(
+        HttpAsyncMethods.create(httpRequest),
+        new StreamingResponseConsumer(ASYNC_RESPONSE_BUFFER_SIZE, responseFuture),
+        callback);
+    return responseFuture.whenComplete(
+        (response, e) -> {
+          if (response != null) {
+            logErrorResponse(httpRequest, response);
+          }
+        });
+  }
+
+  private static void logErrorResponse(HttpUriRequest httpRequest, HttpResponse response) {
     if (response.getStatusLine().getStatusCode() >= 400) {
       logger.error(
           String.format(
@@ -159,7 +418,6 @@ public abstract class HttpFhirClient {
               httpRequest.getMethod(),
               response.getStatusLine().toString()));
     }
-    return response;
   }
 
   List<Header> responseHeadersToKeep(HttpResponse response) {
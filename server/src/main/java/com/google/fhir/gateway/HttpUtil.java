@@ -23,6 +23,8 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import javax.annotation.Nullable;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -116,12 +118,41 @@ public class HttpUtil {
   }
 
   public static BufferedReader readerFromEntity(HttpEntity entity) throws IOException {
+    InputStreamReader reader = new InputStreamReader(entity.getContent(), charsetOf(entity));
+    return new BufferedReader(reader);
+  }
+
+  /** Whether the given `accept-encoding` header value includes gzip. */
+  public static boolean acceptsGzip(@Nullable String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    return acceptEncoding.toLowerCase(Locale.ENGLISH).contains(DecodingEntity.GZIP);
+  }
+
+  /**
+   * Whether the entity content is text, e.g., FHIR resources in JSON/XML, as opposed to binary
+   * content like images or PDF documents. An entity without a content-type is considered textual.
+   */
+  public static boolean isTextual(HttpEntity entity) {
+    ContentType contentType = ContentType.get(entity);
+    if (contentType == null || contentType.getMimeType() == null) {
+      return true;
+    }
+    String mimeType = contentType.getMimeType().toLowerCase(Locale.ENGLISH);
+    return mimeType.startsWith("text/")
+        || mimeType.contains("json")
+        || mimeType.contains("xml")
+        || mimeType.contains("javascript")
+        || mimeType.equals(ContentType.APPLICATION_FORM_URLENCODED.getMimeType());
+  }
+
+  /** Returns the charset of the entity content; defaults to UTF-8 if none is specified. */
+  public static Charset charsetOf(HttpEntity entity) {
     ContentType contentType = ContentType.getOrDefault(entity);
-    Charset charset = Constants.CHARSET_UTF8;
     if (contentType.getCharset() != null) {
-      charset = contentType.getCharset();
+      return contentType.getCharset();
     }
-    InputStreamReader reader = new InputStreamReader(entity.getContent(), charset);
-    return new BufferedReader(reader);
+    return Constants.CHARSET_UTF8;
   }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+/** Helpers for the Knuth-Morris-Pratt search of {@link ReplacingWriter} and friends. */
+class KmpUtil {
+
+  /** Compares the symbols at two indices of a pattern, e.g., two chars of a string. */
+  @FunctionalInterface
+  interface SymbolMatcher {
+    boolean matches(int i, int j);
+  }
+
+  private KmpUtil() {}
+
+  /**
+   * Returns the failure table of a pattern with the given length, i.e., `failure[k]` is the length
+   * of the longest proper prefix of `pattern[0..k]` that is also a suffix of it.
+   */
+  static int[] computeFailureTable(int patternLength, SymbolMatcher symbolMatcher) {
+    int[] failure = new int[patternLength];
+    int k = 0;
+    for (int i = 1; i < patternLength; i++) {
+      while (k > 0 && !symbolMatcher.matches(i, k)) {
+        k = failure[k - 1];
+      }
+      if (symbolMatcher.matches(i, k)) {
+        k++;
+      }
+      failure[i] = k;
+    }
+    return failure;
+  }
+
+  static int[] computeFailureTable(char[] pattern) {
+    return computeFailureTable(pattern.length, (i, j) -> pattern[i] == pattern[j]);
+  }
+
+  static int[] computeFailureTable(byte[] pattern) {
+    return computeFailureTable(pattern.length, (i, j) -> pattern[i] == pattern[j]);
+  }
+}
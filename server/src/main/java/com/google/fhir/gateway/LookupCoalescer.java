@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent identical lookups, e.g., the same search sent to the FHIR store by the
+ * access-checkers of parallel requests, such that only one of them is executed and the others wait
+ * for and share its result. Nothing is cached once the lookup is finished. Since the result is
+ * shared between threads, it should be immutable; in particular, it should be the outcome of
+ * processing a response, not the response itself. This class is thread-safe.
+ *
+ * @param <K> the type of the key that identifies identical lookups, e.g., the search query.
+ * @param <V> the type of the lookup result.
+ */
+public class LookupCoalescer<K, V> {
+
+  private static final Logger logger = LoggerFactory.getLogger(LookupCoalescer.class);
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final LongAdder lookupCount = new LongAdder();
+  private final LongAdder coalescedCount = new LongAdder();
+
+  /** A lookup that may fail with an IOException, e.g., a call to the FHIR store. */
+  @FunctionalInterface
+  public interface Lookup<V> {
+    V run() throws IOException;
+  }
+
+  /**
+   * Runs the given lookup, unless an identical lookup with the same key is in flight, in which case
+   * its result is returned instead. A failure of the shared lookup is thrown to all its callers.
+   */
+  public V lookup(K key, Lookup<V> lookup) throws IOException {
+    Preconditions.checkNotNull(key);
+    CompletableFuture<V> newFuture = new CompletableFuture<>();
+    CompletableFuture<V> existingFuture = inFlight.putIfAbsent(key, newFuture);
+    if (existingFuture != null) {
+      coalescedCount.increment();
+      logger.debug("Waiting for the in-flight lookup of {}", key);
+      return waitFor(existingFuture, key);
+    }
+    lookupCount.increment();
+    try {
+      V result = lookup.run();
+      newFuture.complete(result);
+      return result;
+    } catch (Throwable t) {
+      // Any failure, including an Error, is shared; otherwise the waiters would block forever.
+      newFuture.completeExceptionally(t);
+      throw t;
+    } finally {
+      inFlight.remove(key, newFuture);
+    }
+  }
+
+  private V waitFor(CompletableFuture<V> future, K key) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the lookup of " + key, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      // The cause is wrapped, such that the stack trace of this thread is kept too.
+      if (cause instanceof IOException) {
+        throw new IOException("The in-flight lookup of " + key + " failed", cause);
+      }
+      Throwables.throwIfUnchecked(cause);
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /** Returns the number of lookups that were actually run. */
+  public long getLookupCount() {
+    return lookupCount.sum();
+  }
+
+  /** Returns the number of lookups that were saved by sharing the result of an in-flight one. */
+  public long getCoalescedCount() {
+    return coalescedCount.sum();
+  }
+}
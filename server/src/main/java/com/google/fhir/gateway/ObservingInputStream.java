@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.io.ByteStreams;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that passes the bytes read from it to a {@link StreamingJsonScanner}, e.g., to
+ * extract a few fields of a response while the response is forwarded to the client. Once the
+ * content is fully read, `onComplete` is called. If the stream is closed before its end, the rest
+ * of the content is read first; this is to make sure the scanner always sees the whole content,
+ * even if the client goes away.
+ */
+public class ObservingInputStream extends FilterInputStream {
+
+  private final StreamingJsonScanner scanner;
+  private final Runnable onComplete;
+  private boolean completed = false;
+
+  public ObservingInputStream(InputStream in, StreamingJsonScanner scanner, Runnable onComplete) {
+    super(in);
+    this.scanner = scanner;
+    this.onComplete = onComplete;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b < 0) {
+      complete();
+    } else {
+      scanner.write((byte) b);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = super.read(b, off, len);
+    if (n < 0) {
+      complete();
+    } else {
+      scanner.write(b, off, n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    // Skipped bytes still need to be scanned.
+    byte[] buffer = new byte[(int) Math.min(n, 8192)];
+    long skipped = 0;
+    while (skipped < n) {
+      int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+      if (read < 0) {
+        break;
+      }
+      skipped += read;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (!completed) {
+        ByteStreams.exhaust(this);
+      }
+    } finally {
+      super.close();
+    }
+  }
+
+  private void complete() {
+    if (!completed) {
+      completed = true;
+      onComplete.run();
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.fhir.gateway.BundlePatients.BundlePatientsBuilder;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Analyzes the entries of a transaction Bundle and merges the results into a {@link
+ * BundlePatientsBuilder} in entry order. The first entries, up to a threshold, are analyzed on the
+ * calling thread; the rest are analyzed in parallel on a bounded fork-join pool. The number of
+ * entries in flight is bounded too, so entries that are read one at a time are not all kept.
+ *
+ * <p>Since the results are merged in entry order, the outcome is the same as a sequential analysis;
+ * in particular, if multiple entries are invalid, the exception of the first one is thrown.
+ */
+final class ParallelBundleAnalyzer {
+  private static final Logger logger = LoggerFactory.getLogger(ParallelBundleAnalyzer.class);
+
+  // Zero or one disables parallel analysis.
+  private static final String PARALLELISM_ENV = "BUNDLE_ANALYSIS_PARALLELISM";
+  // The number of entries of a Bundle that are analyzed sequentially before switching to parallel.
+  private static final String THRESHOLD_ENV = "BUNDLE_ANALYSIS_PARALLEL_THRESHOLD";
+  private static final int DEFAULT_THRESHOLD = 64;
+  private static final int MAX_PENDING_PER_THREAD = 4;
+
+  private final BiConsumer<BundleEntryComponent, BundlePatientsBuilder> entryProcessor;
+  @Nullable private final ForkJoinPool pool;
+  private final int threshold;
+  private final int maxPending;
+
+  /**
+   * @param entryProcessor adds the patients of an entry to the given builder; this is called
+   *     concurrently for different entries, each with its own builder.
+   */
+  @VisibleForTesting
+  ParallelBundleAnalyzer(
+      BiConsumer<BundleEntryComponent, BundlePatientsBuilder> entryProcessor,
+      int parallelism,
+      int threshold) {
+    Preconditions.checkArgument(threshold >= 0, "The threshold cannot be negative");
+    this.entryProcessor = entryProcessor;
+    this.threshold = threshold;
+    this.maxPending = MAX_PENDING_PER_THREAD * Math.max(parallelism, 1);
+    this.pool =
+        parallelism > 1
+            ? new ForkJoinPool(
+                parallelism, ParallelBundleAnalyzer::newWorkerThread, null, /* asyncMode= */ true)
+            : null;
+  }
+
+  static ParallelBundleAnalyzer createFromEnvVars(
+      BiConsumer<BundleEntryComponent, BundlePatientsBuilder> entryProcessor) {
+    int parallelism =
+        EnvUtil.getIntOrDefault(PARALLELISM_ENV, Runtime.getRuntime().availableProcessors());
+    int threshold = EnvUtil.getIntOrDefault(THRESHOLD_ENV, DEFAULT_THRESHOLD);
+    logger.info(
+        "Bundle entries beyond {} are analyzed with parallelism {}", threshold, parallelism);
+    return new ParallelBundleAnalyzer(entryProcessor, parallelism, threshold);
+  }
+
+  private static ForkJoinWorkerThread newWorkerThread(ForkJoinPool pool) {
+    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+    thread.setName("bundle-analysis-" + thread.getPoolIndex());
+    return thread;
+  }
+
+  /**
+   * Starts the analysis of a Bundle.
+   *
+   * @param entryConsumer is called on the calling thread for each entry, in order, once the entry
+   *     is analyzed and merged.
+   */
+  Analysis start(Consumer<BundleEntryComponent> entryConsumer) {
+    return new Analysis(entryConsumer);
+  }
+
+  /** The analysis of a single Bundle; this is not thread-safe. */
+  final class Analysis {
+    private final BundlePatientsBuilder builder = new BundlePatientsBuilder();
+    private final Consumer<BundleEntryComponent> entryConsumer;
+    private final Queue<PendingEntry> pendingEntries = new ArrayDeque<>();
+    private int entryCount = 0;
+
+    private Analysis(Consumer<BundleEntryComponent> entryConsumer) {
+      this.entryConsumer = entryConsumer;
+    }
+
+    /** Adds the next entry; this may block until the oldest entry in flight is analyzed. */
+    void addEntry(BundleEntryComponent entryComponent) {
+      entryCount++;
+      if (pool == null || entryCount <= threshold) {
+        entryProcessor.accept(entryComponent, builder);
+        entryConsumer.accept(entryComponent);
+        return;
+      }
+      if (pendingEntries.size() >= maxPending) {
+        mergeNext();
+      }
+      Future<BundlePatientsBuilder> result =
+          pool.submit(
+              () -> {
+                BundlePatientsBuilder entryBuilder = new BundlePatientsBuilder();
+                entryProcessor.accept(entryComponent, entryBuilder);
+                return entryBuilder;
+              });
+      pendingEntries.add(new PendingEntry(entryComponent, result));
+    }
+
+    /** Waits for all entries in flight and returns the patients of the whole Bundle. */
+    BundlePatients finish() {
+      while (!pendingEntries.isEmpty()) {
+        mergeNext();
+      }
+      return builder.build();
+    }
+
+    /** Cancels the entries in flight; this is for when the analysis is abandoned. */
+    void cancel() {
+      for (PendingEntry pendingEntry : pendingEntries) {
+        pendingEntry.result.cancel(false);
+      }
+      pendingEntries.clear();
+    }
+
+    private void mergeNext() {
+      PendingEntry pendingEntry = pendingEntries.remove();
+      BundlePatientsBuilder entryBuilder;
+      try {
+        entryBuilder = pendingEntry.result.get();
+      } catch (InterruptedException e) {
+        cancel();
+        Thread.currentThread().interrupt();
+        ExceptionUtil.throwRuntimeExceptionAndLog(
+            logger, "Interrupted while analyzing Bundle entries!", e);
+        return;
+      } catch (ExecutionException e) {
+        // This is the first invalid entry; the ones after it do not matter anymore.
+        cancel();
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new RuntimeException(e.getCause());
+      }
+      builder.addAll(entryBuilder);
+      entryConsumer.accept(pendingEntry.entryComponent);
+    }
+  }
+
+  private static final class PendingEntry {
+    private final BundleEntryComponent entryComponent;
+    private final Future<BundlePatientsBuilder> result;
+
+    private PendingEntry(
+        BundleEntryComponent entryComponent, Future<BundlePatientsBuilder> result) {
+      this.entryComponent = entryComponent;
+      this.result = result;
+    }
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2021-2023 Google LLC
+ * Copyright 2021-2024 Google LLC
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,7 +16,7 @@
 package com.google.fhir.gateway;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.Constants;
@@ -24,8 +24,9 @@ import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.util.UrlUtil;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Resources;
@@ -38,7 +39,11 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -46,14 +51,21 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.Binary;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
@@ -62,16 +74,21 @@ import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.CompartmentDefinition;
 import org.hl7.fhir.r4.model.CompartmentDefinition.CompartmentDefinitionResourceComponent;
+import org.hl7.fhir.r4.model.ExpressionNode;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public final class PatientFinderImp implements PatientFinder {
   private static final Logger logger = LoggerFactory.getLogger(PatientFinderImp.class);
-  private static PatientFinderImp instance = null;
+  // Not using `synchronized` since the first call reads resource files and would pin the carrier
+  // thread in the virtual-thread mode.
+  private static final Lock instanceLock = new ReentrantLock();
+  private static volatile PatientFinderImp instance = null;
   private static final String PATCH_OPERATION = "op";
   private static final String PATCH_OP_REPLACE = "replace";
   private static final String PATCH_OP_ADD = "add";
@@ -79,30 +96,43 @@ public final class PatientFinderImp implements PatientFinder {
   private static final String PATCH_PATH = "path";
   private static final String RESOURCE_ID_FIELD = "_id";
 
-  private final IFhirPath fhirPath;
-  private final Map<String, List<String>> patientSearchParams;
-  private final Map<String, List<String>> patientFhirPaths;
-  private final FhirContext fhirContext;
+  // Shared by the parallel analysis of Bundle entries; `evaluate` keeps its state per call.
+  private final FHIRPathEngine fhirPathEngine;
+  // The compartment tables are indexed by the resource type enum, i.e., by its ordinal; request
+  // resource names are resolved once with `FhirUtil.resourceTypeOrNull`.
+  private final ImmutableMap<ResourceType, ImmutableList<String>> patientSearchParams;
+  private final ImmutableMap<ResourceType, ImmutableList<String>> patientFhirPaths;
+  // The expressions of `patientFhirPaths`, parsed once; evaluation does not re-parse them.
+  private final ImmutableMap<ResourceType, ImmutableList<ExpressionNode>> compiledFhirPaths;
+  private final CompartmentReferenceExtractor referenceExtractor;
+  private final StreamingBundleReader bundleReader;
+  private final ParallelBundleAnalyzer bundleAnalyzer;
   private final boolean blockJoins;
 
   // This is supposed to be instantiated with getInstance method only.
   private PatientFinderImp(
       FhirContext fhirContext,
-      Map<String, List<String>> patientFhirPaths,
-      Map<String, List<String>> patientSearchParams,
+      ImmutableMap<ResourceType, ImmutableList<String>> patientFhirPaths,
+      ImmutableMap<ResourceType, ImmutableList<String>> patientSearchParams,
       boolean blockJoins) {
-    this.fhirContext = fhirContext;
-    this.fhirPath = fhirContext.newFhirPath();
+    // This is how HAPI's `IFhirPath` for R4 creates its engine, but that interface does not expose
+    // parsed expressions.
+    this.fhirPathEngine =
+        new FHIRPathEngine(new HapiWorkerContext(fhirContext, fhirContext.getValidationSupport()));
     this.patientFhirPaths = patientFhirPaths;
+    this.compiledFhirPaths = compileFhirPaths(fhirPathEngine, patientFhirPaths);
+    this.referenceExtractor = new CompartmentReferenceExtractor(patientFhirPaths);
+    this.bundleReader = new StreamingBundleReader(fhirContext);
+    this.bundleAnalyzer = ParallelBundleAnalyzer.createFromEnvVars(this::processEntry);
     this.patientSearchParams = patientSearchParams;
     this.blockJoins = blockJoins;
   }
 
   @Nullable
   private ImmutableSet<String> checkParamsAndFindPatientIds(
-      String resourceName, Map<String, String[]> queryParameters) {
+      @Nullable ResourceType resourceType, Map<String, String[]> queryParameters) {
     checkFhirJoinParams(queryParameters);
-    List<String> searchParams = patientSearchParams.get(resourceName);
+    List<String> searchParams = resourceType == null ? null : patientSearchParams.get(resourceType);
     if (searchParams != null) {
       for (String param : searchParams) {
         String[] paramValues = queryParameters.get(param);
@@ -185,7 +215,9 @@ public final class PatientFinderImp implements PatientFinder {
 
       if (referenceElement.getResourceType() == null) {
         Map<String, String[]> queryParams = UrlUtil.parseQueryString(resourceUri.getQuery());
-        patientIds = checkParamsAndFindPatientIds(resourceUri.getPath(), queryParams);
+        patientIds =
+            checkParamsAndFindPatientIds(
+                FhirUtil.resourceTypeOrNull(resourceUri.getPath()), queryParams);
       }
     }
     if (patientIds == null || patientIds.isEmpty()) {
@@ -219,7 +251,8 @@ public final class PatientFinderImp implements PatientFinder {
           InvalidRequestException.class);
     }
 
-    if (FhirUtil.isSameResourceType(resourceName, ResourceType.Patient)) {
+    ResourceType resourceType = FhirUtil.resourceTypeOrNull(resourceName);
+    if (resourceType == ResourceType.Patient) {
       return getPatientIdsFromPatientRequestUrl(requestDetails);
     }
     if (FhirUtil.getIdOrNull(requestDetails) != null) {
@@ -232,7 +265,7 @@ public final class PatientFinderImp implements PatientFinder {
           InvalidRequestException.class);
     }
     Map<String, String[]> queryParams = requestDetails.getParameters();
-    Set<String> patientIds = checkParamsAndFindPatientIds(resourceName, queryParams);
+    Set<String> patientIds = checkParamsAndFindPatientIds(resourceType, queryParams);
     if (patientIds == null || patientIds.isEmpty()) {
       ExceptionUtil.throwRuntimeExceptionAndLog(
           logger,
@@ -259,6 +292,14 @@ public final class PatientFinderImp implements PatientFinder {
     return Collections.emptySet();
   }
 
+  private static Reader createRequestReader(RequestDetailsReader request) {
+    Charset charset = request.getCharset();
+    if (charset == null) {
+      charset = StandardCharsets.UTF_8;
+    }
+    return new InputStreamReader(new ByteArrayInputStream(request.loadRequestContents()), charset);
+  }
+
   private JsonArray createJsonArrayFromRequest(RequestDetailsReader request) {
     byte[] requestContentBytes = request.loadRequestContents();
     Charset charset = request.getCharset();
@@ -269,22 +310,48 @@ public final class PatientFinderImp implements PatientFinder {
     return JsonParser.parseString(requestContent).getAsJsonArray();
   }
 
+  private static ImmutableMap<ResourceType, ImmutableList<ExpressionNode>> compileFhirPaths(
+      FHIRPathEngine fhirPathEngine,
+      ImmutableMap<ResourceType, ImmutableList<String>> patientFhirPaths) {
+    Map<ResourceType, ImmutableList<ExpressionNode>> compiled = new EnumMap<>(ResourceType.class);
+    for (Map.Entry<ResourceType, ImmutableList<String>> entry : patientFhirPaths.entrySet()) {
+      ImmutableList.Builder<ExpressionNode> expressions = ImmutableList.builder();
+      for (String path : entry.getValue()) {
+        expressions.add(fhirPathEngine.parse(path));
+      }
+      compiled.put(entry.getKey(), expressions.build());
+    }
+    return Maps.immutableEnumMap(compiled);
+  }
+
   private Set<String> parseReferencesForPatientIds(IBaseResource resource) {
-    List<String> fhirPaths = patientFhirPaths.get(resource.fhirType());
-    if (fhirPaths == null) {
+    Preconditions.checkArgument(resource instanceof Resource);
+    Resource r4Resource = (Resource) resource;
+    ImmutableList<ExpressionNode> expressions = compiledFhirPaths.get(r4Resource.getResourceType());
+    if (expressions == null) {
       return Sets.newHashSet();
     }
     Set<String> patientIds = Sets.newHashSet();
-    for (String path : fhirPaths) {
-      List<Reference> refs = fhirPath.evaluate(resource, path, Reference.class);
-      patientIds.addAll(
-          refs.stream()
-              .filter(
-                  r ->
-                      FhirUtil.isSameResourceType(
-                          r.getReferenceElement().getResourceType(), ResourceType.Patient))
-              .map(r -> FhirUtil.checkIdOrFail(r.getReferenceElement().getIdPart()))
-              .collect(Collectors.toList()));
+    for (ExpressionNode expression : expressions) {
+      List<Base> results;
+      try {
+        results = fhirPathEngine.evaluate(r4Resource, expression);
+      } catch (FHIRException e) {
+        throw new FhirPathExecutionException(e);
+      }
+      for (Base result : results) {
+        // Same as the type check of `IFhirPath.evaluate`; all compartment paths are references.
+        if (!(result instanceof Reference)) {
+          throw new FhirPathExecutionException(
+              String.format(
+                  "FhirPath expression %s returned unexpected type %s",
+                  expression, result.fhirType()));
+        }
+        IIdType referenceElement = ((Reference) result).getReferenceElement();
+        if (FhirUtil.isSameResourceType(referenceElement.getResourceType(), ResourceType.Patient)) {
+          patientIds.add(FhirUtil.checkIdOrFail(referenceElement.getIdPart()));
+        }
+      }
     }
     return patientIds;
   }
@@ -298,59 +365,83 @@ public final class PatientFinderImp implements PatientFinder {
           logger, "Bundle type needs to be transaction!", InvalidRequestException.class);
     }
 
-    BundlePatientsBuilder builder = new BundlePatientsBuilder();
-    if (!bundle.hasEntry()) {
-      return builder.build();
+    ParallelBundleAnalyzer.Analysis analysis = bundleAnalyzer.start(entryComponent -> {});
+    try {
+      for (BundleEntryComponent entryComponent : bundle.getEntry()) {
+        analysis.addEntry(entryComponent);
+      }
+      return analysis.finish();
+    } finally {
+      analysis.cancel();
+    }
+  }
+
+  @Override
+  public BundlePatients findPatientsInBundle(
+      RequestDetailsReader request, Consumer<BundleEntryComponent> entryConsumer) {
+    ParallelBundleAnalyzer.Analysis analysis = bundleAnalyzer.start(entryConsumer);
+    try (Reader reader = createRequestReader(request)) {
+      bundleReader.readEntries(reader, analysis::addEntry);
+    } catch (IOException | IllegalStateException e) {
+      // `IllegalStateException` is what `JsonReader` throws for unexpected tokens.
+      analysis.cancel();
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger, "Invalid JSON Bundle in the request body!", e, InvalidRequestException.class);
+    } catch (RuntimeException e) {
+      analysis.cancel();
+      throw e;
     }
+    return analysis.finish();
+  }
 
+  private void processEntry(BundleEntryComponent entryComponent, BundlePatientsBuilder builder) {
+    HTTPVerb httpMethod = entryComponent.getRequest().getMethod();
+    if (httpMethod == null) {
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger, "Bundle entry requires a request method!", InvalidRequestException.class);
+    }
+    if (httpMethod != HTTPVerb.GET
+        && httpMethod != HTTPVerb.DELETE
+        && !entryComponent.hasResource()) {
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger, "Bundle entry requires a resource field!", InvalidRequestException.class);
+    }
     try {
-      for (BundleEntryComponent entryComponent : bundle.getEntry()) {
-        HTTPVerb httpMethod = entryComponent.getRequest().getMethod();
-        if (httpMethod != HTTPVerb.GET
-            && httpMethod != HTTPVerb.DELETE
-            && !entryComponent.hasResource()) {
+      switch (httpMethod) {
+        case GET:
+          processGet(entryComponent, builder);
+          break;
+        case POST:
+          processPost(entryComponent, builder);
+          break;
+        case PUT:
+          processPut(entryComponent, builder);
+          break;
+        case PATCH:
+          processPatch(entryComponent, builder);
+          break;
+        case DELETE:
+          processDelete(entryComponent, builder);
+          break;
+        default:
           ExceptionUtil.throwRuntimeExceptionAndLog(
-              logger, "Bundle entry requires a resource field!", InvalidRequestException.class);
-        }
-        switch (httpMethod) {
-          case GET:
-            processGet(entryComponent, builder);
-            break;
-          case POST:
-            processPost(entryComponent, builder);
-            break;
-          case PUT:
-            processPut(entryComponent, builder);
-            break;
-          case PATCH:
-            processPatch(entryComponent, builder);
-            break;
-          case DELETE:
-            processDelete(entryComponent, builder);
-            break;
-          default:
-            ExceptionUtil.throwRuntimeExceptionAndLog(
-                logger,
-                String.format("HTTP request method %s is not supported!", httpMethod),
-                InvalidRequestException.class);
-        }
+              logger,
+              String.format("HTTP request method %s is not supported!", httpMethod),
+              InvalidRequestException.class);
       }
-      return builder.build();
     } catch (URISyntaxException e) {
       ExceptionUtil.throwRuntimeExceptionAndLog(
           logger, "Error parsing URI in Bundle!", e, InvalidRequestException.class);
     }
-    // It should never reach here!
-    return null;
   }
 
   @Nullable
-  private String parsePatchForPatientId(JsonObject patch, String resourceName) {
+  private String parsePatchForPatientId(JsonObject patch, @Nullable ResourceType resourceType) {
     if (patch.get(PATCH_PATH) == null || patch.get(PATCH_OPERATION) == null) {
       ExceptionUtil.throwRuntimeExceptionAndLog(
           logger, "Invalid patch!", InvalidRequestException.class);
     }
-    List<String> fhirPaths = patientFhirPaths.get(resourceName);
+    List<String> fhirPaths = resourceType == null ? null : patientFhirPaths.get(resourceType);
     if (fhirPaths == null) {
       return null;
     }
@@ -506,16 +597,33 @@ public final class PatientFinderImp implements PatientFinder {
 
   @Override
   public Set<String> findPatientsInResource(RequestDetailsReader request) {
-    IBaseResource resource = FhirUtil.createResourceFromRequest(fhirContext, request);
-    if (!resource.fhirType().equals(request.getResourceName())) {
+    // The body is not parsed into a resource; only the references on the compartment paths are
+    // read from its JSON tokens. The FHIR store validates the whole resource anyway.
+    try (Reader reader = createRequestReader(request)) {
+      CompartmentReferenceExtractor.Result extracted = referenceExtractor.extract(reader);
+      String resourceType = extracted.getResourceType();
+      if (resourceType == null || !resourceType.equals(request.getResourceName())) {
+        ExceptionUtil.throwRuntimeExceptionAndLog(
+            logger,
+            String.format(
+                "The provided resource %s is different from what is on the path: %s ",
+                resourceType, request.getResourceName()),
+            InvalidRequestException.class);
+      }
+      Set<String> patientIds = Sets.newHashSet();
+      for (String reference : extracted.getReferences()) {
+        IIdType referenceElement = new Reference(reference).getReferenceElement();
+        if (FhirUtil.isSameResourceType(referenceElement.getResourceType(), ResourceType.Patient)) {
+          patientIds.add(FhirUtil.checkIdOrFail(referenceElement.getIdPart()));
+        }
+      }
+      return patientIds;
+    } catch (IOException | IllegalStateException e) {
+      // `IllegalStateException` is what `JsonReader` throws for unexpected tokens.
       ExceptionUtil.throwRuntimeExceptionAndLog(
-          logger,
-          String.format(
-              "The provided resource %s is different from what is on the path: %s ",
-              resource.fhirType(), request.getResourceName()),
-          InvalidRequestException.class);
+          logger, "Invalid JSON resource in the request body!", e, InvalidRequestException.class);
+      return Sets.newHashSet();
     }
-    return parseReferencesForPatientIds(resource);
   }
 
   @Override
@@ -525,9 +633,10 @@ public final class PatientFinderImp implements PatientFinder {
   }
 
   private Set<String> parseJsonArrayForPatch(JsonArray jsonArray, String resourceName) {
+    ResourceType resourceType = FhirUtil.resourceTypeOrNull(resourceName);
     Set<String> patientIds = Sets.newHashSet();
     for (JsonElement jsonElement : jsonArray) {
-      String patientId = parsePatchForPatientId(jsonElement.getAsJsonObject(), resourceName);
+      String patientId = parsePatchForPatientId(jsonElement.getAsJsonObject(), resourceType);
       if (patientId != null) {
         patientIds.add(patientId);
       }
@@ -536,10 +645,22 @@ public final class PatientFinderImp implements PatientFinder {
   }
 
   // A singleton instance of this class should be used, hence the constructor is private.
-  public static synchronized PatientFinderImp getInstance(FhirContext fhirContext) {
+  public static PatientFinderImp getInstance(FhirContext fhirContext) {
     if (instance != null) {
       return instance;
     }
+    instanceLock.lock();
+    try {
+      if (instance == null) {
+        instance = createInstance(fhirContext);
+      }
+      return instance;
+    } finally {
+      instanceLock.unlock();
+    }
+  }
+
+  private static PatientFinderImp createInstance(FhirContext fhirContext) {
     // Read patient compartment and create search param map.
     CompartmentDefinition patientCompartment;
     IParser jsonParser = fhirContext.newJsonParser();
@@ -549,15 +670,22 @@ public final class PatientFinderImp implements PatientFinder {
         FhirUtil.isSameResourceType(resource.fhirType(), ResourceType.CompartmentDefinition));
     patientCompartment = (CompartmentDefinition) resource;
     logger.info("Patient compartment is based on: " + patientCompartment);
-    final Map<String, List<String>> patientSearchParams = Maps.newHashMap();
-    makeSearchParamMap(patientCompartment, patientSearchParams);
+    ImmutableMap<ResourceType, ImmutableList<String>> patientSearchParams =
+        makeSearchParamMap(patientCompartment);
 
     // Read FHIR paths for finding associated patients of each resource.
     String pathsJson = readResource("patient_paths.json");
-    Gson gson = new Gson();
-    final Map<String, List<String>> patientFhirPaths = gson.fromJson(pathsJson, Map.class);
-    instance = new PatientFinderImp(fhirContext, patientFhirPaths, patientSearchParams, true);
-    return instance;
+    Map<String, List<String>> pathsByName =
+        new Gson().fromJson(pathsJson, new TypeToken<Map<String, List<String>>>() {}.getType());
+    Map<ResourceType, ImmutableList<String>> patientFhirPaths = new EnumMap<>(ResourceType.class);
+    for (Map.Entry<String, List<String>> entry : pathsByName.entrySet()) {
+      ResourceType resourceType = FhirUtil.resourceTypeOrNull(entry.getKey());
+      Preconditions.checkArgument(
+          resourceType != null, "Unknown resource type %s in patient paths!", entry.getKey());
+      patientFhirPaths.put(resourceType, ImmutableList.copyOf(entry.getValue()));
+    }
+    return new PatientFinderImp(
+        fhirContext, Maps.immutableEnumMap(patientFhirPaths), patientSearchParams, true);
   }
 
   private static String readResource(String resourcePath) {
@@ -576,20 +704,23 @@ public final class PatientFinderImp implements PatientFinder {
     }
   }
 
-  private static void makeSearchParamMap(
-      CompartmentDefinition patientCompartment,
-      final Map<String, List<String>> patientSearchParams) {
+  private static ImmutableMap<ResourceType, ImmutableList<String>> makeSearchParamMap(
+      CompartmentDefinition patientCompartment) {
+    Map<ResourceType, ImmutableList<String>> patientSearchParams =
+        new EnumMap<>(ResourceType.class);
     for (CompartmentDefinitionResourceComponent resource : patientCompartment.getResource()) {
-      String resourceType = resource.getCode();
+      ResourceType resourceType = FhirUtil.resourceTypeOrNull(resource.getCode());
       if (resourceType == null) {
-        logger.warn("Unexpected null-type resource in patient CompartmentDefinition!");
+        logger.warn(
+            "Unexpected resource type {} in patient CompartmentDefinition!", resource.getCode());
         continue;
       }
-      List<String> paramList = Lists.newArrayList();
+      ImmutableList.Builder<String> paramList = ImmutableList.builder();
       for (StringType searchParam : resource.getParam()) {
         paramList.add(searchParam.toString());
       }
-      patientSearchParams.put(resourceType, paramList);
+      patientSearchParams.put(resourceType, paramList.build());
     }
+    return Maps.immutableEnumMap(patientSearchParams);
   }
 }
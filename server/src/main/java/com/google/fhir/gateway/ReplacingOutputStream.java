@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.base.Preconditions;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The byte-oriented equivalent of {@link ReplacingWriter}; it replaces all occurrences of a byte
+ * sequence with another one, e.g., the UTF-8 encoded FHIR store base URL with the proxy base URL.
+ * Since UTF-8 is self-synchronizing, searching for the encoded pattern in UTF-8 bytes gives the
+ * same matches as searching in the decoded chars, without any charset decoding/encoding.
+ */
+class ReplacingOutputStream extends FilterOutputStream {
+
+  private final byte[] pattern;
+  private final byte[] replacement;
+  // failure[k] is the length of the longest proper prefix of pattern[0..k] that is also a suffix.
+  private final int[] failure;
+  // Number of bytes of `pattern` matched so far; these bytes are not written yet.
+  private int matched = 0;
+  private final byte[] singleByte = new byte[1];
+
+  ReplacingOutputStream(OutputStream out, byte[] pattern, byte[] replacement) {
+    super(out);
+    Preconditions.checkArgument(pattern.length > 0, "The pattern to replace cannot be empty!");
+    this.pattern = pattern.clone();
+    this.replacement = replacement.clone();
+    this.failure = KmpUtil.computeFailureTable(this.pattern);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buf, int off, int len) throws IOException {
+    int end = off + len;
+    // The start of the current run of bytes that are known not to be part of any match.
+    int runStart = off;
+    for (int i = off; i < end; i++) {
+      byte b = buf[i];
+      if (matched == 0) {
+        if (pattern[0] != b) {
+          continue;
+        }
+        out.write(buf, runStart, i - runStart);
+      } else {
+        while (matched > 0 && pattern[matched] != b) {
+          // The first `matched - failure[matched - 1]` bytes of the partial match cannot be the
+          // start of a match anymore.
+          int next = failure[matched - 1];
+          out.write(pattern, 0, matched - next);
+          matched = next;
+        }
+        if (matched == 0 && pattern[0] != b) {
+          runStart = i;
+          continue;
+        }
+      }
+      matched++;
+      runStart = i + 1;
+      if (matched == pattern.length) {
+        out.write(replacement);
+        matched = 0;
+      }
+    }
+    out.write(buf, runStart, end - runStart);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (matched > 0) {
+      // The input ended with a partial match.
+      out.write(pattern, 0, matched);
+      matched = 0;
+    }
+    super.close();
+  }
+}
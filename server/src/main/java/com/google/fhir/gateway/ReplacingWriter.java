@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.base.Preconditions;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A streaming writer that replaces all occurrences of a fixed string with another string, e.g., the
+ * FHIR store base URL with the proxy base URL. Matches are found with the Knuth-Morris-Pratt
+ * algorithm, so each input char is examined a constant number of times (amortized), even for
+ * patterns with self-overlapping prefixes, and matches spanning buffer boundaries are found too.
+ * Unchanged runs of the input are passed to the underlying writer in bulk and nothing is allocated
+ * per write or per match.
+ *
+ * <p>Chars of a partial match at the end of a write are held back until the next write; they are
+ * written out by {@link #close()} if the input ends there. Note {@link #flush()} does not write
+ * these pending chars since they may turn into a match.
+ */
+class ReplacingWriter extends FilterWriter {
+
+  private final char[] pattern;
+  private final String replacement;
+  // failure[k] is the length of the longest proper prefix of pattern[0..k] that is also a suffix.
+  private final int[] failure;
+  // Number of chars of `pattern` matched so far; these chars are not written yet.
+  private int matched = 0;
+  private final char[] singleChar = new char[1];
+  private char[] stringBuffer = null;
+
+  ReplacingWriter(Writer out, String pattern, String replacement) {
+    super(out);
+    Preconditions.checkArgument(!pattern.isEmpty(), "The pattern to replace cannot be empty!");
+    this.pattern = pattern.toCharArray();
+    this.replacement = replacement;
+    this.failure = KmpUtil.computeFailureTable(this.pattern);
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    singleChar[0] = (char) c;
+    write(singleChar, 0, 1);
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    if (stringBuffer == null) {
+      stringBuffer = new char[Math.max(1024, pattern.length)];
+    }
+    int end = off + len;
+    while (off < end) {
+      int n = Math.min(end - off, stringBuffer.length);
+      str.getChars(off, off + n, stringBuffer, 0);
+      write(stringBuffer, 0, n);
+      off += n;
+    }
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    int end = off + len;
+    // The start of the current run of chars that are known not to be part of any match.
+    int runStart = off;
+    for (int i = off; i < end; i++) {
+      char c = cbuf[i];
+      if (matched == 0) {
+        if (pattern[0] != c) {
+          continue;
+        }
+        out.write(cbuf, runStart, i - runStart);
+      } else {
+        while (matched > 0 && pattern[matched] != c) {
+          // The first `matched - failure[matched - 1]` chars of the partial match cannot be the
+          // start of a match anymore.
+          int next = failure[matched - 1];
+          out.write(pattern, 0, matched - next);
+          matched = next;
+        }
+        if (matched == 0 && pattern[0] != c) {
+          runStart = i;
+          continue;
+        }
+      }
+      matched++;
+      runStart = i + 1;
+      if (matched == pattern.length) {
+        out.write(replacement);
+        matched = 0;
+      }
+    }
+    out.write(cbuf, runStart, end - runStart);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (matched > 0) {
+      // The input ended with a partial match.
+      out.write(pattern, 0, matched);
+      matched = 0;
+    }
+    super.close();
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.SignatureGenerationException;
+import com.auth0.jwt.exceptions.SignatureVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.google.common.base.Preconditions;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.Base64;
+import javax.annotation.Nullable;
+
+/**
+ * The PS256 (RSASSA-PSS with SHA-256) JWS algorithm (RFC 7518, section 3.5) which is not provided
+ * by the java-jwt library. Like the library's algorithms, instances are immutable and thread-safe.
+ */
+class RsaPssAlgorithm extends Algorithm {
+
+  static final String PS256 = "PS256";
+
+  private static final String SIGNATURE_ALGORITHM = "RSASSA-PSS";
+  // The salt length is the same as the hash size; see RFC 7518.
+  private static final PSSParameterSpec PS256_PARAMS =
+      new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1);
+
+  private final RSAPublicKey publicKey;
+  @Nullable private final RSAPrivateKey privateKey;
+
+  private RsaPssAlgorithm(RSAPublicKey publicKey, @Nullable RSAPrivateKey privateKey) {
+    super(PS256, "SHA256withRSASSA-PSS");
+    this.publicKey = Preconditions.checkNotNull(publicKey);
+    this.privateKey = privateKey;
+  }
+
+  static RsaPssAlgorithm ps256(RSAPublicKey publicKey, @Nullable RSAPrivateKey privateKey) {
+    return new RsaPssAlgorithm(publicKey, privateKey);
+  }
+
+  @Override
+  public void verify(DecodedJWT jwt) throws SignatureVerificationException {
+    try {
+      byte[] signatureBytes = Base64.getUrlDecoder().decode(jwt.getSignature());
+      Signature signature = newSignature();
+      signature.initVerify(publicKey);
+      signature.update(jwt.getHeader().getBytes(StandardCharsets.UTF_8));
+      signature.update((byte) '.');
+      signature.update(jwt.getPayload().getBytes(StandardCharsets.UTF_8));
+      if (!signature.verify(signatureBytes)) {
+        throw new SignatureVerificationException(this);
+      }
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      throw new SignatureVerificationException(this, e);
+    }
+  }
+
+  @Override
+  public byte[] sign(byte[] contentBytes) throws SignatureGenerationException {
+    if (privateKey == null) {
+      throw new SignatureGenerationException(
+          this, new IllegalStateException("The private key is not set."));
+    }
+    try {
+      Signature signature = newSignature();
+      signature.initSign(privateKey);
+      signature.update(contentBytes);
+      return signature.sign();
+    } catch (GeneralSecurityException e) {
+      throw new SignatureGenerationException(this, e);
+    }
+  }
+
+  // `Signature` instances are not thread-safe, hence one is created for each verification.
+  private static Signature newSignature() throws GeneralSecurityException {
+    Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+    signature.setParameter(PS256_PARAMS);
+    return signature;
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.auth0.jwt.algorithms.Algorithm;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Table;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable set of public keys of a token issuer, indexed by key ID (`kid`) and signing
+ * algorithm. The keys are either read from a JSON Web Key Set (JWKS, RFC 7517) or a single key
+ * without an ID (e.g., the `public_key` in Keycloak's realm metadata). Supported algorithms are
+ * RS256 and PS256 for RSA keys and ES256 and ES384 for EC keys on the P-256 and P-384 curves.
+ */
+class SigningKeys {
+
+  private static final Logger logger = LoggerFactory.getLogger(SigningKeys.class);
+
+  /** The key ID used for keys without a `kid` and for tokens without a `kid` header. */
+  static final String NO_KID = "";
+
+  static final String RS256 = "RS256";
+  static final String PS256 = RsaPssAlgorithm.PS256;
+  static final String ES256 = "ES256";
+  static final String ES384 = "ES384";
+
+  private static final String RSA = "RSA";
+  private static final String EC = "EC";
+  // JWK `crv` -> the JWS algorithm for that curve; see RFC 7518, sections 3.4 and 6.2.1.1.
+  private static final ImmutableMap<String, String> CURVE_ALGORITHMS =
+      ImmutableMap.of("P-256", ES256, "P-384", ES384);
+  // JWS algorithm -> the standard name of its curve in the JCA.
+  private static final ImmutableMap<String, String> CURVE_NAMES =
+      ImmutableMap.of(ES256, "secp256r1", ES384, "secp384r1");
+
+  // kid -> algorithm name -> Algorithm (with the public key).
+  private final ImmutableTable<String, String, Algorithm> algorithms;
+
+  private SigningKeys(ImmutableTable<String, String, Algorithm> algorithms) {
+    this.algorithms = algorithms;
+  }
+
+  static SigningKeys fromRsaPublicKey(RSAPublicKey publicKey) {
+    return new SigningKeys(ImmutableTable.of(NO_KID, RS256, Algorithm.RSA256(publicKey, null)));
+  }
+
+  /**
+   * Parses the given JWKS JSON; keys that are not for signatures or have an unsupported type are
+   * skipped. If there is only one key, it is used for tokens without a `kid` too.
+   */
+  static SigningKeys fromJwks(String jwksJson) {
+    JsonObject jwks = JsonParser.parseString(jwksJson).getAsJsonObject();
+    JsonArray keys = jwks.has("keys") ? jwks.getAsJsonArray("keys") : new JsonArray();
+    Table<String, String, Algorithm> algorithms = HashBasedTable.create();
+    for (JsonElement keyElement : keys) {
+      JsonObject jwk = keyElement.getAsJsonObject();
+      String kid = getString(jwk, "kid");
+      String use = getString(jwk, "use");
+      if (use != null && !"sig".equals(use)) {
+        continue;
+      }
+      try {
+        for (Algorithm algorithm : toAlgorithms(jwk, kid)) {
+          algorithms.put(kid == null ? NO_KID : kid, algorithm.getName(), algorithm);
+        }
+      } catch (GeneralSecurityException | IllegalArgumentException e) {
+        logger.warn("Skipping the invalid JWK with kid {}: {}", kid, e.getMessage());
+      }
+    }
+    if (algorithms.rowKeySet().size() == 1 && !algorithms.containsRow(NO_KID)) {
+      String onlyKid = Iterables.getOnlyElement(algorithms.rowKeySet());
+      ImmutableMap.copyOf(algorithms.row(onlyKid))
+          .forEach((alg, algorithm) -> algorithms.put(NO_KID, alg, algorithm));
+    }
+    return new SigningKeys(ImmutableTable.copyOf(algorithms));
+  }
+
+  /**
+   * Returns the algorithms usable with the given JWK, based on its key type and curve. If the JWK
+   * has an `alg`, only that algorithm is returned; otherwise all supported ones for the key type.
+   */
+  private static ImmutableList<Algorithm> toAlgorithms(JsonObject jwk, @Nullable String kid)
+      throws GeneralSecurityException {
+    String kty = getString(jwk, "kty");
+    String alg = getString(jwk, "alg");
+    ImmutableList.Builder<Algorithm> builder = ImmutableList.builder();
+    if (RSA.equals(kty)) {
+      RSAPublicKeySpec keySpec =
+          new RSAPublicKeySpec(decodeBigInteger(jwk, "n"), decodeBigInteger(jwk, "e"));
+      RSAPublicKey publicKey = (RSAPublicKey) KeyFactory.getInstance(RSA).generatePublic(keySpec);
+      if (alg == null || RS256.equals(alg)) {
+        builder.add(Algorithm.RSA256(publicKey, null));
+      }
+      if (alg == null || PS256.equals(alg)) {
+        builder.add(RsaPssAlgorithm.ps256(publicKey, null));
+      }
+    } else if (EC.equals(kty)) {
+      String curveAlg = CURVE_ALGORITHMS.get(getString(jwk, "crv"));
+      if (curveAlg != null && (alg == null || curveAlg.equals(alg))) {
+        ECPublicKey publicKey = decodeEcPublicKey(jwk, CURVE_NAMES.get(curveAlg));
+        builder.add(
+            ES256.equals(curveAlg)
+                ? Algorithm.ECDSA256(publicKey, null)
+                : Algorithm.ECDSA384(publicKey, null));
+      }
+    }
+    ImmutableList<Algorithm> algorithms = builder.build();
+    if (algorithms.isEmpty()) {
+      logger.info(
+          "Skipping the JWK with kid {}, kty {}, crv {} and alg {}",
+          kid,
+          kty,
+          getString(jwk, "crv"),
+          alg);
+    }
+    return algorithms;
+  }
+
+  private static ECPublicKey decodeEcPublicKey(JsonObject jwk, String curveName)
+      throws GeneralSecurityException {
+    AlgorithmParameters parameters = AlgorithmParameters.getInstance(EC);
+    parameters.init(new ECGenParameterSpec(curveName));
+    ECPoint point = new ECPoint(decodeBigInteger(jwk, "x"), decodeBigInteger(jwk, "y"));
+    ECPublicKeySpec keySpec =
+        new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class));
+    return (ECPublicKey) KeyFactory.getInstance(EC).generatePublic(keySpec);
+  }
+
+  private static BigInteger decodeBigInteger(JsonObject jwk, String member) {
+    String value = getString(jwk, member);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing JWK member " + member);
+    }
+    return new BigInteger(1, Base64.getUrlDecoder().decode(value));
+  }
+
+  @Nullable
+  private static String getString(JsonObject json, String member) {
+    JsonElement element = json.get(member);
+    return element == null || element.isJsonNull() ? null : element.getAsString();
+  }
+
+  boolean isEmpty() {
+    return algorithms.isEmpty();
+  }
+
+  Set<String> getKeyIds() {
+    return algorithms.rowKeySet();
+  }
+
+  ImmutableTable<String, String, Algorithm> getAlgorithms() {
+    return algorithms;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the entries of a JSON encoded transaction Bundle one at a time, such that only a single
+ * entry is materialized at any point; hence the memory use is bounded by the largest entry and not
+ * by the size of the Bundle.
+ *
+ * <p>Each entry is parsed by HAPI as the only entry of an otherwise empty Bundle; this keeps the
+ * parsing semantics of a full Bundle parse, e.g., the resource ID is populated from `fullUrl`.
+ */
+final class StreamingBundleReader {
+  private static final Logger logger = LoggerFactory.getLogger(StreamingBundleReader.class);
+
+  private static final String RESOURCE_TYPE_FIELD = "resourceType";
+  private static final String TYPE_FIELD = "type";
+  private static final String ENTRY_FIELD = "entry";
+
+  private final FhirContext fhirContext;
+
+  StreamingBundleReader(FhirContext fhirContext) {
+    this.fhirContext = fhirContext;
+  }
+
+  /**
+   * Reads the Bundle from `reader` to the end and passes its entries to `entryConsumer` in order.
+   * The Bundle type is checked as soon as it is read; if it comes after the entries, some entries
+   * are consumed before the type is rejected.
+   *
+   * @throws IOException if reading fails or the input is not well-formed JSON.
+   * @throws InvalidRequestException if the input is not a transaction Bundle.
+   */
+  void readEntries(Reader reader, Consumer<BundleEntryComponent> entryConsumer)
+      throws IOException {
+    IParser parser = fhirContext.newJsonParser();
+    boolean isBundle = false;
+    boolean isTransaction = false;
+    try (JsonReader jsonReader = new JsonReader(reader)) {
+      jsonReader.beginObject();
+      while (jsonReader.hasNext()) {
+        String name = jsonReader.nextName();
+        if (RESOURCE_TYPE_FIELD.equals(name)) {
+          isBundle = ResourceType.Bundle.name().equals(jsonReader.nextString());
+          checkBundle(isBundle);
+        } else if (TYPE_FIELD.equals(name)) {
+          isTransaction = BundleType.TRANSACTION.toCode().equals(jsonReader.nextString());
+          checkTransaction(isTransaction);
+        } else if (ENTRY_FIELD.equals(name)) {
+          jsonReader.beginArray();
+          while (jsonReader.hasNext()) {
+            entryConsumer.accept(readEntry(jsonReader, parser));
+          }
+          jsonReader.endArray();
+        } else {
+          jsonReader.skipValue();
+        }
+      }
+      jsonReader.endObject();
+      if (jsonReader.peek() != JsonToken.END_DOCUMENT) {
+        throw new IOException("Unexpected content after the Bundle " + jsonReader);
+      }
+    }
+    checkBundle(isBundle);
+    checkTransaction(isTransaction);
+  }
+
+  private static void checkBundle(boolean isBundle) {
+    if (!isBundle) {
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger, "The provided resource is not a Bundle!", InvalidRequestException.class);
+    }
+  }
+
+  private static void checkTransaction(boolean isTransaction) {
+    if (!isTransaction) {
+      // Currently, support only for transaction bundles; see:
+      //   https://github.com/google/fhir-access-proxy/issues/67
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger, "Bundle type needs to be transaction!", InvalidRequestException.class);
+    }
+  }
+
+  private static BundleEntryComponent readEntry(JsonReader jsonReader, IParser parser)
+      throws IOException {
+    if (jsonReader.peek() != JsonToken.BEGIN_OBJECT) {
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger, "Bundle entries need to be objects!", InvalidRequestException.class);
+    }
+    StringWriter entryBundle = new StringWriter();
+    try (JsonWriter jsonWriter = new JsonWriter(entryBundle)) {
+      jsonWriter.beginObject();
+      jsonWriter.name(RESOURCE_TYPE_FIELD).value(ResourceType.Bundle.name());
+      jsonWriter.name(TYPE_FIELD).value(BundleType.TRANSACTION.toCode());
+      jsonWriter.name(ENTRY_FIELD).beginArray();
+      copyValue(jsonReader, jsonWriter);
+      jsonWriter.endArray();
+      jsonWriter.endObject();
+    }
+    return parser.parseResource(Bundle.class, entryBundle.toString()).getEntryFirstRep();
+  }
+
+  /** Copies the next value of `jsonReader`, keeping the literal form of numbers. */
+  private static void copyValue(JsonReader jsonReader, JsonWriter jsonWriter) throws IOException {
+    switch (jsonReader.peek()) {
+      case BEGIN_OBJECT:
+        jsonReader.beginObject();
+        jsonWriter.beginObject();
+        while (jsonReader.hasNext()) {
+          jsonWriter.name(jsonReader.nextName());
+          copyValue(jsonReader, jsonWriter);
+        }
+        jsonReader.endObject();
+        jsonWriter.endObject();
+        break;
+      case BEGIN_ARRAY:
+        jsonReader.beginArray();
+        jsonWriter.beginArray();
+        while (jsonReader.hasNext()) {
+          copyValue(jsonReader, jsonWriter);
+        }
+        jsonReader.endArray();
+        jsonWriter.endArray();
+        break;
+      case STRING:
+        jsonWriter.value(jsonReader.nextString());
+        break;
+      case NUMBER:
+        jsonWriter.jsonValue(jsonReader.nextString());
+        break;
+      case BOOLEAN:
+        jsonWriter.value(jsonReader.nextBoolean());
+        break;
+      case NULL:
+        jsonReader.nextNull();
+        jsonWriter.nullValue();
+        break;
+      default:
+        throw new IOException("Unexpected JSON token " + jsonReader.peek() + " " + jsonReader);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import com.google.common.collect.ImmutableSet;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A push-based scanner of a JSON document that reports the string values of fields with the given
+ * names, together with their path, e.g., `entry[].response.location`. Bytes are written to this
+ * as they arrive, e.g., while a response is forwarded to the client; only the current string and
+ * the path of open objects/arrays are kept, hence the memory use does not depend on the size of
+ * the document.
+ *
+ * <p>The input is expected to be UTF-8 encoded JSON. This does not validate the JSON; malformed
+ * input may lead to missing or wrong values but not to failures. Values longer than {@link
+ * #MAX_VALUE_BYTES} are not reported. This class is not thread-safe.
+ */
+public class StreamingJsonScanner {
+
+  static final int MAX_VALUE_BYTES = 8192;
+  private static final String ARRAY_PATH = "[]";
+
+  /** Receives the values of the scanned fields. */
+  public interface Listener {
+    /**
+     * @param path the field names from the root joined by `.`, with `[]` for array elements.
+     * @param value the unescaped string value.
+     */
+    void onStringValue(String path, String value);
+  }
+
+  private final ImmutableSet<String> fieldNames;
+  private final Listener listener;
+
+  // One element per open object or array; for objects, the last field name seen.
+  private final List<String> openKeys = new ArrayList<>();
+  private final BitSet openArrays = new BitSet();
+  private boolean expectKey = false;
+  private boolean inString = false;
+  private boolean stringIsKey = false;
+  private boolean escaped = false;
+  private final byte[] stringBytes = new byte[MAX_VALUE_BYTES];
+  private int stringLength = 0;
+  private boolean stringTooLong = false;
+
+  public StreamingJsonScanner(Set<String> fieldNames, Listener listener) {
+    this.fieldNames = ImmutableSet.copyOf(fieldNames);
+    this.listener = listener;
+  }
+
+  public void write(byte[] bytes, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      write(bytes[i]);
+    }
+  }
+
+  public void write(byte b) {
+    if (inString) {
+      if (escaped) {
+        escaped = false;
+      } else if (b == '\\') {
+        escaped = true;
+      } else if (b == '"') {
+        inString = false;
+        endString();
+        return;
+      }
+      if (stringLength < stringBytes.length) {
+        stringBytes[stringLength++] = b;
+      } else {
+        stringTooLong = true;
+      }
+      return;
+    }
+    switch (b) {
+      case '{':
+        openKeys.add(null);
+        openArrays.clear(openKeys.size() - 1);
+        expectKey = true;
+        break;
+      case '[':
+        openKeys.add(ARRAY_PATH);
+        openArrays.set(openKeys.size() - 1);
+        expectKey = false;
+        break;
+      case '}':
+      case ']':
+        if (!openKeys.isEmpty()) {
+          openKeys.remove(openKeys.size() - 1);
+        }
+        expectKey = false;
+        break;
+      case ',':
+        expectKey = inObject();
+        break;
+      case ':':
+        expectKey = false;
+        break;
+      case '"':
+        inString = true;
+        stringIsKey = expectKey && inObject();
+        stringLength = 0;
+        stringTooLong = false;
+        break;
+      default:
+        // Whitespace, numbers and literals are not needed.
+    }
+  }
+
+  private boolean inObject() {
+    return !openKeys.isEmpty() && !openArrays.get(openKeys.size() - 1);
+  }
+
+  private void endString() {
+    if (stringIsKey) {
+      openKeys.set(openKeys.size() - 1, stringTooLong ? "" : decodeString());
+      expectKey = false;
+      return;
+    }
+    if (inObject() && !stringTooLong && fieldNames.contains(openKeys.get(openKeys.size() - 1))) {
+      listener.onStringValue(currentPath(), decodeString());
+    }
+  }
+
+  private String currentPath() {
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < openKeys.size(); i++) {
+      if (openArrays.get(i)) {
+        path.append(ARRAY_PATH);
+      } else {
+        if (path.length() > 0) {
+          path.append('.');
+        }
+        path.append(openKeys.get(i));
+      }
+    }
+    return path.toString();
+  }
+
+  private String decodeString() {
+    String raw = new String(stringBytes, 0, stringLength, StandardCharsets.UTF_8);
+    if (raw.indexOf('\\') < 0) {
+      return raw;
+    }
+    StringBuilder decoded = new StringBuilder(raw.length());
+    for (int i = 0; i < raw.length(); i++) {
+      char c = raw.charAt(i);
+      if (c != '\\' || i + 1 >= raw.length()) {
+        decoded.append(c);
+        continue;
+      }
+      char escape = raw.charAt(++i);
+      switch (escape) {
+        case 'b':
+          decoded.append('\b');
+          break;
+        case 'f':
+          decoded.append('\f');
+          break;
+        case 'n':
+          decoded.append('\n');
+          break;
+        case 'r':
+          decoded.append('\r');
+          break;
+        case 't':
+          decoded.append('\t');
+          break;
+        case 'u':
+          if (i + 4 < raw.length()) {
+            try {
+              decoded.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+              i += 4;
+              break;
+            } catch (NumberFormatException e) {
+              // Kept as is below.
+            }
+          }
+          decoded.append(escape);
+          break;
+        default:
+          // Covers `"`, `\` and `/`.
+          decoded.append(escape);
+      }
+    }
+    return decoded.toString();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.Nullable;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A response consumer of the non-blocking client that hands over the response as soon as its
+ * headers are received; the entity content is then streamed through a bounded buffer. When the
+ * buffer is full, reading from the FHIR store is suspended until the content is read, hence the
+ * memory used for each response is bounded by the buffer size rather than the response size.
+ *
+ * <p>Note the entity content of the response blocks until more data arrives, hence it should not be
+ * read on the I/O dispatcher threads of the client, i.e., in the callbacks of `headersFuture`
+ * without an executor.
+ */
+class StreamingResponseConsumer implements HttpAsyncResponseConsumer<HttpResponse> {
+
+  private final int bufferSize;
+  private final CompletableFuture<HttpResponse> headersFuture;
+  // These are only set by the I/O dispatcher thread of the exchange, before `headersFuture` is
+  // completed.
+  @Nullable private HttpResponse response;
+  @Nullable private SharedInputBuffer buffer;
+  @Nullable private volatile Exception exception;
+  private volatile boolean done = false;
+
+  /**
+   * @param headersFuture is completed with the response once its headers are received, or
+   *     exceptionally if the exchange fails before that.
+   */
+  StreamingResponseConsumer(int bufferSize, CompletableFuture<HttpResponse> headersFuture) {
+    this.bufferSize = bufferSize;
+    this.headersFuture = headersFuture;
+  }
+
+  @Override
+  public void responseReceived(HttpResponse response) {
+    this.response = response;
+    HttpEntity entity = response.getEntity();
+    if (entity != null) {
+      buffer = new SharedInputBuffer(bufferSize, HeapByteBufferAllocator.INSTANCE);
+      BasicHttpEntity streamingEntity = new BasicHttpEntity();
+      streamingEntity.setContent(new StreamingInputStream(buffer));
+      streamingEntity.setContentLength(entity.getContentLength());
+      streamingEntity.setContentType(entity.getContentType());
+      streamingEntity.setContentEncoding(entity.getContentEncoding());
+      streamingEntity.setChunked(entity.isChunked());
+      response.setEntity(streamingEntity);
+    }
+    headersFuture.complete(response);
+  }
+
+  @Override
+  public void consumeContent(ContentDecoder decoder, IOControl ioControl) throws IOException {
+    // This suspends the input of the connection if the buffer is full; reading resumes it.
+    buffer.consumeContent(decoder, ioControl);
+  }
+
+  @Override
+  public void responseCompleted(HttpContext context) {
+    if (buffer != null) {
+      // This marks the end of the content; readers get the buffered rest before the end.
+      buffer.close();
+    }
+    done = true;
+  }
+
+  @Override
+  public void failed(Exception e) {
+    exception = e;
+    done = true;
+    if (buffer != null) {
+      // Readers get an exception instead of the end of the content; see `StreamingInputStream`.
+      buffer.shutdown();
+    }
+    headersFuture.completeExceptionally(e);
+  }
+
+  @Override
+  public Exception getException() {
+    return exception;
+  }
+
+  @Override
+  public HttpResponse getResult() {
+    return response;
+  }
+
+  @Override
+  public boolean isDone() {
+    return done;
+  }
+
+  @Override
+  public void close() {
+    if (!done) {
+      failed(new IOException("The response consumer is closed before the response is complete"));
+    }
+  }
+
+  @Override
+  public boolean cancel() {
+    if (done) {
+      return false;
+    }
+    failed(new IOException("The FHIR store request is cancelled"));
+    return true;
+  }
+
+  /** Fails the reads at the end of the content if the response is incomplete. */
+  private class StreamingInputStream extends ContentInputStream {
+
+    StreamingInputStream(SharedInputBuffer buffer) {
+      super(buffer);
+    }
+
+    private int checkComplete(int result) throws IOException {
+      Exception currentException = exception;
+      if (result < 0 && currentException != null) {
+        throw new IOException("The response of the FHIR store is incomplete", currentException);
+      }
+      return result;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return checkComplete(super.read());
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+      return checkComplete(super.read(b));
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return checkComplete(super.read(b, off, len));
+    }
+  }
+}
@@ -22,9 +22,19 @@ import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTDecodeException;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
-import com.auth0.jwt.interfaces.Verification;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Table;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import java.io.IOException;
@@ -37,9 +47,18 @@ import java.security.interfaces.RSAPublicKey;
 import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
 import org.apache.http.HttpResponse;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
@@ -52,30 +71,90 @@ public class TokenVerifier {
   private static final String WELL_KNOWN_ENDPOINT_ENV = "WELL_KNOWN_ENDPOINT";
   private static final String WELL_KNOWN_ENDPOINT_DEFAULT = ".well-known/openid-configuration";
   private static final String BEARER_PREFIX = "Bearer ";
-
-  // TODO: Make this configurable or based on the given JWT; we should at least support some other
-  // RSA* and ES* algorithms (requires ECDSA512 JWT algorithm).
-  private static final String SIGN_ALGORITHM = "RS256";
+  private static final String JWKS_URI_KEY = "jwks_uri";
+  // The relative random jitter added to the background key refresh interval.
+  private static final double KEYS_REFRESH_JITTER = 0.1;
+  // The lower bound of the backoff for retrying the JWKS discovery in the `public_key` mode.
+  private static final Duration MIN_JWKS_DISCOVERY_BACKOFF = Duration.ofSeconds(1);
 
   private final String tokenIssuer;
+  private final String wellKnownEndpoint;
+  private final HttpUtil httpUtil;
+  private final String configJson;
+  private final TokenVerifierConfig config;
+  // The JWKS endpoint of the issuer; null if the issuer's keys are not read from a JWKS, i.e., the
+  // Keycloak specific `public_key` is used. In that mode, the JWKS discovery is retried in the
+  // background and this is set once it succeeds.
+  @Nullable private volatile URI jwksUri;
+  private volatile SigningKeys signingKeys;
   // Note the Verification class is _not_ thread-safe but the JWTVerifier instances created by its
   // `build()` are thread-safe and reusable. It is important to reuse those instances, otherwise
   // we may end up with a memory leak; details: https://github.com/auth0/java-jwt/issues/592
-  // Access to `jwtVerifierConfig` and `verifierForIssuer` should be non-concurrent.
-  private final Verification jwtVerifierConfig;
-  private final Map<String, JWTVerifier> verifierForIssuer;
-  private final HttpUtil httpUtil;
-  private final String configJson;
+  // For each issuer, there is a verifier per key ID and algorithm. The verifiers are built ahead of
+  // time and published as an immutable map which is replaced as a whole (copy-on-write) when keys
+  // rotate or a new issuer is added (only in the DEV mode); hence the per-request lookup takes no
+  // locks. Updates are serialized by `verifierUpdateLock`.
+  private volatile ImmutableMap<String, ImmutableTable<String, String, JWTVerifier>> verifiers;
+  private final Lock verifierUpdateLock = new ReentrantLock();
+  // For single-flight and rate-limited key refetches; the lock is never held during the fetch.
+  private final Lock keysRefetchLock = new ReentrantLock();
+  @Nullable private CompletableFuture<Void> inFlightKeysRefetch = null;
+  private long lastKeysRefetchNanos;
+  @Nullable private final ScheduledExecutorService keysRefreshExecutor;
+  // Verified tokens keyed by the SHA-256 hash of the raw token, such that repeated requests with
+  // the same token skip the decoding and signature verification. Each entry expires at the token's
+  // `exp` claim or after the max TTL, whichever comes first; see `TokenExpiry`.
+  private final Cache<HashCode, DecodedJWT> verifiedTokenCache;
 
   @VisibleForTesting
   TokenVerifier(String tokenIssuer, String wellKnownEndpoint, HttpUtil httpUtil)
       throws IOException {
+    this(tokenIssuer, wellKnownEndpoint, httpUtil, TokenVerifierConfig.builder().build());
+  }
+
+  @VisibleForTesting
+  TokenVerifier(
+      String tokenIssuer,
+      String wellKnownEndpoint,
+      HttpUtil httpUtil,
+      TokenVerifierConfig config)
+      throws IOException {
+    Preconditions.checkArgument(
+        config.getTokenCacheMaxSize() >= 0, "Token cache size cannot be negative.");
     this.tokenIssuer = tokenIssuer;
+    this.wellKnownEndpoint = wellKnownEndpoint;
     this.httpUtil = httpUtil;
-    RSAPublicKey issuerPublicKey = fetchAndDecodePublicKey();
-    jwtVerifierConfig = JWT.require(Algorithm.RSA256(issuerPublicKey, null));
+    this.config = config;
     this.configJson = httpUtil.fetchWellKnownConfig(tokenIssuer, wellKnownEndpoint);
-    this.verifierForIssuer = new HashMap<>();
+    URI discoveredJwksUri = findJwksUri(configJson);
+    SigningKeys keys = discoveredJwksUri == null ? null : fetchJwksOrNull(discoveredJwksUri);
+    if (keys == null || keys.isEmpty()) {
+      // Falling back to the Keycloak specific `public_key` of the issuer.
+      discoveredJwksUri = null;
+      keys = SigningKeys.fromRsaPublicKey(fetchAndDecodePublicKey());
+    }
+    this.jwksUri = discoveredJwksUri;
+    this.verifiers = ImmutableMap.of();
+    updateKeys(keys);
+    this.lastKeysRefetchNanos = System.nanoTime();
+    this.verifiedTokenCache =
+        Caffeine.newBuilder()
+            .maximumSize(config.getTokenCacheMaxSize())
+            .expireAfter(new TokenExpiry(config.getTokenCacheMaxTtl()))
+            .recordStats()
+            .build();
+    if (!config.getKeysRefreshInterval().isZero()) {
+      keysRefreshExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder().setNameFormat("jwks-refresh-%d").setDaemon(true).build());
+      if (jwksUri != null) {
+        scheduleKeysRefresh();
+      } else {
+        scheduleJwksDiscovery(minJwksDiscoveryBackoff());
+      }
+    } else {
+      keysRefreshExecutor = null;
+    }
   }
 
   public static TokenVerifier createFromEnvVars() throws IOException {
@@ -93,21 +172,91 @@ public class TokenVerifier {
               "The environment variable %s is not set! Using default value of %s instead ",
               WELL_KNOWN_ENDPOINT_ENV, WELL_KNOWN_ENDPOINT_DEFAULT));
     }
-    return new TokenVerifier(tokenIssuer, wellKnownEndpoint, new HttpUtil());
+    return new TokenVerifier(
+        tokenIssuer, wellKnownEndpoint, new HttpUtil(), TokenVerifierConfig.createFromEnvVars());
   }
 
   public String getWellKnownConfig() {
     return configJson;
   }
 
+  /** Hit/miss statistics of the verified-token cache. */
+  public CacheStats getTokenCacheStats() {
+    return verifiedTokenCache.stats();
+  }
+
+  /**
+   * Expires each verified token at its `exp` claim or after `maxTtl`, whichever comes first. Note
+   * the `exp` claim is not changed by reads or updates, hence only creation matters.
+   */
+  @VisibleForTesting
+  static class TokenExpiry implements Expiry<HashCode, DecodedJWT> {
+    private final long maxTtlNanos;
+
+    TokenExpiry(Duration maxTtl) {
+      this.maxTtlNanos = maxTtl.toNanos();
+    }
+
+    @Override
+    public long expireAfterCreate(HashCode key, DecodedJWT jwt, long currentTime) {
+      Instant expiresAt = jwt.getExpiresAtAsInstant();
+      if (expiresAt == null) {
+        return maxTtlNanos;
+      }
+      long nanosToExpiry = Duration.between(Instant.now(), expiresAt).toNanos();
+      return Math.max(0, Math.min(maxTtlNanos, nanosToExpiry));
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        HashCode key, DecodedJWT jwt, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+
+    @Override
+    public long expireAfterRead(
+        HashCode key, DecodedJWT jwt, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  @Nullable
+  private static URI findJwksUri(String wellKnownConfig) {
+    try {
+      JsonElement jwksUri =
+          JsonParser.parseString(wellKnownConfig).getAsJsonObject().get(JWKS_URI_KEY);
+      if (jwksUri == null || jwksUri.isJsonNull()) {
+        return null;
+      }
+      return new URI(jwksUri.getAsString());
+    } catch (RuntimeException | URISyntaxException e) {
+      logger.warn("Cannot read {} from the well-known config: {}", JWKS_URI_KEY, e.getMessage());
+      return null;
+    }
+  }
+
+  @Nullable
+  private SigningKeys fetchJwksOrNull(URI uri) {
+    try {
+      return fetchJwks(uri);
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Failed to fetch the JWKS from {}: {}", uri, e.getMessage());
+      return null;
+    }
+  }
+
+  private SigningKeys fetchJwks(URI uri) throws IOException {
+    HttpResponse response = httpUtil.getResourceOrFail(uri);
+    SigningKeys keys =
+        SigningKeys.fromJwks(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+    logger.info("Fetched keys with IDs {} from {}", keys.getKeyIds(), uri);
+    return keys;
+  }
+
   private RSAPublicKey fetchAndDecodePublicKey() throws IOException {
-    // Preconditions.checkState(SIGN_ALGORITHM.equals("ES512"));
-    Preconditions.checkState(SIGN_ALGORITHM.equals("RS256"));
-    // final String keyAlgorithm = "EC";
     final String keyAlgorithm = "RSA";
     try {
-      // TODO: Make sure this works for any issuer not just Keycloak; instead of this we should
-      // read the metadata and choose the right endpoint for the keys.
+      // This is the Keycloak specific realm metadata, used if the issuer has no JWKS endpoint.
       HttpResponse response = httpUtil.getResourceOrFail(new URI(tokenIssuer));
       JsonObject jsonObject =
           JsonParser.parseString(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8))
@@ -134,7 +283,187 @@ public class TokenVerifier {
     return null;
   }
 
-  private synchronized JWTVerifier getJwtVerifier(String issuer) {
+  private void scheduleKeysRefresh() {
+    long intervalMillis = config.getKeysRefreshInterval().toMillis();
+    double jitter =
+        ThreadLocalRandom.current().nextDouble(-KEYS_REFRESH_JITTER, KEYS_REFRESH_JITTER);
+    long delayMillis = (long) (intervalMillis * (1 + jitter));
+    keysRefreshExecutor.schedule(
+        () -> {
+          try {
+            refetchKeys(true);
+          } finally {
+            scheduleKeysRefresh();
+          }
+        },
+        delayMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private Duration minJwksDiscoveryBackoff() {
+    Duration minBackoff = config.getKeysMinRefetchInterval();
+    return minBackoff.compareTo(MIN_JWKS_DISCOVERY_BACKOFF) < 0
+        ? MIN_JWKS_DISCOVERY_BACKOFF
+        : minBackoff;
+  }
+
+  /**
+   * Retries the JWKS discovery after `backoff`; on each failure the backoff is doubled, up to the
+   * keys refresh interval. Once the JWKS is found, the regular keys refresh takes over.
+   */
+  private void scheduleJwksDiscovery(Duration backoff) {
+    keysRefreshExecutor.schedule(
+        () -> {
+          boolean discovered = false;
+          try {
+            discovered = discoverJwks();
+          } finally {
+            if (discovered) {
+              scheduleKeysRefresh();
+            } else {
+              Duration nextBackoff = backoff.multipliedBy(2);
+              scheduleJwksDiscovery(
+                  nextBackoff.compareTo(config.getKeysRefreshInterval()) > 0
+                      ? config.getKeysRefreshInterval()
+                      : nextBackoff);
+            }
+          }
+        },
+        backoff.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Tries to switch from the `public_key` of the issuer to its JWKS, e.g., when the JWKS endpoint
+   * was temporarily unavailable at startup.
+   *
+   * @return whether the JWKS of the issuer is used from now on.
+   */
+  @VisibleForTesting
+  boolean discoverJwks() {
+    URI discoveredJwksUri;
+    try {
+      discoveredJwksUri =
+          findJwksUri(httpUtil.fetchWellKnownConfig(tokenIssuer, wellKnownEndpoint));
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Failed to fetch the well-known config of {}: {}", tokenIssuer, e.getMessage());
+      return false;
+    }
+    if (discoveredJwksUri == null) {
+      return false;
+    }
+    SigningKeys keys = fetchJwksOrNull(discoveredJwksUri);
+    if (keys == null || keys.isEmpty()) {
+      return false;
+    }
+    // The URI is published first such that a token with a new `kid` triggers a refetch rather than
+    // being checked against the `public_key` in the meantime.
+    jwksUri = discoveredJwksUri;
+    updateKeys(keys);
+    logger.info("Switched from the public_key of the issuer to the JWKS at {}", discoveredJwksUri);
+    return true;
+  }
+
+  /**
+   * Refetches the JWKS of the issuer. Concurrent calls share a single fetch and, unless `force` is
+   * set, at most one fetch happens in each `keysMinRefetchInterval`, e.g., when a burst of tokens
+   * with an unknown `kid` arrives. Waiting threads block on the in-flight fetch, not on a lock.
+   */
+  private void refetchKeys(boolean force) {
+    URI currentJwksUri = jwksUri;
+    if (currentJwksUri == null) {
+      return;
+    }
+    CompletableFuture<Void> refetch;
+    boolean isOwner = false;
+    keysRefetchLock.lock();
+    try {
+      if (inFlightKeysRefetch != null) {
+        refetch = inFlightKeysRefetch;
+      } else if (!force
+          && System.nanoTime() - lastKeysRefetchNanos
+              < config.getKeysMinRefetchInterval().toNanos()) {
+        logger.debug("Skipping the JWKS refetch; the last one was too recent.");
+        return;
+      } else {
+        refetch = new CompletableFuture<>();
+        inFlightKeysRefetch = refetch;
+        isOwner = true;
+      }
+    } finally {
+      keysRefetchLock.unlock();
+    }
+    if (!isOwner) {
+      refetch.exceptionally(e -> null).join();
+      return;
+    }
+    try {
+      SigningKeys keys = fetchJwksOrNull(currentJwksUri);
+      if (keys != null && !keys.isEmpty()) {
+        updateKeys(keys);
+      }
+    } finally {
+      keysRefetchLock.lock();
+      try {
+        inFlightKeysRefetch = null;
+        lastKeysRefetchNanos = System.nanoTime();
+      } finally {
+        keysRefetchLock.unlock();
+      }
+      refetch.complete(null);
+    }
+  }
+
+  /** Publishes new keys and rebuilds the verifiers of all known issuers for them. */
+  private void updateKeys(SigningKeys keys) {
+    verifierUpdateLock.lock();
+    try {
+      signingKeys = keys;
+      ImmutableMap.Builder<String, ImmutableTable<String, String, JWTVerifier>> builder =
+          ImmutableMap.builder();
+      builder.put(tokenIssuer, buildVerifiers(tokenIssuer, keys));
+      for (String issuer : verifiers.keySet()) {
+        if (!tokenIssuer.equals(issuer)) {
+          builder.put(issuer, buildVerifiers(issuer, keys));
+        }
+      }
+      verifiers = builder.build();
+    } finally {
+      verifierUpdateLock.unlock();
+    }
+  }
+
+  private static ImmutableTable<String, String, JWTVerifier> buildVerifiers(
+      String issuer, SigningKeys keys) {
+    ImmutableTable.Builder<String, String, JWTVerifier> builder = ImmutableTable.builder();
+    for (Table.Cell<String, String, Algorithm> cell : keys.getAlgorithms().cellSet()) {
+      builder.put(
+          cell.getRowKey(),
+          cell.getColumnKey(),
+          JWT.require(cell.getValue()).withIssuer(issuer).build());
+    }
+    return builder.build();
+  }
+
+  private ImmutableTable<String, String, JWTVerifier> addIssuer(String issuer) {
+    verifierUpdateLock.lock();
+    try {
+      ImmutableTable<String, String, JWTVerifier> issuerVerifiers = verifiers.get(issuer);
+      if (issuerVerifiers == null) {
+        issuerVerifiers = buildVerifiers(issuer, signingKeys);
+        verifiers =
+            ImmutableMap.<String, ImmutableTable<String, String, JWTVerifier>>builder()
+                .putAll(verifiers)
+                .put(issuer, issuerVerifiers)
+                .build();
+      }
+      return issuerVerifiers;
+    } finally {
+      verifierUpdateLock.unlock();
+    }
+  }
+
+  private JWTVerifier getJwtVerifier(String issuer, @Nullable String kid, String algorithm) {
     if (!tokenIssuer.equals(issuer)) {
       if (FhirProxyServer.isDevMode()) {
         // If server is in DEV mode, set issuer to one from request
@@ -147,10 +476,33 @@ public class TokenVerifier {
         return null;
       }
     }
-    if (!verifierForIssuer.containsKey(issuer)) {
-      verifierForIssuer.put(issuer, jwtVerifierConfig.withIssuer(issuer).build());
+    // Without a JWKS, the `public_key` is the only key of the issuer hence it is used regardless of
+    // the `kid`; e.g., Keycloak sets the `kid` in all tokens.
+    String keyId = kid == null || jwksUri == null ? SigningKeys.NO_KID : kid;
+    JWTVerifier verifier = findVerifier(issuer, keyId, algorithm);
+    if (verifier == null && !verifiers.get(tokenIssuer).containsRow(keyId)) {
+      // This may be a new key of the issuer, i.e., keys have been rotated.
+      logger.info("Unknown key ID {}; refetching the keys of the issuer.", kid);
+      refetchKeys(false);
+      verifier = findVerifier(issuer, keyId, algorithm);
+    }
+    if (verifier == null) {
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger,
+          String.format("No key with ID %s found for the %s signing algorithm", kid, algorithm),
+          AuthenticationException.class);
+    }
+    return verifier;
+  }
+
+  @Nullable
+  private JWTVerifier findVerifier(String issuer, String keyId, String algorithm) {
+    Map<String, ImmutableTable<String, String, JWTVerifier>> currentVerifiers = verifiers;
+    ImmutableTable<String, String, JWTVerifier> issuerVerifiers = currentVerifiers.get(issuer);
+    if (issuerVerifiers == null) {
+      issuerVerifiers = addIssuer(issuer);
     }
-    return verifierForIssuer.get(issuer);
+    return issuerVerifiers.get(keyId, algorithm);
   }
 
   @VisibleForTesting
@@ -162,6 +514,11 @@ public class TokenVerifier {
           AuthenticationException.class);
     }
     String bearerToken = authHeader.substring(BEARER_PREFIX.length());
+    HashCode tokenHash = Hashing.sha256().hashString(bearerToken, StandardCharsets.UTF_8);
+    DecodedJWT cachedJwt = verifiedTokenCache.getIfPresent(tokenHash);
+    if (cachedJwt != null) {
+      return cachedJwt;
+    }
     DecodedJWT jwt = null;
     try {
       jwt = JWT.decode(bearerToken);
@@ -171,19 +528,11 @@ public class TokenVerifier {
     }
     String issuer = jwt.getIssuer();
     String algorithm = jwt.getAlgorithm();
-    JWTVerifier jwtVerifier = getJwtVerifier(issuer);
     logger.info(
         String.format(
-            "JWT issuer is %s, audience is %s, and algorithm is %s",
-            issuer, jwt.getAudience(), algorithm));
-
-    if (!SIGN_ALGORITHM.equals(algorithm)) {
-      ExceptionUtil.throwRuntimeExceptionAndLog(
-          logger,
-          String.format(
-              "Only %s signing algorithm is supported, got %s", SIGN_ALGORITHM, algorithm),
-          AuthenticationException.class);
-    }
+            "JWT issuer is %s, audience is %s, key ID is %s, and algorithm is %s",
+            issuer, jwt.getAudience(), jwt.getKeyId(), algorithm));
+    JWTVerifier jwtVerifier = getJwtVerifier(issuer, jwt.getKeyId(), algorithm);
     DecodedJWT verifiedJwt = null;
     try {
       verifiedJwt = jwtVerifier.verify(jwt);
@@ -196,6 +545,7 @@ public class TokenVerifier {
           e,
           AuthenticationException.class);
     }
+    verifiedTokenCache.put(tokenHash, verifiedJwt);
     return verifiedJwt;
   }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import java.time.Duration;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/** Caching and key refresh settings of {@link TokenVerifier}. */
+@Builder
+@Getter
+@ToString
+public class TokenVerifierConfig {
+
+  private static final String TOKEN_CACHE_MAX_SIZE_ENV = "TOKEN_CACHE_MAX_SIZE";
+  private static final String TOKEN_CACHE_MAX_TTL_ENV = "TOKEN_CACHE_MAX_TTL_SECONDS";
+  private static final String KEYS_REFRESH_INTERVAL_ENV = "JWKS_REFRESH_INTERVAL_SECONDS";
+  private static final String KEYS_MIN_REFETCH_INTERVAL_ENV = "JWKS_MIN_REFETCH_INTERVAL_SECONDS";
+
+  // The max number of verified tokens to cache; zero disables the cache.
+  @Builder.Default private final long tokenCacheMaxSize = 10_000;
+  // Cached tokens expire after this or at their `exp` claim, whichever comes first.
+  @Builder.Default private final Duration tokenCacheMaxTtl = Duration.ofMinutes(5);
+  // The interval (plus/minus a random jitter) for refreshing the issuer's JWKS in the background;
+  // zero disables the background refresh.
+  @Builder.Default private final Duration keysRefreshInterval = Duration.ofHours(1);
+  // Tokens with an unknown `kid` trigger a JWKS refetch, at most once in this interval.
+  @Builder.Default private final Duration keysMinRefetchInterval = Duration.ofSeconds(30);
+
+  public static TokenVerifierConfig createFromEnvVars() {
+    TokenVerifierConfig defaults = TokenVerifierConfig.builder().build();
+    return TokenVerifierConfig.builder()
+        .tokenCacheMaxSize(
+            EnvUtil.getLongOrDefault(TOKEN_CACHE_MAX_SIZE_ENV, defaults.tokenCacheMaxSize))
+        .tokenCacheMaxTtl(getDurationOrDefault(TOKEN_CACHE_MAX_TTL_ENV, defaults.tokenCacheMaxTtl))
+        .keysRefreshInterval(
+            getDurationOrDefault(KEYS_REFRESH_INTERVAL_ENV, defaults.keysRefreshInterval))
+        .keysMinRefetchInterval(
+            getDurationOrDefault(KEYS_MIN_REFETCH_INTERVAL_ENV, defaults.keysMinRefetchInterval))
+        .build();
+  }
+
+  private static Duration getDurationOrDefault(String envName, Duration defaultValue) {
+    return Duration.ofSeconds(EnvUtil.getLongOrDefault(envName, defaultValue.getSeconds()));
+  }
+}
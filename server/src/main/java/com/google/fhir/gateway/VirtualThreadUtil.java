@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helpers for the opt-in virtual-thread mode. The code base targets Java 11, hence virtual threads
+ * are created through reflection and only when the runtime JDK supports them (21+).
+ */
+public class VirtualThreadUtil {
+
+  private static final Logger logger = LoggerFactory.getLogger(VirtualThreadUtil.class);
+  private static final String VIRTUAL_THREADS_ENV = "VIRTUAL_THREADS_ENABLED";
+
+  private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+  private static final boolean ENABLED = decideEnabled();
+
+  private static Method findVirtualThreadExecutorFactory() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static boolean decideEnabled() {
+    if (!EnvUtil.getBooleanOrDefault(VIRTUAL_THREADS_ENV, false)) {
+      return false;
+    }
+    if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+      logger.warn(
+          "{} is set but virtual threads are not supported by Java {}; using platform threads.",
+          VIRTUAL_THREADS_ENV,
+          System.getProperty("java.version"));
+      return false;
+    }
+    return true;
+  }
+
+  /** Whether virtual threads are both requested through configuration and supported. */
+  public static boolean isEnabled() {
+    return ENABLED;
+  }
+
+  /**
+   * Returns an executor that starts a new virtual thread for each task if the virtual-thread mode
+   * is enabled; otherwise returns an empty Optional and callers should use platform threads.
+   */
+  public static Optional<ExecutorService> newVirtualThreadPerTaskExecutor() {
+    if (!ENABLED) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of((ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null));
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      ExceptionUtil.throwRuntimeExceptionAndLog(
+          logger, "Cannot create a virtual-thread executor", e);
+      return Optional.empty();
+    }
+  }
+}
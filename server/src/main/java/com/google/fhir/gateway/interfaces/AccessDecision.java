@@ -55,4 +55,19 @@ public interface AccessDecision {
    *     content in memory whenever it is not needed for post-processing.
    */
   String postProcess(RequestDetailsReader request, HttpResponse response) throws IOException;
+
+  /**
+   * A streaming alternative to reading the response content in {@link #postProcess}, e.g., for
+   * extracting information from large responses. This is called only if `postProcess` returns
+   * null; the returned processor then sees the content while it is copied to the client.
+   *
+   * @param request the client to server request details
+   * @param response the response returned from the FHIR store
+   * @return the processor for the response content or null if the content is copied as is.
+   */
+  @Nullable
+  default ResponseStreamProcessor getResponseStreamProcessor(
+      RequestDetailsReader request, HttpResponse response) {
+    return null;
+  }
 }
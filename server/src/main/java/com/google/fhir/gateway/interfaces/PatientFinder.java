@@ -18,7 +18,9 @@ package com.google.fhir.gateway.interfaces;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.google.fhir.gateway.BundlePatients;
 import java.util.Set;
+import java.util.function.Consumer;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.jetbrains.annotations.NotNull;
 
 public interface PatientFinder {
@@ -45,6 +47,21 @@ public interface PatientFinder {
    */
   BundlePatients findPatientsInBundle(Bundle bundle);
 
+  /**
+   * Finds all patients referenced or updated in a transaction Bundle in the content of a request.
+   * This is the same as {@link #findPatientsInBundle(Bundle)} but the entries are read and analyzed
+   * one at a time, hence the whole Bundle is never materialized.
+   *
+   * @param request that is expected to have a transaction Bundle content.
+   * @param entryConsumer is called for each entry, in order, after the entry is analyzed; this is
+   *     for callers that need to check entries beyond their patients.
+   * @return the {@link BundlePatients} that wraps all found patients.
+   * @throws InvalidRequestException for various reasons when unexpected content is encountered.
+   *     Callers are expected to deny access when this happens.
+   */
+  BundlePatients findPatientsInBundle(
+      RequestDetailsReader request, Consumer<BundleEntryComponent> entryConsumer);
+
   /**
    * Finds all patients in the content of a request.
    *
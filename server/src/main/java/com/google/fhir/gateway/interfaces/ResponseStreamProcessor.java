@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway.interfaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Processes the content of a FHIR store response while it is being copied to the client; see
+ * {@link AccessDecision#getResponseStreamProcessor}.
+ */
+@FunctionalInterface
+public interface ResponseStreamProcessor {
+
+  /**
+   * Reads the response content from `content` and writes what should be sent to the client to
+   * `output`. The content is decompressed but otherwise as sent by the FHIR store; the output is
+   * still passed through the URL rewriting and compression of the proxy, in the same pass.
+   * Implementations do not need to close the streams.
+   *
+   * @param content the response content from the FHIR store
+   * @param output the stream to the client
+   */
+  void process(InputStream content, OutputStream output) throws IOException;
+}
@@ -19,40 +19,62 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.nullValue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.server.IRestfulResponse;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
-import ca.uhn.fhir.rest.server.servlet.ServletRestfulResponse;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
 import com.google.fhir.gateway.interfaces.AccessChecker;
 import com.google.fhir.gateway.interfaces.AccessDecision;
 import com.google.fhir.gateway.interfaces.NoOpAccessDecision;
 import com.google.fhir.gateway.interfaces.RequestDetailsReader;
 import com.google.fhir.gateway.interfaces.RequestMutation;
+import com.google.fhir.gateway.interfaces.ResponseStreamProcessor;
 import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.junit.Before;
@@ -88,8 +110,16 @@ public class BearerAuthorizationInterceptorTest {
 
   private final Writer writerStub = new StringWriter();
 
+  // FHIR store responses are copied directly to the servlet response.
+  private final MockHttpServletResponse servletResponseStub = new MockHttpServletResponse();
+
   private BearerAuthorizationInterceptor createTestInstance(
       boolean isAccessGranted, String allowedQueriesConfig) throws IOException {
+    return createTestInstance(new NoOpAccessDecision(isAccessGranted), allowedQueriesConfig);
+  }
+
+  private BearerAuthorizationInterceptor createTestInstance(
+      AccessDecision accessDecision, String allowedQueriesConfig) throws IOException {
     return new BearerAuthorizationInterceptor(
         fhirClientMock,
         tokenVerifierMock,
@@ -98,7 +128,7 @@ public class BearerAuthorizationInterceptorTest {
             new AccessChecker() {
               @Override
               public AccessDecision checkAccess(RequestDetailsReader requestDetails) {
-                return new NoOpAccessDecision(isAccessGranted);
+                return accessDecision;
               }
             },
         new AllowedQueriesChecker(allowedQueriesConfig));
@@ -121,11 +151,7 @@ public class BearerAuthorizationInterceptorTest {
     if (addBearer) {
       when(requestMock.getHeader("Authorization")).thenReturn("Bearer ANYTHING");
     }
-    IRestfulResponse proxyResponseMock = Mockito.mock(IRestfulResponse.class);
-    when(requestMock.getResponse()).thenReturn(proxyResponseMock);
-    when(proxyResponseMock.getResponseWriter(
-            anyInt(), anyString(), anyString(), anyString(), anyBoolean()))
-        .thenReturn(writerStub);
+    when(requestMock.getServletResponse()).thenReturn(servletResponseStub);
     TestUtil.setUpFhirResponseMock(fhirResponseMock, fhirStoreResponse);
   }
 
@@ -135,7 +161,7 @@ public class BearerAuthorizationInterceptorTest {
     String testPatientJson = Resources.toString(patientUrl, StandardCharsets.UTF_8);
     setupBearerAndFhirResponse(testPatientJson);
     testInstance.authorizeRequest(requestMock);
-    assertThat(testPatientJson, equalTo(writerStub.toString()));
+    assertThat(testPatientJson, equalTo(servletResponseStub.getContentAsString()));
   }
 
   @Test
@@ -144,7 +170,7 @@ public class BearerAuthorizationInterceptorTest {
     String testListJson = Resources.toString(patientUrl, StandardCharsets.UTF_8);
     setupBearerAndFhirResponse(testListJson);
     testInstance.authorizeRequest(requestMock);
-    assertThat(testListJson, equalTo(writerStub.toString()));
+    assertThat(testListJson, equalTo(servletResponseStub.getContentAsString()));
   }
 
   @Test
@@ -154,7 +180,7 @@ public class BearerAuthorizationInterceptorTest {
     setupBearerAndFhirResponse(testPatientIdSearch);
     testInstance.authorizeRequest(requestMock);
     String replaced = testPatientIdSearch.replaceAll(FHIR_STORE, BASE_URL);
-    assertThat(replaced, equalTo(writerStub.toString()));
+    assertThat(replaced, equalTo(servletResponseStub.getContentAsString()));
   }
 
   @Test
@@ -166,7 +192,22 @@ public class BearerAuthorizationInterceptorTest {
         .thenReturn(HttpStatus.SC_INTERNAL_SERVER_ERROR);
     testInstance.authorizeRequest(requestMock);
     String replaced = errorResponse.replaceAll(FHIR_STORE, BASE_URL);
-    assertThat(replaced, equalTo(writerStub.toString()));
+    assertThat(replaced, equalTo(servletResponseStub.getContentAsString()));
+  }
+
+  @Test
+  public void authorizeRequestNonUtf8ResponseTestReplaceUrl() throws IOException {
+    String responseJson =
+        String.format("{\"name\": \"J\u00e9r\u00f4me\", \"url\": \"%s/Patient/p1\"}", FHIR_STORE);
+    setupBearerAndFhirResponse(responseJson);
+    when(fhirResponseMock.getEntity())
+        .thenReturn(
+            new StringEntity(
+                responseJson, ContentType.create("application/json", StandardCharsets.ISO_8859_1)));
+    testInstance.authorizeRequest(requestMock);
+    assertThat(
+        servletResponseStub.getContentAsString(),
+        equalTo(responseJson.replace(FHIR_STORE, BASE_URL)));
   }
 
   void noAuthRequestSetup(String requestPath) throws IOException {
@@ -227,15 +268,22 @@ public class BearerAuthorizationInterceptorTest {
         jsonMap.get("code_challenge_methods_supported"), equalTo(Lists.newArrayList("S256")));
   }
 
-  @Test
-  public void authorizeRequestMetadata() throws IOException {
+  private void setupMetadataRequest() throws IOException {
     noAuthRequestSetup(BearerAuthorizationInterceptor.METADATA_PATH);
     URL capabilityUrl = Resources.getResource("capability.json");
     String capabilityJson = Resources.toString(capabilityUrl, StandardCharsets.UTF_8);
     setupBearerAndFhirResponse(capabilityJson);
+    when(requestMock.getRequestType()).thenReturn(RequestTypeEnum.GET);
+    when(fhirClientMock.getResource(BearerAuthorizationInterceptor.METADATA_PATH))
+        .thenReturn(fhirResponseMock);
+  }
+
+  @Test
+  public void authorizeRequestMetadata() throws IOException {
+    setupMetadataRequest();
     testInstance.authorizeRequest(requestMock);
     IParser parser = fhirContext.newJsonParser();
-    IBaseResource resource = parser.parseResource(writerStub.toString());
+    IBaseResource resource = parser.parseResource(servletResponseStub.getContentAsString());
     assertThat(resource, instanceOf(CapabilityStatement.class));
     CapabilityStatement capability = (CapabilityStatement) resource;
     assertThat(capability.getRest().get(0).getSecurity().getCors(), equalTo(true));
@@ -244,6 +292,37 @@ public class BearerAuthorizationInterceptorTest {
         equalTo("OAuth"));
   }
 
+  @Test
+  public void authorizeRequestMetadataServedFromCache() throws IOException {
+    setupMetadataRequest();
+    testInstance.authorizeRequest(requestMock);
+    String firstContent = servletResponseStub.getContentAsString();
+    MockHttpServletResponse secondResponse = new MockHttpServletResponse();
+    when(requestMock.getServletResponse()).thenReturn(secondResponse);
+
+    testInstance.authorizeRequest(requestMock);
+
+    assertThat(secondResponse.getContentAsString(), equalTo(firstContent));
+    assertThat(
+        secondResponse.getHeader("ETag"), equalTo(servletResponseStub.getHeader("ETag")));
+    verify(fhirClientMock, times(1)).getResource(BearerAuthorizationInterceptor.METADATA_PATH);
+    verify(fhirClientMock, never()).handleRequest(requestMock);
+  }
+
+  @Test
+  public void authorizeRequestMetadataNotModified() throws IOException {
+    setupMetadataRequest();
+    testInstance.authorizeRequest(requestMock);
+    MockHttpServletResponse secondResponse = new MockHttpServletResponse();
+    when(requestMock.getServletResponse()).thenReturn(secondResponse);
+    when(requestMock.getHeader("If-None-Match")).thenReturn(servletResponseStub.getHeader("ETag"));
+
+    testInstance.authorizeRequest(requestMock);
+
+    assertThat(secondResponse.getStatus(), equalTo(HttpStatus.SC_NOT_MODIFIED));
+    assertThat(secondResponse.getContentAsByteArray().length, equalTo(0));
+  }
+
   @Test
   public void authorizeAllowedUnauthenticatedRequest() throws IOException {
     // Changing the access-checker to something that always denies except the allowed queries
@@ -256,7 +335,7 @@ public class BearerAuthorizationInterceptorTest {
 
     testInstance.authorizeRequest(requestMock);
 
-    assertThat(responseJson, equalTo(writerStub.toString()));
+    assertThat(responseJson, equalTo(servletResponseStub.getContentAsString()));
   }
 
   @Test(expected = ForbiddenOperationException.class)
@@ -314,20 +393,6 @@ public class BearerAuthorizationInterceptorTest {
     when(requestMock.getHeader("Authorization")).thenReturn("Bearer ANYTHING");
     when(requestMock.getHeader("Accept-Encoding".toLowerCase())).thenReturn("gzip");
 
-    // requestMock.getResponse() {@link ServletRequestDetails#getResponse()} is an abstraction HAPI
-    // provides to access the response object which is of type ServletRestfulResponse {@link
-    // ServletRestfulResponse}. Internally HAPI uses the HttpServletResponse {@link
-    // HttpServletResponse} object to perform any response related operations for this wrapper class
-    // ServletRestfulResponse. We have to perform mocking at two levels: one with
-    // requestMock.getResponse() because this is how we access the wrapper response object and write
-    // to it. We also need to perform a deeper level mock using requestMock.getServletResponse()
-    // {@link ServletRequestDetails#getServletResponse()} for the internal HAPI operations to be
-    // performed successfully. This complication arises from us mocking the request object. Had the
-    // object been not mocked, and set by a server we would not have needed to do this levels of
-    // mocks.
-    when(requestMock.getServer()).thenReturn(serverMock);
-    ServletRestfulResponse proxyResponseMock = new ServletRestfulResponse(requestMock);
-    when(requestMock.getResponse()).thenReturn(proxyResponseMock);
     HttpServletResponse proxyServletResponseMock = new MockHttpServletResponse();
     when(requestMock.getServletResponse()).thenReturn(proxyServletResponseMock);
     TestUtil.setUpFhirResponseMock(fhirResponseMock, responseJson);
@@ -344,9 +409,6 @@ public class BearerAuthorizationInterceptorTest {
     String responseJson = "{\"resourceType\": \"Bundle\"}";
     when(requestMock.getHeader("Authorization")).thenReturn("Bearer ANYTHING");
     when(requestMock.getHeader("Accept-Encoding".toLowerCase())).thenReturn("GZIP");
-    when(requestMock.getServer()).thenReturn(serverMock);
-    ServletRestfulResponse proxyResponseMock = new ServletRestfulResponse(requestMock);
-    when(requestMock.getResponse()).thenReturn(proxyResponseMock);
     HttpServletResponse proxyServletResponseMock = new MockHttpServletResponse();
     when(requestMock.getServletResponse()).thenReturn(proxyServletResponseMock);
     TestUtil.setUpFhirResponseMock(fhirResponseMock, responseJson);
@@ -363,9 +425,6 @@ public class BearerAuthorizationInterceptorTest {
     String responseJson = "{\"resourceType\": \"Bundle\"}";
     when(requestMock.getHeader("Authorization")).thenReturn("Bearer ANYTHING");
     when(requestMock.getHeader("Accept-Encoding".toLowerCase())).thenReturn("gzip, deflate, br");
-    when(requestMock.getServer()).thenReturn(serverMock);
-    ServletRestfulResponse proxyResponseMock = new ServletRestfulResponse(requestMock);
-    when(requestMock.getResponse()).thenReturn(proxyResponseMock);
     HttpServletResponse proxyServletResponseMock = new MockHttpServletResponse();
     when(requestMock.getServletResponse()).thenReturn(proxyServletResponseMock);
     TestUtil.setUpFhirResponseMock(fhirResponseMock, responseJson);
@@ -375,4 +434,284 @@ public class BearerAuthorizationInterceptorTest {
     assertThat(
         proxyServletResponseMock.getHeader("Content-Encoding".toLowerCase()), equalTo("gzip"));
   }
+
+  private static byte[] gzip(byte[] content) throws IOException {
+    ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream)) {
+      gzipStream.write(content);
+    }
+    return byteStream.toByteArray();
+  }
+
+  private static String gunzip(byte[] content) throws IOException {
+    try (GZIPInputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(content))) {
+      return new String(ByteStreams.toByteArray(gzipStream), StandardCharsets.UTF_8);
+    }
+  }
+
+  private void setupGzippedFhirResponse(byte[] content, ContentType contentType)
+      throws IOException {
+    setupBearerAndFhirResponse("");
+    ByteArrayEntity gzippedEntity = new ByteArrayEntity(gzip(content), contentType);
+    gzippedEntity.setContentEncoding("gzip");
+    when(fhirResponseMock.getEntity()).thenReturn(gzippedEntity);
+  }
+
+  @Test
+  public void authorizeRequestGzippedBinaryResponseNoRewrite() throws IOException {
+    byte[] pdfContent = ("%PDF " + FHIR_STORE).getBytes(StandardCharsets.UTF_8);
+    setupGzippedFhirResponse(pdfContent, ContentType.create("application/pdf"));
+    when(requestMock.getHeader("Accept-Encoding".toLowerCase())).thenReturn("gzip");
+
+    testInstance.authorizeRequest(requestMock);
+
+    // The gzipped content is passed through as is.
+    assertThat(servletResponseStub.getHeaders("Content-Encoding"), equalTo(List.of("gzip")));
+    assertThat(servletResponseStub.getContentAsByteArray(), equalTo(gzip(pdfContent)));
+    assertThat(servletResponseStub.getContentType(), equalTo("application/pdf"));
+  }
+
+  @Test
+  public void authorizeRequestPostProcessingObservesForwardedContent() throws IOException {
+    String responseJson = "{\"resourceType\": \"Patient\", \"id\": \"test-patient\"}";
+    List<String> scannedValues = new ArrayList<>();
+    AtomicBoolean completed = new AtomicBoolean(false);
+    AccessDecision observingDecision =
+        new AccessDecision() {
+          public boolean canAccess() {
+            return true;
+          }
+
+          public RequestMutation getRequestMutation(RequestDetailsReader requestDetailsReader) {
+            return null;
+          }
+
+          public String postProcess(
+              RequestDetailsReader requestDetailsReader, HttpResponse response) {
+            return null;
+          }
+
+          @Override
+          public ResponseStreamProcessor getResponseStreamProcessor(
+              RequestDetailsReader requestDetailsReader, HttpResponse response) {
+            StreamingJsonScanner scanner =
+                new StreamingJsonScanner(Set.of("id"), (path, value) -> scannedValues.add(value));
+            return (content, output) -> {
+              try (InputStream observed =
+                  new ObservingInputStream(content, scanner, () -> completed.set(true))) {
+                ByteStreams.copy(observed, output);
+              }
+            };
+          }
+        };
+    testInstance = createTestInstance(observingDecision, null);
+    BasicHttpResponse fhirResponse =
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+    ByteArrayEntity gzippedEntity =
+        new ByteArrayEntity(
+            gzip(responseJson.getBytes(StandardCharsets.UTF_8)), ContentType.APPLICATION_JSON);
+    gzippedEntity.setContentEncoding("gzip");
+    fhirResponse.setEntity(gzippedEntity);
+    when(fhirClientMock.handleRequest(requestMock)).thenReturn(fhirResponse);
+    // No URL rewriting, i.e., the gzipped content could be passed through without observing it.
+    when(fhirClientMock.getBaseUrl()).thenReturn(BASE_URL);
+    when(requestMock.getHeader("Authorization")).thenReturn("Bearer ANYTHING");
+    when(requestMock.getHeader("Accept-Encoding".toLowerCase())).thenReturn("gzip");
+    when(requestMock.getServletResponse()).thenReturn(servletResponseStub);
+
+    testInstance.authorizeRequest(requestMock);
+
+    assertThat(gunzip(servletResponseStub.getContentAsByteArray()), equalTo(responseJson));
+    assertThat(scannedValues, equalTo(List.of("test-patient")));
+    assertThat(completed.get(), equalTo(true));
+  }
+
+  @Test
+  public void authorizeRequestStreamPostProcessingChainedWithRewrite() throws IOException {
+    String responseJson = "{\"resourceType\": \"Bundle\", \"link\": \"" + FHIR_STORE + "\"}";
+    AccessDecision transformingDecision =
+        new AccessDecision() {
+          public boolean canAccess() {
+            return true;
+          }
+
+          public RequestMutation getRequestMutation(RequestDetailsReader requestDetailsReader) {
+            return null;
+          }
+
+          public String postProcess(
+              RequestDetailsReader requestDetailsReader, HttpResponse response) {
+            return null;
+          }
+
+          @Override
+          public ResponseStreamProcessor getResponseStreamProcessor(
+              RequestDetailsReader requestDetailsReader, HttpResponse response) {
+            return (content, output) -> {
+              ByteStreams.copy(content, output);
+              output.write(" ".getBytes(StandardCharsets.UTF_8));
+            };
+          }
+        };
+    testInstance = createTestInstance(transformingDecision, null);
+    setupBearerAndFhirResponse(responseJson);
+
+    testInstance.authorizeRequest(requestMock);
+
+    assertThat(
+        servletResponseStub.getContentAsString(),
+        equalTo(responseJson.replace(FHIR_STORE, BASE_URL) + " "));
+  }
+
+  @Test
+  public void authorizeRequestGzippedJsonResponseRewrittenAndGzipped() throws IOException {
+    URL searchUrl = Resources.getResource("patient_id_search.json");
+    String testPatientIdSearch = Resources.toString(searchUrl, StandardCharsets.UTF_8);
+    setupGzippedFhirResponse(
+        testPatientIdSearch.getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON);
+    when(requestMock.getHeader("Accept-Encoding".toLowerCase())).thenReturn("gzip, br");
+
+    testInstance.authorizeRequest(requestMock);
+
+    assertThat(servletResponseStub.getHeaders("Content-Encoding"), equalTo(List.of("gzip")));
+    assertThat(
+        gunzip(servletResponseStub.getContentAsByteArray()),
+        equalTo(testPatientIdSearch.replace(FHIR_STORE, BASE_URL)));
+  }
+
+  @Test
+  public void authorizeRequestGzippedJsonResponseClientNoGzip() throws IOException {
+    URL searchUrl = Resources.getResource("patient_id_search.json");
+    String testPatientIdSearch = Resources.toString(searchUrl, StandardCharsets.UTF_8);
+    setupGzippedFhirResponse(
+        testPatientIdSearch.getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON);
+
+    testInstance.authorizeRequest(requestMock);
+
+    assertThat(servletResponseStub.getHeader("Content-Encoding"), nullValue());
+    assertThat(
+        servletResponseStub.getContentAsString(),
+        equalTo(testPatientIdSearch.replace(FHIR_STORE, BASE_URL)));
+  }
+
+  /**
+   * Sets up the async mode with the given FHIR store response and creates the test instance with
+   * the given access decision; returns the async context of the request.
+   */
+  private AsyncContext setUpAsyncRelay(
+      AccessDecision accessDecision, CompletableFuture<HttpResponse> responseFuture)
+      throws IOException {
+    when(fhirClientMock.isAsyncEnabled()).thenReturn(true);
+    when(fhirClientMock.handleRequestAsync(requestMock)).thenReturn(responseFuture);
+    HttpServletRequest servletRequestMock = Mockito.mock(HttpServletRequest.class);
+    AsyncContext asyncContextMock = Mockito.mock(AsyncContext.class);
+    when(servletRequestMock.isAsyncSupported()).thenReturn(true);
+    when(servletRequestMock.startAsync(servletRequestMock, servletResponseStub))
+        .thenReturn(asyncContextMock);
+    when(requestMock.getServletRequest()).thenReturn(servletRequestMock);
+    when(requestMock.getServletResponse()).thenReturn(servletResponseStub);
+    when(requestMock.getHeader("Authorization")).thenReturn("Bearer ANYTHING");
+    testInstance = createTestInstance(accessDecision, null);
+    return asyncContextMock;
+  }
+
+  @Test
+  public void authorizeRequestAsyncRelaysResponse() throws IOException {
+    String responseJson = "{\"resourceType\": \"Bundle\", \"link\": \"" + FHIR_STORE + "\"}";
+    TestUtil.setUpFhirResponseMock(fhirResponseMock, responseJson);
+    AsyncContext asyncContextMock =
+        setUpAsyncRelay(
+            new NoOpAccessDecision(true), CompletableFuture.completedFuture(fhirResponseMock));
+
+    testInstance.authorizeRequest(requestMock);
+
+    verify(asyncContextMock, timeout(5000)).complete();
+    verify(asyncContextMock).setTimeout(0);
+    verify(fhirClientMock, never()).handleRequest(any(ServletRequestDetails.class));
+    assertThat(servletResponseStub.getStatus(), equalTo(HttpStatus.SC_OK));
+    assertThat(
+        servletResponseStub.getContentAsString(),
+        equalTo(responseJson.replace(FHIR_STORE, BASE_URL)));
+  }
+
+  @Test
+  public void authorizeRequestAsyncFhirStoreFailureSendsError() throws IOException {
+    CompletableFuture<HttpResponse> failedFuture = new CompletableFuture<>();
+    failedFuture.completeExceptionally(new IOException("Connection refused"));
+    AsyncContext asyncContextMock = setUpAsyncRelay(new NoOpAccessDecision(true), failedFuture);
+
+    testInstance.authorizeRequest(requestMock);
+
+    verify(asyncContextMock, timeout(5000)).complete();
+    assertThat(servletResponseStub.getStatus(), equalTo(HttpStatus.SC_INTERNAL_SERVER_ERROR));
+    assertThat(servletResponseStub.getErrorMessage(), equalTo("Connection refused"));
+  }
+
+  @Test
+  public void authorizeRequestAsyncPostProcessingFailureRelaysResponse() throws IOException {
+    String responseJson = "{\"resourceType\": \"Patient\", \"id\": \"test-patient\"}";
+    TestUtil.setUpFhirResponseMock(fhirResponseMock, responseJson);
+    AccessDecision failingDecision =
+        new AccessDecision() {
+          public boolean canAccess() {
+            return true;
+          }
+
+          public RequestMutation getRequestMutation(RequestDetailsReader requestDetailsReader) {
+            return null;
+          }
+
+          public String postProcess(
+              RequestDetailsReader requestDetailsReader, HttpResponse response) {
+            throw new IllegalStateException("Failed to update the access list");
+          }
+        };
+    AsyncContext asyncContextMock =
+        setUpAsyncRelay(failingDecision, CompletableFuture.completedFuture(fhirResponseMock));
+
+    testInstance.authorizeRequest(requestMock);
+
+    // The FHIR store change is done, hence its response is passed to the client anyway.
+    verify(asyncContextMock, timeout(5000)).complete();
+    assertThat(servletResponseStub.getStatus(), equalTo(HttpStatus.SC_OK));
+    assertThat(servletResponseStub.getContentAsString(), equalTo(responseJson));
+  }
+
+  @Test
+  public void authorizeRequestAsyncStreamProcessingFailureCompletes() throws IOException {
+    TestUtil.setUpFhirResponseMock(fhirResponseMock, "{\"resourceType\": \"Patient\"}");
+    AccessDecision failingDecision =
+        new AccessDecision() {
+          public boolean canAccess() {
+            return true;
+          }
+
+          public RequestMutation getRequestMutation(RequestDetailsReader requestDetailsReader) {
+            return null;
+          }
+
+          public String postProcess(
+              RequestDetailsReader requestDetailsReader, HttpResponse response) {
+            return null;
+          }
+
+          @Override
+          public ResponseStreamProcessor getResponseStreamProcessor(
+              RequestDetailsReader requestDetailsReader, HttpResponse response) {
+            return (content, output) -> {
+              throw new IOException("Truncated response");
+            };
+          }
+        };
+    AsyncContext asyncContextMock =
+        setUpAsyncRelay(failingDecision, CompletableFuture.completedFuture(fhirResponseMock));
+
+    testInstance.authorizeRequest(requestMock);
+
+    // The response is already committed, hence no error can be sent; but the request must not
+    // be left open.
+    verify(asyncContextMock, timeout(5000)).complete();
+    assertThat(servletResponseStub.isCommitted(), equalTo(true));
+    assertThat(servletResponseStub.getErrorMessage(), nullValue());
+  }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CapabilityStatementCacheTest {
+
+  private static final String METADATA_PATH = "metadata";
+  private static final String STORE_ETAG = "W/\"1\"";
+  private static final String STORE_LAST_MODIFIED = "Tue, 01 Oct 2024 10:00:00 GMT";
+
+  @Mock private HttpFhirClient fhirClientMock;
+
+  private CapabilityStatementCache testInstance;
+
+  private String capabilityJson;
+
+  @Before
+  public void setUp() throws IOException {
+    URL capabilityUrl = Resources.getResource("capability.json");
+    capabilityJson = Resources.toString(capabilityUrl, StandardCharsets.UTF_8);
+    testInstance =
+        new CapabilityStatementCache(
+            fhirClientMock,
+            CapabilityPostProcessor.getInstance(FhirContext.forR4()),
+            Duration.ofHours(1));
+  }
+
+  private static HttpResponse createResponse(int statusCode, String content) {
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+    response.setEntity(new StringEntity(content, StandardCharsets.UTF_8));
+    response.addHeader("ETag", STORE_ETAG);
+    response.addHeader("Last-Modified", STORE_LAST_MODIFIED);
+    return response;
+  }
+
+  private void setUpStoreCapability() throws IOException {
+    when(fhirClientMock.getResource(METADATA_PATH))
+        .thenReturn(createResponse(HttpStatus.SC_OK, capabilityJson));
+  }
+
+  @Test
+  public void getFetchesOnceAndAddsSecurity() throws IOException {
+    setUpStoreCapability();
+
+    CapabilityStatementCache.Entry first = testInstance.get();
+    CapabilityStatementCache.Entry second = testInstance.get();
+
+    assertThat(second, sameInstance(first));
+    assertThat(first.getContent(), containsString("OAuth"));
+    assertThat(first.getLastModified(), equalTo(STORE_LAST_MODIFIED));
+    verify(fhirClientMock, times(1)).getResource(METADATA_PATH);
+  }
+
+  @Test
+  public void refreshNotModifiedKeepsEntry() throws IOException {
+    setUpStoreCapability();
+    CapabilityStatementCache.Entry first = testInstance.get();
+    when(fhirClientMock.getResourceConditionally(METADATA_PATH, STORE_ETAG, STORE_LAST_MODIFIED))
+        .thenReturn(createResponse(HttpStatus.SC_NOT_MODIFIED, ""));
+
+    testInstance.refresh();
+
+    assertThat(testInstance.get(), sameInstance(first));
+  }
+
+  @Test
+  public void refreshChangedStatementUpdatesEtag() throws IOException {
+    setUpStoreCapability();
+    CapabilityStatementCache.Entry first = testInstance.get();
+    String changedJson = capabilityJson.replace("\"status\": \"draft\"", "\"status\": \"retired\"");
+    when(fhirClientMock.getResourceConditionally(METADATA_PATH, STORE_ETAG, STORE_LAST_MODIFIED))
+        .thenReturn(createResponse(HttpStatus.SC_OK, changedJson));
+
+    testInstance.refresh();
+
+    assertThat(testInstance.get().getEtag(), not(equalTo(first.getEtag())));
+    assertThat(testInstance.get().getContent(), containsString("retired"));
+  }
+
+  @Test
+  public void refreshFailureKeepsEntry() throws IOException {
+    setUpStoreCapability();
+    CapabilityStatementCache.Entry first = testInstance.get();
+    when(fhirClientMock.getResourceConditionally(METADATA_PATH, STORE_ETAG, STORE_LAST_MODIFIED))
+        .thenThrow(new IOException("FHIR store is down"));
+
+    assertThrows(IOException.class, () -> testInstance.refresh());
+
+    assertThat(testInstance.get(), sameInstance(first));
+  }
+
+  @Test
+  public void isNotModifiedMatchesEtag() throws IOException {
+    setUpStoreCapability();
+    CapabilityStatementCache.Entry entry = testInstance.get();
+    String strongEtag = entry.getEtag().substring(2);
+
+    assertThat(entry.isNotModified("\"other\", " + strongEtag, null), equalTo(true));
+    assertThat(entry.isNotModified("\"other\"", entry.getLastModified()), equalTo(false));
+    assertThat(entry.isNotModified(null, entry.getLastModified()), equalTo(true));
+    assertThat(entry.isNotModified(null, "Mon, 30 Sep 2024 10:00:00 GMT"), equalTo(false));
+    assertThat(entry.isNotModified(null, null), equalTo(false));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.Test;
+
+public class CompartmentReferenceExtractorTest {
+
+  private final CompartmentReferenceExtractor testInstance =
+      new CompartmentReferenceExtractor(
+          Map.of(
+              ResourceType.Observation, List.of("subject", "performer"),
+              ResourceType.Procedure, List.of("subject", "performer.actor")));
+
+  private CompartmentReferenceExtractor.Result extract(String json) throws IOException {
+    return testInstance.extract(new StringReader(json));
+  }
+
+  @Test
+  public void extractFollowsPathsThroughArrays() throws IOException {
+    CompartmentReferenceExtractor.Result result =
+        extract(
+            "{\"subject\": {\"reference\": \"Patient/p1\", \"display\": \"x\"},"
+                + " \"performer\": [{\"actor\": {\"reference\": \"Patient/p2\"}},"
+                + " {\"actor\": {\"display\": \"no reference\"}}],"
+                + " \"note\": [{\"text\": \"large\"}], \"resourceType\": \"Procedure\"}");
+
+    assertThat(result.getResourceType(), equalTo("Procedure"));
+    assertThat(result.getReferences(), contains("Patient/p1", "Patient/p2"));
+  }
+
+  @Test
+  public void extractUsesPathsOfResourceType() throws IOException {
+    CompartmentReferenceExtractor.Result result =
+        extract(
+            "{\"resourceType\": \"Observation\", \"performer\": [{\"reference\": \"Patient/p1\"},"
+                + " {\"actor\": {\"reference\": \"Patient/p2\"}}]}");
+
+    assertThat(result.getReferences(), contains("Patient/p1"));
+  }
+
+  @Test
+  public void extractIgnoresContainedResources() throws IOException {
+    CompartmentReferenceExtractor.Result result =
+        extract(
+            "{\"resourceType\": \"Observation\", \"contained\": [{\"resourceType\": \"Procedure\","
+                + " \"subject\": {\"reference\": \"Patient/p1\"}}]}");
+
+    assertThat(result.getResourceType(), equalTo("Observation"));
+    assertThat(result.getReferences(), empty());
+  }
+
+  @Test
+  public void extractUnknownOrMissingType() throws IOException {
+    assertThat(
+        extract("{\"subject\": {\"reference\": \"Patient/p1\"}}").getResourceType(), nullValue());
+    assertThat(
+        extract("{\"resourceType\": \"Basic\", \"subject\": {\"reference\": \"Patient/p1\"}}")
+            .getReferences(),
+        empty());
+  }
+
+  @Test
+  public void extractMalformedFails() {
+    assertThrows(
+        IOException.class,
+        () -> extract("{\"resourceType\": \"Observation\", \"subject\": {\"reference\": }"));
+    assertThrows(IOException.class, () -> extract("{\"resourceType\": \"Observation\"} {}"));
+    assertThrows(IllegalStateException.class, () -> extract("[]"));
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021-2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class DecodingEntityTest {
+
+  private static final String CONTENT = "{\"resourceType\": \"Patient\"}";
+
+  private static ByteArrayEntity createGzippedEntity(String encoding) throws IOException {
+    ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream)) {
+      gzipStream.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+    }
+    ByteArrayEntity entity =
+        new ByteArrayEntity(byteStream.toByteArray(), ContentType.APPLICATION_JSON);
+    entity.setContentEncoding(encoding);
+    return entity;
+  }
+
+  @Test
+  public void contentEncodingOf_normalized() throws IOException {
+    assertThat(DecodingEntity.contentEncodingOf(createGzippedEntity(" GZIP ")), equalTo("gzip"));
+    assertThat(DecodingEntity.contentEncodingOf(createGzippedEntity("identity")), nullValue());
+    assertThat(DecodingEntity.contentEncodingOf(new ByteArrayEntity(new byte[0])), nullValue());
+  }
+
+  @Test
+  public void isDecodable_unknownEncoding_false() {
+    assertThat(DecodingEntity.isDecodable("gzip"), equalTo(true));
+    assertThat(DecodingEntity.isDecodable("deflate"), equalTo(true));
+    assertThat(DecodingEntity.isDecodable("br"), equalTo(false));
+    assertThat(DecodingEntity.isDecodable(null), equalTo(false));
+  }
+
+  @Test
+  public void getContent_gzipped_decodedLazily() throws IOException {
+    DecodingEntity entity = new DecodingEntity(createGzippedEntity("gzip"), "gzip");
+
+    assertThat(entity.isContentRequested(), equalTo(false));
+    assertThat(entity.getContentEncoding(), nullValue());
+    assertThat(
+        entity.getContentType().getValue(), equalTo(ContentType.APPLICATION_JSON.toString()));
+    assertThat(EntityUtils.toString(entity), equalTo(CONTENT));
+    assertThat(entity.isContentRequested(), equalTo(true));
+  }
+}
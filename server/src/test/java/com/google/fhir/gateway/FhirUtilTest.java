@@ -17,6 +17,7 @@ package com.google.fhir.gateway;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -25,6 +26,7 @@ import com.google.common.io.Resources;
 import com.google.fhir.gateway.interfaces.RequestDetailsReader;
 import java.io.IOException;
 import java.net.URL;
+import org.hl7.fhir.r4.model.ResourceType;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
@@ -100,4 +102,17 @@ public class FhirUtilTest {
     when(requestMock.loadRequestContents()).thenReturn(bundleBytes);
     FhirUtil.parseRequestToBundle(fhirContext, requestMock).getEntry().size();
   }
+
+  @Test
+  public void resourceTypeOrNullKnownType() {
+    assertThat(FhirUtil.resourceTypeOrNull("Observation"), equalTo(ResourceType.Observation));
+    assertThat(FhirUtil.resourceTypeOrNull("List"), equalTo(ResourceType.List));
+  }
+
+  @Test
+  public void resourceTypeOrNullUnknownType() {
+    assertThat(FhirUtil.resourceTypeOrNull("observation"), nullValue());
+    assertThat(FhirUtil.resourceTypeOrNull(null), nullValue());
+    assertThat(FhirUtil.isValidFhirResourceType("NotAType"), equalTo(false));
+  }
 }
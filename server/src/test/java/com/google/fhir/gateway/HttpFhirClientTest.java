@@ -19,18 +19,35 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.when;
 
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.RequestBuilder;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -46,6 +63,34 @@ public class HttpFhirClientTest {
 
   @Mock private HttpResponse httpResponse;
 
+  @Mock private HttpServletRequest servletRequestMock;
+
+  /** Returns a client in the async mode for the FHIR store at the given base URL. */
+  private static HttpFhirClient createAsyncClient(String baseUrl) {
+    return new HttpFhirClient(HttpClientConfig.builder().asyncMode(true).build()) {
+      @Override
+      protected String getBaseUrl() {
+        return baseUrl;
+      }
+
+      @Override
+      protected URI getUriForResource(String resourcePath) {
+        return URI.create(baseUrl + "/" + resourcePath);
+      }
+
+      @Override
+      protected Header getAuthHeader() {
+        return new BasicHeader("Authorization", "Bearer test-token");
+      }
+    };
+  }
+
+  private void setUpGetRequest(String requestPath) {
+    when(servletRequestMock.getMethod()).thenReturn("GET");
+    when(requestMock.getServletRequest()).thenReturn(servletRequestMock);
+    when(requestMock.getRequestPath()).thenReturn(requestPath);
+  }
+
   @Test
   public void copyRequiredHeaders_passAllowedHeaders_addsToRequest() {
     Map<String, List<String>> headers = new HashMap<>();
@@ -105,4 +150,87 @@ public class HttpFhirClientTest {
 
     assertThat(responseHeaders, empty());
   }
+
+  @Test
+  public void getConnectionPoolStats_noRequests_nothingLeased() {
+    PoolStats stats = fhirClient.getConnectionPoolStats();
+
+    assertThat(stats.getLeased(), equalTo(0));
+    assertThat(stats.getPending(), equalTo(0));
+    assertThat(
+        stats.getMax(), equalTo(HttpClientConfig.builder().build().getMaxConnectionsTotal()));
+  }
+
+  @Test
+  public void isAsyncEnabled_defaultConfig_false() {
+    assertThat(fhirClient.isAsyncEnabled(), equalTo(false));
+  }
+
+  @Test
+  public void responseHeadersToKeep_contentEncoding_notKept() {
+    // The content-encoding of the relayed response is decided by BearerAuthorizationInterceptor.
+    Header[] headers = {new BasicHeader("Content-Encoding", "gzip")};
+    when(httpResponse.getAllHeaders()).thenReturn(headers);
+
+    List<Header> responseHeaders = fhirClient.responseHeadersToKeep(httpResponse);
+
+    assertThat(responseHeaders, empty());
+  }
+
+  @Test
+  public void getResourcePathForUrl_fhirStoreUrl_relativePath() {
+    doReturn("http://fhir.store/fhir").when(fhirClient).getBaseUrl();
+
+    assertThat(
+        fhirClient.getResourcePathForUrl("http://fhir.store/fhir/List/_history?_page=2"),
+        equalTo("List/_history?_page=2"));
+    assertThat(fhirClient.getResourcePathForUrl("http://other.store/fhir/List"), nullValue());
+  }
+
+  @Test
+  public void handleRequestAsync_fhirStoreResponse_streamsContent() throws Exception {
+    String responseJson = "{\"resourceType\": \"Patient\", \"id\": \"p1\"}";
+    HttpServer fhirStore = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    fhirStore.createContext(
+        "/fhir/Patient/p1",
+        exchange -> {
+          byte[] content = responseJson.getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+          exchange.sendResponseHeaders(HttpStatus.SC_OK, content.length);
+          try (OutputStream body = exchange.getResponseBody()) {
+            body.write(content);
+          }
+        });
+    fhirStore.start();
+    try {
+      HttpFhirClient asyncClient =
+          createAsyncClient("http://localhost:" + fhirStore.getAddress().getPort() + "/fhir");
+      setUpGetRequest("Patient/p1");
+
+      HttpResponse response = asyncClient.handleRequestAsync(requestMock).get(10, TimeUnit.SECONDS);
+
+      assertThat(response.getStatusLine().getStatusCode(), equalTo(HttpStatus.SC_OK));
+      assertThat(EntityUtils.toString(response.getEntity()), equalTo(responseJson));
+    } finally {
+      fhirStore.stop(0);
+    }
+  }
+
+  @Test
+  public void handleRequestAsync_fhirStoreDown_failsFuture() throws Exception {
+    int port;
+    // Nothing listens on the port once the socket is closed.
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    HttpFhirClient asyncClient = createAsyncClient("http://localhost:" + port + "/fhir");
+    setUpGetRequest("Patient/p1");
+
+    ExecutionException exception =
+        assertThrows(
+            ExecutionException.class,
+            () -> asyncClient.handleRequestAsync(requestMock).get(10, TimeUnit.SECONDS));
+
+    assertThat(exception.getCause(), instanceOf(IOException.class));
+  }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2021-2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class KmpUtilTest {
+
+  @Test
+  public void computeFailureTableSelfOverlapping() {
+    assertThat(
+        KmpUtil.computeFailureTable("abacabab".toCharArray()),
+        equalTo(new int[] {0, 0, 1, 0, 1, 2, 3, 2}));
+  }
+
+  @Test
+  public void computeFailureTableSameForCharsAndBytes() {
+    String pattern = "https://fhir.store/fhir/";
+    assertThat(
+        KmpUtil.computeFailureTable(pattern.getBytes(StandardCharsets.UTF_8)),
+        equalTo(KmpUtil.computeFailureTable(pattern.toCharArray())));
+  }
+}
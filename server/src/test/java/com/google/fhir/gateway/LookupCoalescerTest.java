@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class LookupCoalescerTest {
+
+  private static final String TEST_KEY = "/List?_id=test-list&item=Patient%2Ftest-patient";
+
+  private final LookupCoalescer<String, Boolean> testInstance = new LookupCoalescer<>();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final CountDownLatch lookupStarted = new CountDownLatch(1);
+  private final CountDownLatch finishLookup = new CountDownLatch(1);
+  private final AtomicInteger lookupRuns = new AtomicInteger();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private Boolean blockingLookup() throws IOException {
+    lookupRuns.incrementAndGet();
+    lookupStarted.countDown();
+    try {
+      finishLookup.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    return true;
+  }
+
+  /** Runs the given lookup in the background and waits until it is in flight. */
+  private Future<Boolean> startInFlightLookup(LookupCoalescer.Lookup<Boolean> lookup)
+      throws InterruptedException {
+    Future<Boolean> inFlight = executor.submit(() -> testInstance.lookup(TEST_KEY, lookup));
+    assertThat(lookupStarted.await(10, TimeUnit.SECONDS), equalTo(true));
+    return inFlight;
+  }
+
+  @Test
+  public void lookupSequentialRunsEach() throws IOException {
+    testInstance.lookup(TEST_KEY, () -> lookupRuns.incrementAndGet() > 0);
+    testInstance.lookup(TEST_KEY, () -> lookupRuns.incrementAndGet() > 0);
+
+    assertThat(lookupRuns.get(), equalTo(2));
+    assertThat(testInstance.getLookupCount(), equalTo(2L));
+    assertThat(testInstance.getCoalescedCount(), equalTo(0L));
+  }
+
+  @Test
+  public void lookupConcurrentSharesResult() throws Exception {
+    Future<Boolean> inFlight = startInFlightLookup(this::blockingLookup);
+    Future<Boolean> waiter =
+        executor.submit(
+            () -> testInstance.lookup(TEST_KEY, () -> lookupRuns.incrementAndGet() < 0));
+    // Waits for the second lookup to join the in-flight one before finishing it.
+    while (testInstance.getCoalescedCount() == 0) {
+      Thread.sleep(1);
+    }
+    finishLookup.countDown();
+
+    assertThat(inFlight.get(10, TimeUnit.SECONDS), equalTo(true));
+    assertThat(waiter.get(10, TimeUnit.SECONDS), equalTo(true));
+    assertThat(lookupRuns.get(), equalTo(1));
+    assertThat(testInstance.getLookupCount(), equalTo(1L));
+    assertThat(testInstance.getCoalescedCount(), equalTo(1L));
+  }
+
+  @Test
+  public void lookupDifferentKeysNotCoalesced() throws Exception {
+    Future<Boolean> inFlight = startInFlightLookup(this::blockingLookup);
+
+    boolean result = testInstance.lookup("/List?_id=other-list", () -> false);
+    finishLookup.countDown();
+
+    assertThat(result, equalTo(false));
+    assertThat(inFlight.get(10, TimeUnit.SECONDS), equalTo(true));
+    assertThat(testInstance.getCoalescedCount(), equalTo(0L));
+  }
+
+  @Test(expected = IOException.class)
+  public void lookupFailureThrownToWaiters() throws Exception {
+    startInFlightLookup(
+        () -> {
+          blockingLookup();
+          throw new IOException("Lookup failed");
+        });
+    executor.submit(
+        () -> {
+          while (testInstance.getCoalescedCount() == 0) {
+            Thread.sleep(1);
+          }
+          finishLookup.countDown();
+          return null;
+        });
+
+    testInstance.lookup(TEST_KEY, () -> true);
+  }
+
+  @Test(expected = StackOverflowError.class)
+  public void lookupErrorThrownToWaiters() throws Exception {
+    startInFlightLookup(
+        () -> {
+          blockingLookup();
+          throw new StackOverflowError("Lookup failed");
+        });
+    executor.submit(
+        () -> {
+          while (testInstance.getCoalescedCount() == 0) {
+            Thread.sleep(1);
+          }
+          finishLookup.countDown();
+          return null;
+        });
+
+    testInstance.lookup(TEST_KEY, () -> true);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThrows;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.gateway.BundlePatients.BundlePatientsBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.junit.Test;
+
+public class ParallelBundleAnalyzerTest {
+
+  private static final int ENTRY_COUNT = 50;
+
+  private final List<String> consumedUrls = new ArrayList<>();
+
+  private static BundleEntryComponent createEntry(int index) {
+    BundleEntryComponent entryComponent = new BundleEntryComponent();
+    entryComponent.getRequest().setUrl("Patient/p" + index);
+    return entryComponent;
+  }
+
+  private static void addUrlAsPatient(
+      BundleEntryComponent entryComponent, BundlePatientsBuilder builder) {
+    builder.addReferencedPatients(Set.of(entryComponent.getRequest().getUrl()));
+  }
+
+  private BundlePatients analyze(
+      BiConsumer<BundleEntryComponent, BundlePatientsBuilder> entryProcessor, int parallelism) {
+    ParallelBundleAnalyzer testInstance =
+        new ParallelBundleAnalyzer(entryProcessor, parallelism, /* threshold= */ 5);
+    ParallelBundleAnalyzer.Analysis analysis =
+        testInstance.start(
+            entryComponent -> consumedUrls.add(entryComponent.getRequest().getUrl()));
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      analysis.addEntry(createEntry(i));
+    }
+    return analysis.finish();
+  }
+
+  private static List<ImmutableSet<String>> expectedPatients() {
+    List<ImmutableSet<String>> expected = new ArrayList<>();
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      expected.add(ImmutableSet.of("Patient/p" + i));
+    }
+    return expected;
+  }
+
+  @Test
+  public void analyzeMergesInEntryOrder() {
+    BundlePatients bundlePatients =
+        analyze(
+            (entryComponent, builder) -> {
+              // Makes earlier entries finish later.
+              if (entryComponent.getRequest().getUrl().endsWith("0")) {
+                try {
+                  Thread.sleep(20);
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              }
+              addUrlAsPatient(entryComponent, builder);
+            },
+            4);
+
+    assertThat(bundlePatients.getReferencedPatients(), equalTo(expectedPatients()));
+    assertThat(consumedUrls.size(), equalTo(ENTRY_COUNT));
+    assertThat(consumedUrls.get(ENTRY_COUNT - 1), equalTo("Patient/p" + (ENTRY_COUNT - 1)));
+  }
+
+  @Test
+  public void analyzeSequentialWhenDisabled() {
+    Thread callingThread = Thread.currentThread();
+    BundlePatients bundlePatients =
+        analyze(
+            (entryComponent, builder) -> {
+              assertThat(Thread.currentThread(), equalTo(callingThread));
+              addUrlAsPatient(entryComponent, builder);
+            },
+            1);
+
+    assertThat(bundlePatients.getReferencedPatients(), equalTo(expectedPatients()));
+  }
+
+  @Test
+  public void analyzeFirstInvalidEntryFails() {
+    CountDownLatch laterEntryFailed = new CountDownLatch(1);
+    InvalidRequestException e =
+        assertThrows(
+            InvalidRequestException.class,
+            () ->
+                analyze(
+                    (entryComponent, builder) -> {
+                      String url = entryComponent.getRequest().getUrl();
+                      if (url.equals("Patient/p10")) {
+                        try {
+                          laterEntryFailed.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException ie) {
+                          Thread.currentThread().interrupt();
+                        }
+                        throw new InvalidRequestException(url);
+                      }
+                      if (url.equals("Patient/p12")) {
+                        laterEntryFailed.countDown();
+                        throw new InvalidRequestException(url);
+                      }
+                      addUrlAsPatient(entryComponent, builder);
+                    },
+                    4));
+
+    assertThat(e.getMessage(), containsString("Patient/p10"));
+    assertThat(consumedUrls.size(), equalTo(10));
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021-2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+
+public class ReplacingOutputStreamTest {
+
+  private static final String FHIR_STORE = "https://fhir.store/fhir";
+  private static final String PROXY_BASE = "http://myproxy/fhir";
+
+  private static String replaceInChunks(String input, String pattern, String replacement, int chunk)
+      throws IOException {
+    ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+    try (ReplacingOutputStream stream =
+        new ReplacingOutputStream(
+            byteStream,
+            pattern.getBytes(StandardCharsets.UTF_8),
+            replacement.getBytes(StandardCharsets.UTF_8))) {
+      byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+      for (int i = 0; i < bytes.length; i += chunk) {
+        stream.write(bytes, i, Math.min(chunk, bytes.length - i));
+      }
+    }
+    return byteStream.toString(StandardCharsets.UTF_8.name());
+  }
+
+  @Test
+  public void write_multiByteCharsAndMatchSpanningWrites_replaced() throws IOException {
+    String input = String.format("{\"name\": \"Jérôme\", \"url\": \"%s\"}", FHIR_STORE);
+
+    assertThat(
+        replaceInChunks(input, FHIR_STORE, PROXY_BASE, 3),
+        equalTo(input.replace(FHIR_STORE, PROXY_BASE)));
+  }
+
+  @Test
+  public void write_selfOverlappingPrefix_replaced() throws IOException {
+    assertThat(replaceInChunks("xaaabx", "aab", "R", 1), equalTo("xaRx"));
+  }
+
+  @Test
+  public void close_partialMatchAtEnd_written() throws IOException {
+    String input = "url: " + FHIR_STORE.substring(0, 10);
+
+    assertThat(replaceInChunks(input, FHIR_STORE, PROXY_BASE, 4), equalTo(input));
+  }
+
+  @Test
+  public void write_randomInputs_sameAsStringReplace() throws IOException {
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      String pattern = randomString(random, 1 + random.nextInt(5));
+      String input = randomString(random, random.nextInt(50));
+      String replacement = randomString(random, random.nextInt(3));
+      int chunk = 1 + random.nextInt(8);
+
+      assertThat(
+          replaceInChunks(input, pattern, replacement, chunk),
+          equalTo(input.replace(pattern, replacement)));
+    }
+  }
+
+  private static String randomString(Random random, int length) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      builder.append("abé".charAt(random.nextInt(3)));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021-2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import org.junit.Test;
+
+public class ReplacingWriterTest {
+
+  private static final String FHIR_STORE = "https://fhir.store/fhir";
+  private static final String PROXY_BASE = "http://myproxy/fhir";
+
+  private static String replaceInChunks(String input, String pattern, String replacement, int chunk)
+      throws IOException {
+    StringWriter stringWriter = new StringWriter();
+    try (ReplacingWriter writer = new ReplacingWriter(stringWriter, pattern, replacement)) {
+      char[] chars = input.toCharArray();
+      for (int i = 0; i < chars.length; i += chunk) {
+        writer.write(chars, i, Math.min(chunk, chars.length - i));
+      }
+    }
+    return stringWriter.toString();
+  }
+
+  @Test
+  public void write_multipleMatches_allReplaced() throws IOException {
+    String input =
+        String.format(
+            "{\"fullUrl\": \"%s/Patient/p1\", \"next\": \"%s?_page=2\"}", FHIR_STORE, FHIR_STORE);
+
+    assertThat(
+        replaceInChunks(input, FHIR_STORE, PROXY_BASE, 1024),
+        equalTo(input.replace(FHIR_STORE, PROXY_BASE)));
+  }
+
+  @Test
+  public void write_matchSpanningWrites_replaced() throws IOException {
+    String input = "url: " + FHIR_STORE + "/Patient";
+
+    assertThat(
+        replaceInChunks(input, FHIR_STORE, PROXY_BASE, 3),
+        equalTo("url: " + PROXY_BASE + "/Patient"));
+  }
+
+  @Test
+  public void write_selfOverlappingPrefix_replaced() throws IOException {
+    // The naive restart after the mismatch at the third 'a' misses this match.
+    assertThat(replaceInChunks("xaaabx", "aab", "R", 1), equalTo("xaRx"));
+    assertThat(replaceInChunks("abababc", "ababc", "R", 2), equalTo("abR"));
+  }
+
+  @Test
+  public void close_partialMatchAtEnd_written() throws IOException {
+    String input = "url: " + FHIR_STORE.substring(0, 10);
+
+    assertThat(replaceInChunks(input, FHIR_STORE, PROXY_BASE, 4), equalTo(input));
+  }
+
+  @Test
+  public void write_stringAndSingleChars_replaced() throws IOException {
+    StringWriter stringWriter = new StringWriter();
+    try (ReplacingWriter writer = new ReplacingWriter(stringWriter, "ab", "X")) {
+      writer.write("aab");
+      writer.write('a');
+      writer.write('b');
+    }
+
+    assertThat(stringWriter.toString(), equalTo("aXX"));
+  }
+
+  @Test
+  public void write_randomInputs_sameAsStringReplace() throws IOException {
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      String pattern = randomString(random, 1 + random.nextInt(5));
+      String input = randomString(random, random.nextInt(50));
+      String replacement = randomString(random, random.nextInt(3));
+      int chunk = 1 + random.nextInt(8);
+
+      assertThat(
+          replaceInChunks(input, pattern, replacement, chunk),
+          equalTo(input.replace(pattern, replacement)));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_emptyPattern_throws() {
+    new ReplacingWriter(new StringWriter(), "", PROXY_BASE);
+  }
+
+  private static String randomString(Random random, int length) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      builder.append("ab/".charAt(random.nextInt(3)));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThrows;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Test;
+
+public class StreamingBundleReaderTest {
+
+  // Note this is an expensive class to instantiate, so we only do this once for all tests.
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  private static final String OBSERVATION_ENTRY =
+      "{\"fullUrl\": \"Observation/o1\", \"resource\": {\"resourceType\": \"Observation\","
+          + " \"valueQuantity\": {\"value\": 1.50}},"
+          + " \"request\": {\"method\": \"PUT\", \"url\": \"Observation/o1\"}}";
+  private static final String GET_ENTRY =
+      "{\"request\": {\"method\": \"GET\", \"url\": \"Patient/p1\"}}";
+
+  private final StreamingBundleReader testInstance = new StreamingBundleReader(fhirContext);
+  private final List<BundleEntryComponent> entries = new ArrayList<>();
+
+  private void read(String json) throws IOException {
+    testInstance.readEntries(new StringReader(json), entries::add);
+  }
+
+  @Test
+  public void readEntriesInOrder() throws IOException {
+    read(
+        "{\"resourceType\": \"Bundle\", \"type\": \"transaction\", \"entry\": ["
+            + OBSERVATION_ENTRY
+            + ", "
+            + GET_ENTRY
+            + "]}");
+
+    assertThat(entries.size(), equalTo(2));
+    BundleEntryComponent observationEntry = entries.get(0);
+    assertThat(observationEntry.getRequest().getMethod(), equalTo(HTTPVerb.PUT));
+    assertThat(observationEntry.getResource().getIdElement().getIdPart(), equalTo("o1"));
+    assertThat(
+        ((Observation) observationEntry.getResource()).getValueQuantity().getValue().toString(),
+        equalTo("1.50"));
+    assertThat(entries.get(1).getRequest().getUrl(), equalTo("Patient/p1"));
+  }
+
+  @Test
+  public void readEntriesNotTransaction() {
+    assertThrows(
+        InvalidRequestException.class,
+        () -> read("{\"resourceType\": \"Bundle\", \"type\": \"batch\", \"entry\": []}"));
+    assertThat(entries.size(), equalTo(0));
+  }
+
+  @Test
+  public void readEntriesTypeAfterEntries() {
+    assertThrows(
+        InvalidRequestException.class,
+        () -> read("{\"resourceType\": \"Bundle\", \"entry\": [" + GET_ENTRY + "]}"));
+  }
+
+  @Test
+  public void readEntriesNotBundle() {
+    assertThrows(
+        InvalidRequestException.class,
+        () -> read("{\"resourceType\": \"Observation\", \"type\": \"transaction\"}"));
+  }
+
+  @Test
+  public void readEntriesMalformed() {
+    assertThrows(
+        IOException.class,
+        () ->
+            read(
+                "{\"resourceType\": \"Bundle\", \"type\": \"transaction\", \"entry\": ["
+                    + GET_ENTRY
+                    + " "
+                    + GET_ENTRY
+                    + "]}"));
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+import com.google.common.base.Strings;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class StreamingJsonScannerTest {
+
+  private final List<String> values = new ArrayList<>();
+
+  private final StreamingJsonScanner testInstance =
+      new StreamingJsonScanner(
+          Set.of("resourceType", "location"), (path, value) -> values.add(path + "=" + value));
+
+  /** Writes the JSON in small chunks, as it would arrive from the network. */
+  private void scan(String json) {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < bytes.length; i += 3) {
+      testInstance.write(bytes, i, Math.min(3, bytes.length - i));
+    }
+  }
+
+  @Test
+  public void scanReportsPaths() {
+    scan(
+        "{\"resourceType\": \"Bundle\", \"entry\": [{\"response\": {\"location\": \"Patient/p1\"}},"
+            + " {\"resource\": {\"resourceType\": \"Patient\"}}]}");
+
+    assertThat(
+        values,
+        contains(
+            "resourceType=Bundle",
+            "entry[].response.location=Patient/p1",
+            "entry[].resource.resourceType=Patient"));
+  }
+
+  @Test
+  public void scanUnescapesValues() {
+    scan("{\"location\": \"Patient\\/p\\\"1\\u00e9\", \"other\": \"\u00e9\"}");
+
+    assertThat(values, contains("location=Patient/p\"1\u00e9"));
+  }
+
+  @Test
+  public void scanIgnoresKeysAsValuesAndNonStrings() {
+    scan(
+        "{\"other\": \"location\", \"location\": 10, \"list\": [\"location\", {\"x\": null}],"
+            + " \"resourceType\": \"Patient\"}");
+
+    assertThat(values, contains("resourceType=Patient"));
+  }
+
+  @Test
+  public void scanSkipsTooLongValues() {
+    scan(
+        "{\"location\": \""
+            + Strings.repeat("a", StreamingJsonScanner.MAX_VALUE_BYTES + 1)
+            + "\", \"resourceType\": \"Bundle\"}");
+
+    assertThat(values, contains("resourceType=Bundle"));
+  }
+
+  @Test
+  public void scanMalformedDoesNotFail() {
+    scan("]}\"location\": \"x\"{");
+
+    assertThat(values, empty());
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021-2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class StreamingResponseConsumerTest {
+
+  private static final String TEST_CONTENT = "{\"resourceType\": \"Bundle\"}";
+
+  private final CompletableFuture<HttpResponse> headersFuture = new CompletableFuture<>();
+  private final StreamingResponseConsumer testInstance =
+      new StreamingResponseConsumer(1024, headersFuture);
+
+  private static HttpResponse createResponse() {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContentType("application/fhir+json");
+    response.setEntity(entity);
+    return response;
+  }
+
+  /** Returns a decoder that reads the given content at once and then reaches the end. */
+  private static ContentDecoder createDecoder(String content) throws IOException {
+    ContentDecoder decoder = mock(ContentDecoder.class);
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    when(decoder.read(any(ByteBuffer.class)))
+        .thenAnswer(
+            invocation -> {
+              ByteBuffer buffer = invocation.getArgument(0);
+              buffer.put(bytes);
+              return bytes.length;
+            })
+        .thenReturn(-1);
+    return decoder;
+  }
+
+  @Test
+  public void responseReceivedCompletesBeforeContent() throws Exception {
+    testInstance.responseReceived(createResponse());
+
+    HttpResponse response = headersFuture.getNow(null);
+    assertThat(response.getEntity().getContentType().getValue(), equalTo("application/fhir+json"));
+    testInstance.consumeContent(createDecoder(TEST_CONTENT), mock(IOControl.class));
+    testInstance.responseCompleted(null);
+
+    assertThat(EntityUtils.toString(response.getEntity()), equalTo(TEST_CONTENT));
+    assertThat(testInstance.isDone(), equalTo(true));
+  }
+
+  @Test
+  public void failedAfterHeadersFailsContentRead() throws Exception {
+    testInstance.responseReceived(createResponse());
+    HttpResponse response = headersFuture.getNow(null);
+
+    testInstance.failed(new IOException("Connection reset"));
+
+    assertThrows(IOException.class, () -> EntityUtils.toString(response.getEntity()));
+  }
+
+  @Test
+  public void failedBeforeHeadersFailsFuture() {
+    testInstance.failed(new IOException("Connection refused"));
+
+    assertThat(headersFuture.isCompletedExceptionally(), equalTo(true));
+  }
+}
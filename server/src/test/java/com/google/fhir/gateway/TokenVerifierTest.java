@@ -17,17 +17,23 @@ package com.google.fhir.gateway;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTCreator;
 import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.DecodedJWT;
 import com.google.common.base.Preconditions;
 import com.google.common.io.Resources;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -35,9 +41,19 @@ import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.http.HttpResponse;
 import org.junit.Before;
 import org.junit.Test;
@@ -54,6 +70,11 @@ public class TokenVerifierTest {
 
   private static final Logger logger = LoggerFactory.getLogger(TokenVerifierTest.class);
   private static final String TOKEN_ISSUER = "https://token.issuer";
+  // This is the `jwks_uri` in idp_keycloak_config.json.
+  private static final URI JWKS_URI =
+      URI.create("https://token.issuer/protocol/openid-connect/certs");
+  private static final TokenVerifierConfig NO_REFRESH_CONFIG =
+      TokenVerifierConfig.builder().keysRefreshInterval(Duration.ZERO).build();
 
   @Mock private HttpUtil httpUtilMock;
   private KeyPair keyPair;
@@ -89,8 +110,13 @@ public class TokenVerifierTest {
   }
 
   private String signJwt(JWTCreator.Builder jwtBuilder) {
+    return signJwt(jwtBuilder, keyPair);
+  }
+
+  private String signJwt(JWTCreator.Builder jwtBuilder, KeyPair signingKeyPair) {
     Algorithm algorithm =
-        Algorithm.RSA256((RSAPublicKey) keyPair.getPublic(), (RSAPrivateKey) keyPair.getPrivate());
+        Algorithm.RSA256(
+            (RSAPublicKey) signingKeyPair.getPublic(), (RSAPrivateKey) signingKeyPair.getPrivate());
     String token = jwtBuilder.sign(algorithm);
     logger.debug(String.format(" The generated JWT is: %s", token));
     return token;
@@ -134,9 +160,310 @@ public class TokenVerifierTest {
     testInstance.decodeAndVerifyBearerToken("Bearer TTT");
   }
 
+  @Test
+  public void decodeAndVerifyBearerTokenPublicKeyWithKeyId() {
+    // Without a JWKS, the `public_key` of the issuer is used regardless of the `kid`.
+    JWTCreator.Builder jwtBuilder = JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("key1");
+
+    DecodedJWT jwt = testInstance.decodeAndVerifyBearerToken("Bearer " + signJwt(jwtBuilder));
+
+    assertThat(jwt.getKeyId(), equalTo("key1"));
+  }
+
+  @Test
+  public void discoverJwksSwitchesFromPublicKey() throws Exception {
+    TokenVerifier fallbackVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+    KeyPair jwksKeyPair = newKeyPair();
+    HttpResponse jwks = jwksResponse(toJwk("key1", keyPair), toJwk("key2", jwksKeyPair));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+
+    assertThat(fallbackVerifier.discoverJwks(), equalTo(true));
+    DecodedJWT jwt =
+        fallbackVerifier.decodeAndVerifyBearerToken(
+            "Bearer "
+                + signJwt(JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("key2"), jwksKeyPair));
+
+    assertThat(jwt.getKeyId(), equalTo("key2"));
+  }
+
   @Test
   public void getWellKnownConfigTest() {
     String config = testInstance.getWellKnownConfig();
     assertThat(config, equalTo(testIdpConfig));
   }
+
+  @Test
+  public void decodeAndVerifyBearerTokenSameTokenCached() {
+    JWTCreator.Builder jwtBuilder = JWT.create().withIssuer(TOKEN_ISSUER);
+    String authHeader = "Bearer " + signJwt(jwtBuilder);
+
+    DecodedJWT first = testInstance.decodeAndVerifyBearerToken(authHeader);
+    DecodedJWT second = testInstance.decodeAndVerifyBearerToken(authHeader);
+
+    assertThat(second, sameInstance(first));
+    assertThat(testInstance.getTokenCacheStats().hitCount(), equalTo(1L));
+    assertThat(testInstance.getTokenCacheStats().missCount(), equalTo(1L));
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenBadSignatureNotCached() {
+    generateKeyPairAndEncode();
+    String authHeader = "Bearer " + signJwt(JWT.create().withIssuer(TOKEN_ISSUER));
+    for (int i = 0; i < 2; i++) {
+      try {
+        testInstance.decodeAndVerifyBearerToken(authHeader);
+        Preconditions.checkState(false, "Verification should have failed!");
+      } catch (AuthenticationException e) {
+        // Expected.
+      }
+    }
+    assertThat(testInstance.getTokenCacheStats().hitCount(), equalTo(0L));
+  }
+
+  @Test
+  public void tokenExpiryCappedByExpClaim() {
+    TokenVerifier.TokenExpiry expiry = new TokenVerifier.TokenExpiry(Duration.ofMinutes(5));
+    DecodedJWT shortLived =
+        JWT.decode(signJwt(JWT.create().withExpiresAt(Instant.now().plusSeconds(60))));
+    DecodedJWT longLived =
+        JWT.decode(signJwt(JWT.create().withExpiresAt(Instant.now().plusSeconds(3600))));
+    DecodedJWT expired =
+        JWT.decode(signJwt(JWT.create().withExpiresAt(Instant.now().minusSeconds(60))));
+    DecodedJWT noExp = JWT.decode(signJwt(JWT.create()));
+
+    assertThat(
+        expiry.expireAfterCreate(null, shortLived, 0),
+        lessThanOrEqualTo(Duration.ofSeconds(60).toNanos()));
+    long maxTtlNanos = Duration.ofMinutes(5).toNanos();
+    assertThat(expiry.expireAfterCreate(null, longLived, 0), equalTo(maxTtlNanos));
+    assertThat(expiry.expireAfterCreate(null, expired, 0), equalTo(0L));
+    assertThat(expiry.expireAfterCreate(null, noExp, 0), equalTo(maxTtlNanos));
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenConcurrentRequests() throws Exception {
+    int numThreads = 8;
+    List<String> authHeaders = new ArrayList<>();
+    for (int i = 0; i < numThreads * 10; i++) {
+      authHeaders.add(
+          "Bearer " + signJwt(JWT.create().withIssuer(TOKEN_ISSUER).withSubject("" + i)));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<DecodedJWT>> results = new ArrayList<>();
+      for (String authHeader : authHeaders) {
+        results.add(executor.submit(() -> testInstance.decodeAndVerifyBearerToken(authHeader)));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertThat(results.get(i).get().getSubject(), equalTo("" + i));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static KeyPair newKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair();
+  }
+
+  private static String toJwk(String kid, KeyPair jwkKeyPair) {
+    return toJwk(kid, jwkKeyPair, "\"alg\": \"RS256\", ");
+  }
+
+  private static String toJwk(String kid, KeyPair jwkKeyPair, String algMember) {
+    RSAPublicKey publicKey = (RSAPublicKey) jwkKeyPair.getPublic();
+    return String.format(
+        "{\"kty\": \"RSA\", \"use\": \"sig\", %s\"kid\": \"%s\", \"n\": \"%s\","
+            + " \"e\": \"%s\"}",
+        algMember,
+        kid,
+        toBase64Url(publicKey.getModulus()),
+        toBase64Url(publicKey.getPublicExponent()));
+  }
+
+  private static String toEcJwk(String kid, KeyPair jwkKeyPair, String curve) {
+    ECPublicKey publicKey = (ECPublicKey) jwkKeyPair.getPublic();
+    return String.format(
+        "{\"kty\": \"EC\", \"use\": \"sig\", \"crv\": \"%s\", \"kid\": \"%s\","
+            + " \"x\": \"%s\", \"y\": \"%s\"}",
+        curve,
+        kid,
+        toBase64Url(publicKey.getW().getAffineX()),
+        toBase64Url(publicKey.getW().getAffineY()));
+  }
+
+  private static String toBase64Url(BigInteger value) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(value.toByteArray());
+  }
+
+  private static KeyPair newEcKeyPair(String curveName) throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec(curveName));
+    return generator.generateKeyPair();
+  }
+
+  private static HttpResponse jwksResponse(String... jwks) throws IOException {
+    HttpResponse responseMock = Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
+    TestUtil.setUpFhirResponseMock(
+        responseMock, String.format("{\"keys\": [%s]}", String.join(", ", jwks)));
+    return responseMock;
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenJwksKeyId() throws Exception {
+    KeyPair otherKeyPair = newKeyPair();
+    HttpResponse jwks = jwksResponse(toJwk("key1", keyPair), toJwk("key2", otherKeyPair));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+    TokenVerifier jwksVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+
+    DecodedJWT jwt =
+        jwksVerifier.decodeAndVerifyBearerToken(
+            "Bearer "
+                + signJwt(JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("key2"), otherKeyPair));
+
+    assertThat(jwt.getKeyId(), equalTo("key2"));
+  }
+
+  @Test(expected = AuthenticationException.class)
+  public void decodeAndVerifyBearerTokenJwksWrongKeyId() throws Exception {
+    HttpResponse jwks = jwksResponse(toJwk("key1", keyPair), toJwk("key2", newKeyPair()));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+    TokenVerifier jwksVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+
+    jwksVerifier.decodeAndVerifyBearerToken(
+        "Bearer " + signJwt(JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("key2")));
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenJwksSingleKeyNoKeyId() throws Exception {
+    HttpResponse jwks = jwksResponse(toJwk("key1", keyPair));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+    TokenVerifier jwksVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+
+    jwksVerifier.decodeAndVerifyBearerToken(
+        "Bearer " + signJwt(JWT.create().withIssuer(TOKEN_ISSUER)));
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenUnknownKeyIdRefetchesJwks() throws Exception {
+    KeyPair rotatedKeyPair = newKeyPair();
+    HttpResponse oldJwks = jwksResponse(toJwk("key1", keyPair));
+    HttpResponse newJwks = jwksResponse(toJwk("key1", keyPair), toJwk("key2", rotatedKeyPair));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(oldJwks, newJwks);
+    TokenVerifierConfig config =
+        TokenVerifierConfig.builder()
+            .keysRefreshInterval(Duration.ZERO)
+            .keysMinRefetchInterval(Duration.ZERO)
+            .build();
+    // Ignoring the JWKS fetch of `testInstance`.
+    Mockito.clearInvocations(httpUtilMock);
+    TokenVerifier jwksVerifier = new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, config);
+
+    DecodedJWT jwt =
+        jwksVerifier.decodeAndVerifyBearerToken(
+            "Bearer "
+                + signJwt(JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("key2"), rotatedKeyPair));
+
+    assertThat(jwt.getKeyId(), equalTo("key2"));
+    verify(httpUtilMock, times(2)).getResourceOrFail(JWKS_URI);
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenUnknownKeyIdRefetchRateLimited() throws Exception {
+    HttpResponse jwks = jwksResponse(toJwk("key1", keyPair));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+    Mockito.clearInvocations(httpUtilMock);
+    TokenVerifier jwksVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        jwksVerifier.decodeAndVerifyBearerToken(
+            "Bearer "
+                + signJwt(JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("unknown" + i)));
+        Preconditions.checkState(false, "Verification should have failed!");
+      } catch (AuthenticationException e) {
+        // Expected.
+      }
+    }
+    // Only the initial fetch; the refetches are within the default min refetch interval.
+    verify(httpUtilMock, times(1)).getResourceOrFail(JWKS_URI);
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenJwksEs256() throws Exception {
+    KeyPair ecKeyPair = newEcKeyPair("secp256r1");
+    HttpResponse jwks = jwksResponse(toJwk("rsa", keyPair), toEcJwk("ec", ecKeyPair, "P-256"));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+    TokenVerifier jwksVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+    Algorithm algorithm =
+        Algorithm.ECDSA256(
+            (ECPublicKey) ecKeyPair.getPublic(), (ECPrivateKey) ecKeyPair.getPrivate());
+
+    DecodedJWT jwt =
+        jwksVerifier.decodeAndVerifyBearerToken(
+            "Bearer " + JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("ec").sign(algorithm));
+
+    assertThat(jwt.getAlgorithm(), equalTo("ES256"));
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenJwksEs384() throws Exception {
+    KeyPair ecKeyPair = newEcKeyPair("secp384r1");
+    HttpResponse jwks = jwksResponse(toEcJwk("ec", ecKeyPair, "P-384"));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+    TokenVerifier jwksVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+    Algorithm algorithm =
+        Algorithm.ECDSA384(
+            (ECPublicKey) ecKeyPair.getPublic(), (ECPrivateKey) ecKeyPair.getPrivate());
+
+    DecodedJWT jwt =
+        jwksVerifier.decodeAndVerifyBearerToken(
+            "Bearer " + JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("ec").sign(algorithm));
+
+    assertThat(jwt.getAlgorithm(), equalTo("ES384"));
+  }
+
+  @Test
+  public void decodeAndVerifyBearerTokenJwksPs256() throws Exception {
+    // Without an `alg` member, the RSA key can be used with both RS256 and PS256.
+    HttpResponse jwks = jwksResponse(toJwk("rsa", keyPair, ""));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+    TokenVerifier jwksVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+    Algorithm algorithm =
+        RsaPssAlgorithm.ps256(
+            (RSAPublicKey) keyPair.getPublic(), (RSAPrivateKey) keyPair.getPrivate());
+
+    DecodedJWT jwt =
+        jwksVerifier.decodeAndVerifyBearerToken(
+            "Bearer " + JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("rsa").sign(algorithm));
+    jwksVerifier.decodeAndVerifyBearerToken(
+        "Bearer " + signJwt(JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("rsa")));
+
+    assertThat(jwt.getAlgorithm(), equalTo("PS256"));
+  }
+
+  @Test(expected = AuthenticationException.class)
+  public void decodeAndVerifyBearerTokenJwksAlgorithmMismatch() throws Exception {
+    // The JWK is restricted to RS256 hence a PS256 token with the same key is rejected.
+    HttpResponse jwks = jwksResponse(toJwk("rsa", keyPair));
+    when(httpUtilMock.getResourceOrFail(JWKS_URI)).thenReturn(jwks);
+    TokenVerifier jwksVerifier =
+        new TokenVerifier(TOKEN_ISSUER, "test", httpUtilMock, NO_REFRESH_CONFIG);
+    Algorithm algorithm =
+        RsaPssAlgorithm.ps256(
+            (RSAPublicKey) keyPair.getPublic(), (RSAPrivateKey) keyPair.getPrivate());
+
+    jwksVerifier.decodeAndVerifyBearerToken(
+        "Bearer " + JWT.create().withIssuer(TOKEN_ISSUER).withKeyId("rsa").sign(algorithm));
+  }
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2021-2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.fhir.gateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.junit.Test;
+
+public class VirtualThreadUtilTest {
+
+  @Test
+  public void newVirtualThreadPerTaskExecutor_notEnabled_empty() {
+    // The virtual-thread mode is opt-in and the env variable is not set in tests.
+    assertThat(VirtualThreadUtil.isEnabled(), equalTo(false));
+    assertThat(VirtualThreadUtil.newVirtualThreadPerTaskExecutor().isPresent(), equalTo(false));
+  }
+}